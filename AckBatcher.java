@@ -0,0 +1,102 @@
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces STORE_ACK / REMOVE_ACK messages sent from a Dstore to the Controller.
+ * ACKs queued within the same window (or until maxBatch entries are pending) are
+ * flushed as one "STORE_ACK_BATCH n f1 ... fn" / "REMOVE_ACK_BATCH n f1 ... fn" line.
+ * A window of 0 disables batching and every ACK is sent on its own line as before.
+ */
+public class AckBatcher {
+    private final PrintWriter out;
+    private final long windowMillis;
+    private final int maxBatch;
+    private final ScheduledExecutorService flusher;
+
+    private final List<String> pendingStoreAcks = new ArrayList<>();
+    private final List<String> pendingRemoveAcks = new ArrayList<>();
+    private boolean flushScheduled = false;
+
+    public AckBatcher(PrintWriter out, long windowMillis, int maxBatch) {
+        this.out = out;
+        this.windowMillis = windowMillis;
+        this.maxBatch = Math.max(1, maxBatch);
+        if (windowMillis > 0) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "ack-batcher");
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            flusher = null;
+        }
+    }
+
+    public void storeAck(String filename) {
+        enqueue(pendingStoreAcks, Protocol.STORE_ACK_TOKEN, filename);
+    }
+
+    public void removeAck(String filename) {
+        enqueue(pendingRemoveAcks, Protocol.REMOVE_ACK_TOKEN, filename);
+    }
+
+    /**
+     * Sends ACKs for a group of files (e.g. a STORE_BATCH) as one frame right away,
+     * regardless of the batching window.
+     */
+    public synchronized void storeAcks(List<String> filenames) {
+        flush();
+        pendingStoreAcks.addAll(filenames);
+        sendBatch(pendingStoreAcks, Protocol.STORE_ACK_BATCH_TOKEN, Protocol.STORE_ACK_TOKEN);
+    }
+
+    public synchronized void removeAcks(List<String> filenames) {
+        flush();
+        pendingRemoveAcks.addAll(filenames);
+        sendBatch(pendingRemoveAcks, Protocol.REMOVE_ACK_BATCH_TOKEN, Protocol.REMOVE_ACK_TOKEN);
+    }
+
+    private void enqueue(List<String> pending, String token, String filename) {
+        if (flusher == null) {
+            out.println(token + " " + filename);
+            return;
+        }
+        synchronized (this) {
+            pending.add(filename);
+            if (pending.size() >= maxBatch) {
+                flush();
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    public synchronized void flush() {
+        flushScheduled = false;
+        sendBatch(pendingStoreAcks, Protocol.STORE_ACK_BATCH_TOKEN, Protocol.STORE_ACK_TOKEN);
+        sendBatch(pendingRemoveAcks, Protocol.REMOVE_ACK_BATCH_TOKEN, Protocol.REMOVE_ACK_TOKEN);
+    }
+
+    private void sendBatch(List<String> pending, String batchToken, String singleToken) {
+        if (pending.isEmpty()) return;
+        if (pending.size() == 1) {
+            out.println(singleToken + " " + pending.get(0));
+        } else {
+            out.println(batchToken + " " + pending.size() + " " + String.join(" ", pending));
+        }
+        System.out.println("Flushed " + pending.size() + " " + singleToken + "(s) to controller");
+        pending.clear();
+    }
+
+    public void shutdown() {
+        if (flusher != null) {
+            flush();
+            flusher.shutdown();
+        }
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Admission control for one kind of operation: at most maxActive run at once, up to
+ * maxQueued more wait for at most queueTimeoutMs, and anything beyond that is rejected
+ * straight away so an overloaded node sheds work instead of piling up threads. Rejected
+ * callers get a retry-after hint from the recent service time and the queue length.
+ *
+ * enter returns a ticket to pass back to exit, or -1 if the operation was rejected.
+ * A maxActive of 0 or less admits everything.
+ */
+public class Admission {
+    private static final double SERVICE_TIME_WEIGHT = 0.2;
+
+    private final String name;
+    private final int maxActive;
+    private final int maxQueued;
+    private final long queueTimeoutMs;
+    private int active = 0;
+    private int queued = 0;
+    private long rejected = 0;
+    private double serviceMillis; // moving average, starting from the queue timeout until there are samples
+
+    public Admission(String name, int maxActive, int maxQueued, long queueTimeoutMs) {
+        this.name = name;
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.queueTimeoutMs = queueTimeoutMs;
+        this.serviceMillis = Math.max(1, queueTimeoutMs);
+    }
+
+    /**
+     * Parses "name=active/queued,..." into one Admission per name, on top of the defaults.
+     */
+    public static Map<String, Admission> parse(String spec, Map<String, int[]> defaults, long queueTimeoutMs) {
+        Map<String, int[]> limits = new LinkedHashMap<>(defaults);
+        if (spec != null && !spec.trim().isEmpty()) {
+            for (String entry : spec.split(",")) {
+                String[] nameAndLimits = entry.trim().split("=");
+                String[] numbers = nameAndLimits[1].split("/");
+                int active = Integer.parseInt(numbers[0].trim());
+                int queued = numbers.length > 1 ? Integer.parseInt(numbers[1].trim()) : 0;
+                limits.put(nameAndLimits[0].trim(), new int[] {active, queued});
+            }
+        }
+        Map<String, Admission> admissions = new LinkedHashMap<>();
+        limits.forEach((name, limit) -> admissions.put(name, new Admission(name, limit[0], limit[1], queueTimeoutMs)));
+        return admissions;
+    }
+
+    public synchronized long enter() {
+        if (maxActive <= 0) {
+            active++;
+            return System.nanoTime();
+        }
+        if (active >= maxActive) {
+            if (queued >= maxQueued) {
+                rejected++;
+                return -1;
+            }
+            queued++;
+            try {
+                long deadline = System.currentTimeMillis() + queueTimeoutMs;
+                long remaining;
+                while (active >= maxActive && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                queued--;
+            }
+            if (active >= maxActive) {
+                rejected++;
+                return -1;
+            }
+        }
+        active++;
+        return System.nanoTime();
+    }
+
+    public synchronized void exit(long ticket) {
+        active--;
+        double millis = (System.nanoTime() - ticket) / 1e6;
+        serviceMillis += SERVICE_TIME_WEIGHT * (millis - serviceMillis);
+        notify();
+    }
+
+    /**
+     * Roughly how long until a new operation would be admitted, in milliseconds.
+     */
+    public synchronized long retryAfterMs() {
+        int slots = Math.max(1, maxActive);
+        return Math.max(1, (long) Math.ceil((queued + 1) * serviceMillis / slots));
+    }
+
+    public synchronized String describe() {
+        return name + "=" + active + "/" + maxActive + " queued=" + queued + " rejected=" + rejected;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Measures files per second for STORE, LOAD and REMOVE one file at a time against the
+ * same work done with STORE_BATCH, LOAD_BATCH and REMOVE_BATCH, against a running
+ * Controller and its Dstores, at 1 KB, 16 KB and 1 MB per file. Every loaded file is
+ * checked against what was stored.
+ *
+ * Usage: java BatchBenchmark controllerPort [filesPerSize] [batchSize]
+ */
+public class BatchBenchmark {
+    private static final int TIMEOUT_MS = 30_000;
+    private static final int[] FILE_SIZES = {1024, 16 * 1024, 1024 * 1024};
+
+    private final Socket controller;
+    private final PrintWriter writer;
+    private final BufferedReader reader;
+
+    public static void main(String[] args) throws Exception {
+        int controllerPort = Integer.parseInt(args[0]);
+        int files = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        BatchBenchmark benchmark = new BatchBenchmark(controllerPort);
+        System.out.printf("%-8s %-6s %12s %12s %12s%n", "size", "mode", "store/s", "load/s", "remove/s");
+        String prefix = "bench-" + System.currentTimeMillis() + "-";
+        for (int fileSize : FILE_SIZES) {
+            // 1 MB files are fewer so a run stays short
+            int count = fileSize >= 1024 * 1024 ? Math.max(batchSize, files / 10) : files;
+            byte[][] contents = new byte[count][fileSize];
+            Random random = new Random(fileSize);
+            for (byte[] content : contents) {
+                random.nextBytes(content);
+            }
+            double[] single = benchmark.runSingle(prefix + fileSize + "-s", contents);
+            double[] batched = benchmark.runBatched(prefix + fileSize + "-b", contents, batchSize);
+            String label = fileSize >= 1024 * 1024 ? fileSize / (1024 * 1024) + "MB" : fileSize / 1024 + "KB";
+            System.out.printf("%-8s %-6s %12.0f %12.0f %12.0f%n", label, "single", single[0], single[1], single[2]);
+            System.out.printf("%-8s %-6s %12.0f %12.0f %12.0f%n", label, "batch", batched[0], batched[1], batched[2]);
+            System.out.printf("%-8s %-6s %11.1fx %11.1fx %11.1fx%n", label, "gain",
+                batched[0] / single[0], batched[1] / single[1], batched[2] / single[2]);
+        }
+        benchmark.controller.close();
+    }
+
+    private BatchBenchmark(int controllerPort) throws IOException {
+        this.controller = new Socket("localhost", controllerPort);
+        controller.setSoTimeout(TIMEOUT_MS);
+        controller.setTcpNoDelay(true);
+        this.writer = new PrintWriter(controller.getOutputStream(), true);
+        this.reader = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+    }
+
+    // Files per second for store, load and remove, one request per file
+    private double[] runSingle(String prefix, byte[][] contents) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < contents.length; i++) {
+            String filename = prefix + i;
+            String reply = request("STORE " + filename + " " + contents[i].length);
+            expect(reply, "STORE_TO");
+            String[] ports = reply.split(" ");
+            for (int p = 1; p < ports.length; p++) {
+                upload(Integer.parseInt(ports[p]), "STORE " + filename + " " + contents[i].length, contents[i]);
+            }
+            expect(reader.readLine(), "STORE_COMPLETE");
+        }
+        double storeRate = rate(contents.length, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < contents.length; i++) {
+            String filename = prefix + i;
+            String[] reply = expect(request("LOAD " + filename), "LOAD_FROM").split(" ");
+            byte[] loaded = download(Integer.parseInt(reply[1]), "LOAD_DATA " + filename, Integer.parseInt(reply[2]));
+            verify(filename, contents[i], loaded);
+        }
+        double loadRate = rate(contents.length, start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < contents.length; i++) {
+            expect(request("REMOVE " + prefix + i), "REMOVE_COMPLETE");
+        }
+        return new double[] {storeRate, loadRate, rate(contents.length, start)};
+    }
+
+    // Files per second for store, load and remove, one request per batchSize files
+    private double[] runBatched(String prefix, byte[][] contents, int batchSize) throws IOException {
+        long start = System.nanoTime();
+        for (int from = 0; from < contents.length; from += batchSize) {
+            int to = Math.min(contents.length, from + batchSize);
+            StringBuilder command = new StringBuilder("STORE_BATCH ").append(to - from);
+            for (int i = from; i < to; i++) {
+                command.append(' ').append(prefix).append(i).append(' ').append(contents[i].length);
+            }
+            String[] ports = expect(request(command.toString()), "STORE_TO").split(" ");
+            byte[][] batch = Arrays.copyOfRange(contents, from, to);
+            for (int p = 1; p < ports.length; p++) {
+                upload(Integer.parseInt(ports[p]), command.toString(), batch);
+            }
+            expect(reader.readLine(), "STORE_BATCH_COMPLETE");
+        }
+        double storeRate = rate(contents.length, start);
+
+        start = System.nanoTime();
+        for (int from = 0; from < contents.length; from += batchSize) {
+            int to = Math.min(contents.length, from + batchSize);
+            StringBuilder command = new StringBuilder("LOAD_BATCH ").append(to - from);
+            for (int i = from; i < to; i++) {
+                command.append(' ').append(prefix).append(i);
+            }
+            // LOAD_FROM_BATCH n f1 port1 size1 ...; each Dstore is asked once for all of its files
+            String[] reply = expect(request(command.toString()), "LOAD_FROM_BATCH").split(" ");
+            Map<Integer, List<Integer>> byPort = new LinkedHashMap<>();
+            Map<Integer, Integer> sizes = new LinkedHashMap<>();
+            for (int part = 2; part + 2 < reply.length; part += 3) {
+                int file = Integer.parseInt(reply[part].substring(prefix.length()));
+                byPort.computeIfAbsent(Integer.parseInt(reply[part + 1]), port -> new ArrayList<>()).add(file);
+                sizes.put(file, Integer.parseInt(reply[part + 2]));
+            }
+            for (Map.Entry<Integer, List<Integer>> entry : byPort.entrySet()) {
+                StringBuilder load = new StringBuilder("LOAD_DATA_BATCH ").append(entry.getValue().size());
+                int total = 0;
+                for (int file : entry.getValue()) {
+                    load.append(' ').append(prefix).append(file);
+                    total += sizes.get(file);
+                }
+                byte[] loaded = download(entry.getKey(), load.toString(), total);
+                int offset = 0;
+                for (int file : entry.getValue()) {
+                    verify(prefix + file, contents[file], Arrays.copyOfRange(loaded, offset, offset + sizes.get(file)));
+                    offset += sizes.get(file);
+                }
+            }
+        }
+        double loadRate = rate(contents.length, start);
+
+        start = System.nanoTime();
+        for (int from = 0; from < contents.length; from += batchSize) {
+            int to = Math.min(contents.length, from + batchSize);
+            StringBuilder command = new StringBuilder("REMOVE_BATCH ").append(to - from);
+            for (int i = from; i < to; i++) {
+                command.append(' ').append(prefix).append(i);
+            }
+            expect(request(command.toString()), "REMOVE_BATCH_COMPLETE");
+        }
+        return new double[] {storeRate, loadRate, rate(contents.length, start)};
+    }
+
+    private String request(String command) throws IOException {
+        writer.println(command);
+        return reader.readLine();
+    }
+
+    private static String expect(String reply, String token) throws IOException {
+        if (reply == null || !reply.startsWith(token)) {
+            throw new IOException("Expected " + token + " but got " + reply);
+        }
+        return reply;
+    }
+
+    private static double rate(int files, long start) {
+        return files / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void verify(String filename, byte[] expected, byte[] loaded) throws IOException {
+        if (!Arrays.equals(expected, loaded)) {
+            throw new IOException("LOAD of " + filename + " did not return the stored content");
+        }
+    }
+
+    private static void upload(int port, String command, byte[]... contents) throws IOException {
+        try (Socket dstore = new Socket("localhost", port)) {
+            dstore.setSoTimeout(TIMEOUT_MS);
+            dstore.setTcpNoDelay(true);
+            new PrintWriter(dstore.getOutputStream(), true).println(command);
+            String reply = new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine();
+            if (!"ACK".equals(reply)) {
+                throw new IOException("Dstore " + port + " answered " + reply);
+            }
+            OutputStream out = dstore.getOutputStream();
+            for (byte[] content : contents) {
+                out.write(content);
+            }
+            out.flush();
+            // Closing before the Dstore has read everything could reset the connection
+            dstore.shutdownOutput();
+            dstore.getInputStream().read();
+        }
+    }
+
+    private static byte[] download(int port, String command, int bytes) throws IOException {
+        try (Socket dstore = new Socket("localhost", port)) {
+            dstore.setSoTimeout(TIMEOUT_MS);
+            dstore.setTcpNoDelay(true);
+            new PrintWriter(dstore.getOutputStream(), true).println(command);
+            byte[] content = new byte[bytes];
+            new DataInputStream(dstore.getInputStream()).readFully(content);
+            return content;
+        }
+    }
+}
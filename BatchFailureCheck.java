@@ -0,0 +1,170 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Check that a STORE_BATCH is all or nothing. Starts a Controller with replication 2 and
+ * one Dstore as child processes and joins as the second Dstore itself. In the first round
+ * it stores every file of a batch but never sends the STORE_ACK of one of them: the client
+ * must get ERROR_STORE_BATCH_FAILED naming that file, no file of the batch may be listed
+ * or left on the real Dstore, and the names must be free again. In the second round it
+ * ACKs everything and the same batch must complete. Exits with status 1 otherwise.
+ *
+ * Usage: java BatchFailureCheck [basePort] [timeoutMs]
+ */
+public class BatchFailureCheck {
+    private static final String[] FILES = {"batch-a", "batch-b", "batch-c"};
+    private static final int FILE_BYTES = 1024;
+
+    private final List<Process> processes = new ArrayList<>();
+    private final File workDir;
+    private volatile String withheldAck; // the file whose STORE_ACK this fake Dstore keeps back, or null
+    private PrintWriter controllerOut;
+
+    public static void main(String[] args) throws Exception {
+        int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 15200;
+        int timeout = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        BatchFailureCheck check = new BatchFailureCheck(Files.createTempDirectory("batch-failure").toFile());
+        boolean passed = false;
+        try {
+            passed = check.run(basePort, timeout);
+        } finally {
+            check.stopAll();
+        }
+        System.out.println(passed ? "BATCH FAILURE OK" : "BATCH FAILURE FAILED, logs in " + check.workDir);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private BatchFailureCheck(File workDir) {
+        this.workDir = workDir;
+    }
+
+    private boolean run(int basePort, int timeout) throws Exception {
+        int controllerPort = basePort;
+        File dstoreFolder = new File(workDir, "dstore");
+        start("controller", "-Dcontroller.dstoreFailureTimeoutMs=0", "Controller", controllerPort + "", "2", timeout + "", "3600");
+        Thread.sleep(700);
+        start("dstore", "Dstore", (basePort + 1) + "", controllerPort + "", timeout + "", dstoreFolder.getPath());
+        startFakeDstore(basePort + 2, controllerPort);
+        Thread.sleep(1500);
+
+        String command = "STORE_BATCH " + FILES.length;
+        for (String filename : FILES) {
+            command += " " + filename + " " + FILE_BYTES;
+        }
+        try (Socket controller = new Socket("localhost", controllerPort)) {
+            controller.setSoTimeout(timeout * 3);
+            PrintWriter writer = new PrintWriter(controller.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+
+            withheldAck = FILES[1];
+            String reply = storeBatch(writer, reader, command);
+            System.out.println("With the STORE_ACK of " + withheldAck + " withheld: " + reply);
+            if (!("ERROR_STORE_BATCH_FAILED " + withheldAck).equals(reply)) {
+                return false;
+            }
+            Thread.sleep(500);
+            writer.println("LIST");
+            String list = reader.readLine();
+            System.out.println("Then " + list);
+            for (String filename : FILES) {
+                if (Arrays.asList(list.split(" ")).contains(filename) || new File(dstoreFolder, filename).exists()) {
+                    System.out.println(filename + " outlived its failed batch");
+                    return false;
+                }
+            }
+
+            withheldAck = null;
+            reply = storeBatch(writer, reader, command);
+            System.out.println("Stored again with every STORE_ACK sent: " + reply);
+            writer.println("LIST");
+            list = reader.readLine();
+            System.out.println("Then " + list);
+            return "STORE_BATCH_COMPLETE".equals(reply) && Arrays.asList(list.split(" ")).containsAll(Arrays.asList(FILES));
+        }
+    }
+
+    // Sends the batch, uploads it to every Dstore named in STORE_TO and returns the Controller's verdict
+    private static String storeBatch(PrintWriter writer, BufferedReader reader, String command) throws IOException {
+        writer.println(command);
+        String reply = reader.readLine();
+        if (reply == null || !reply.startsWith("STORE_TO")) {
+            return reply;
+        }
+        String[] ports = reply.split(" ");
+        for (int p = 1; p < ports.length; p++) {
+            try (Socket dstore = new Socket("localhost", Integer.parseInt(ports[p]))) {
+                new PrintWriter(dstore.getOutputStream(), true).println(command);
+                new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine();
+                dstore.getOutputStream().write(new byte[FILES.length * FILE_BYTES]);
+                dstore.shutdownOutput();
+                dstore.getInputStream().read();
+            }
+        }
+        return reader.readLine();
+    }
+
+    // A Dstore that takes STORE_BATCH uploads and ACKs every file but the withheld one
+    private void startFakeDstore(int port, int controllerPort) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        Socket controller = new Socket("localhost", controllerPort);
+        controllerOut = new PrintWriter(controller.getOutputStream(), true);
+        controllerOut.println("JOIN " + port);
+        Thread drain = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(controller.getInputStream()))) {
+                while (in.readLine() != null) {
+                    // REMOVEs for the dropped files need no answer here
+                }
+            } catch (IOException e) {
+                // The Controller went away
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try (Socket client = server.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream()));
+                    String[] parts = in.readLine().split(" ");
+                    new PrintWriter(client.getOutputStream(), true).println("ACK");
+                    new DataInputStream(client.getInputStream()).readFully(new byte[FILES.length * FILE_BYTES]);
+                    for (int i = 2; i < parts.length; i += 2) {
+                        if (!parts[i].equals(withheldAck)) {
+                            controllerOut.println("STORE_ACK " + parts[i]);
+                        }
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void start(String name, String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList("java", "-cp", System.getProperty("java.class.path")));
+        command.addAll(Arrays.asList(args));
+        processes.add(new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(workDir, name + ".log"))
+            .start());
+    }
+
+    private void stopAll() {
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+    }
+}
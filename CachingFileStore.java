@@ -0,0 +1,177 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps memory-mapped buffers of recently loaded files so that repeated LOADs of hot
+ * files are served straight from the page cache without re-opening them. Entries are
+ * evicted in LRU order once the mapped bytes exceed maxBytes, and are invalidated by
+ * every write, delete or clear that goes through this store.
+ */
+public class CachingFileStore implements FileStore {
+    private final FileStore inner;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    // Access-ordered, so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    // Bumped on every invalidation so a load racing with a write never caches stale content
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingFileStore(FileStore inner, long maxBytes, long maxEntryBytes) {
+        this.inner = inner;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        ByteBuffer buffer = map(filename);
+        WritableByteChannel target = Channels.newChannel(out);
+        while (buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        long loadGeneration;
+        synchronized (this) {
+            ByteBuffer cached = entries.get(filename);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.duplicate();
+            }
+            loadGeneration = generation;
+        }
+
+        misses.incrementAndGet();
+        ByteBuffer buffer = inner.map(filename);
+        if (buffer.capacity() <= maxEntryBytes) {
+            put(filename, buffer, loadGeneration);
+        }
+        return buffer.duplicate();
+    }
+
+    private synchronized void put(String filename, ByteBuffer buffer, long loadGeneration) {
+        if (loadGeneration != generation) {
+            return;
+        }
+        ByteBuffer previous = entries.put(filename, buffer);
+        cachedBytes += buffer.capacity() - (previous == null ? 0 : previous.capacity());
+
+        Iterator<Map.Entry<String, ByteBuffer>> eldest = entries.entrySet().iterator();
+        while (cachedBytes > maxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().capacity();
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void invalidate(String filename) {
+        generation++;
+        ByteBuffer removed = entries.remove(filename);
+        if (removed != null) {
+            cachedBytes -= removed.capacity();
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        cachedBytes = 0;
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        invalidate(filename);
+        try {
+            return inner.write(filename, in, size);
+        } finally {
+            invalidate(filename);
+        }
+    }
+
+    @Override
+    public boolean link(String filename, String contentId, long size) throws IOException {
+        invalidate(filename);
+        try {
+            return inner.link(filename, contentId, size);
+        } finally {
+            invalidate(filename);
+        }
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        inner.sync(filenames);
+    }
+
+    @Override
+    public String contentId(String filename) {
+        return inner.contentId(filename);
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException {
+        try {
+            return inner.delete(filename);
+        } finally {
+            invalidate(filename);
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        try {
+            inner.clear();
+        } finally {
+            invalidateAll();
+        }
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return inner.exists(filename);
+    }
+
+    @Override
+    public long size(String filename) {
+        return inner.size(filename);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return inner.list();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+}
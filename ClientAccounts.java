@@ -0,0 +1,185 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-client request rate limits, stored-byte quotas and usage counters at the
+ * Controller. A client is whatever key the Controller files its connections under (a
+ * host, a connection, or a name the client gave with CLIENT). The bytes of a STORE are
+ * reserved as pending when it is accepted, charged when it completes and released if it
+ * fails; stored bytes are credited back when the file is removed. A quota therefore limits
+ * what a client keeps or is still uploading rather than what it has ever uploaded.
+ *
+ * Byte counts change inside the map's compute, so a reservation can neither race another
+ * one past the quota nor land on an account that is being evicted. Accounts holding no
+ * bytes are evicted once idle, since connection keys are never reused.
+ */
+public class ClientAccounts {
+    public static class Account {
+        final String client;
+        final TokenBucket requests;
+        final AtomicLong requestCount = new AtomicLong();
+        final AtomicLong stores = new AtomicLong();
+        final AtomicLong loads = new AtomicLong();
+        final AtomicLong removes = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong storedBytes = new AtomicLong();
+        final AtomicLong pendingBytes = new AtomicLong();
+        volatile long lastActive = System.currentTimeMillis();
+
+        Account(String client, long requestsPerSecond) {
+            this.client = client;
+            this.requests = new TokenBucket(requestsPerSecond);
+        }
+
+        String describe() {
+            return "client=" + client + " requests=" + requestCount + " stores=" + stores + " loads=" + loads
+                + " removes=" + removes + " rejected=" + rejected + " storedBytes=" + storedBytes
+                + " pendingBytes=" + pendingBytes;
+        }
+    }
+
+    private final long requestsPerSecond;
+    private final long quotaBytes;
+    private final Map<String, Account> accounts = new ConcurrentHashMap<>();
+    private final Map<String, Pair<String, Long>> pending = new ConcurrentHashMap<>(); // filename -> client, size of a STORE in progress
+    private final Map<String, Pair<String, Long>> charged = new ConcurrentHashMap<>(); // filename -> client, size of a stored file
+
+    public ClientAccounts(long requestsPerSecond, long quotaBytes) {
+        this.requestsPerSecond = requestsPerSecond;
+        this.quotaBytes = quotaBytes;
+    }
+
+    public Account get(String client) {
+        Account account = accounts.computeIfAbsent(client, c -> new Account(c, requestsPerSecond));
+        account.lastActive = System.currentTimeMillis();
+        return account;
+    }
+
+    /**
+     * Counts a request against the client's rate and returns 0 if it may proceed, or the
+     * milliseconds to wait before retrying.
+     */
+    public long admit(String client, String command) {
+        Account account = get(client);
+        long retryAfter = account.requests.tryAcquire(1);
+        if (retryAfter > 0) {
+            account.rejected.incrementAndGet();
+            return retryAfter;
+        }
+        account.requestCount.incrementAndGet();
+        switch (command) {
+            case "STORE":
+            case "STORE_BATCH":
+                account.stores.incrementAndGet();
+                break;
+            case "LOAD":
+            case "RELOAD":
+            case "LOAD_BATCH":
+                account.loads.incrementAndGet();
+                break;
+            case "REMOVE":
+            case "REMOVE_BATCH":
+                account.removes.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+        return 0;
+    }
+
+    /**
+     * Reserves size bytes of a STORE by client as pending, or returns false if with what the
+     * client stores and is already storing it would go over the quota. Called once the
+     * Controller has accepted the name; the bytes are charged by storeCompleted and given
+     * back by storeFailed.
+     */
+    public boolean storeStarted(String client, String filename, long size) {
+        return storeStarted(client, Collections.singletonMap(filename, size));
+    }
+
+    /**
+     * Reserves the files of a STORE_BATCH, or none of them if together they would take the
+     * client over its quota.
+     */
+    public boolean storeStarted(String client, Map<String, Long> files) {
+        long total = 0;
+        for (long size : files.values()) {
+            total += size;
+        }
+        long batchBytes = total;
+        boolean[] admitted = new boolean[1];
+        accounts.compute(client, (c, account) -> {
+            if (account == null) {
+                account = new Account(c, requestsPerSecond);
+            }
+            account.lastActive = System.currentTimeMillis();
+            if (quotaBytes > 0 && account.storedBytes.get() + account.pendingBytes.get() + batchBytes > quotaBytes) {
+                account.rejected.incrementAndGet();
+                return account;
+            }
+            account.pendingBytes.addAndGet(batchBytes);
+            files.forEach((filename, size) -> pending.put(filename, new Pair<>(c, size)));
+            admitted[0] = true;
+            return account;
+        });
+        return admitted[0];
+    }
+
+    public void storeCompleted(String filename) {
+        Pair<String, Long> store = pending.remove(filename);
+        if (store == null) return;
+        charged.put(filename, store);
+        update(store.getFirst(), store.getSecond(), -store.getSecond());
+    }
+
+    // A STORE that failed or timed out gives its reservation back
+    public void storeFailed(String filename) {
+        Pair<String, Long> store = pending.remove(filename);
+        if (store != null) {
+            update(store.getFirst(), 0, -store.getSecond());
+        }
+    }
+
+    public void removed(String filename) {
+        storeFailed(filename);
+        Pair<String, Long> stored = charged.remove(filename);
+        if (stored != null) {
+            update(stored.getFirst(), -stored.getSecond(), 0);
+        }
+    }
+
+    private void update(String client, long storedDelta, long pendingDelta) {
+        accounts.compute(client, (c, account) -> {
+            if (account == null) {
+                account = new Account(c, requestsPerSecond);
+            }
+            account.storedBytes.addAndGet(storedDelta);
+            account.pendingBytes.addAndGet(pendingDelta);
+            return account;
+        });
+    }
+
+    /**
+     * Drops accounts that hold no stored or pending bytes and have made no request for
+     * idleMillis; their counters and request rate start afresh if the client comes back.
+     */
+    public int evictIdle(long idleMillis) {
+        long cutoff = System.currentTimeMillis() - idleMillis;
+        int before = accounts.size();
+        for (String client : accounts.keySet()) {
+            accounts.computeIfPresent(client, (c, account) ->
+                account.lastActive < cutoff && account.storedBytes.get() == 0 && account.pendingBytes.get() == 0 ? null : account);
+        }
+        return before - accounts.size();
+    }
+
+    public String describe() {
+        StringBuilder usage = new StringBuilder();
+        for (Account account : accounts.values()) {
+            usage.append(' ').append(account.describe());
+        }
+        return usage.toString();
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses files at rest with Deflate. Every stored file starts with a header of one
+ * format byte (RAW or DEFLATE) and the original size, so sizes and content seen through
+ * this store are always the uncompressed ones. Content that is already compressed or
+ * does not shrink on a sample (see Compression) is stored raw and streamed straight in.
+ *
+ * Compressed output is buffered in memory up to memoryLimit bytes of input and spooled
+ * to a temporary file beyond that, since the inner store needs the stored size up front.
+ */
+public class CompressingFileStore implements FileStore {
+    private static final byte RAW = 0;
+    private static final byte DEFLATE = 1;
+    private static final int HEADER_BYTES = 9;
+
+    private final FileStore inner;
+    private final int level;
+    private final long minBytes;
+    private final long memoryLimit;
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>(); // original sizes read from headers
+
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public CompressingFileStore(FileStore inner, int level, long minBytes, long memoryLimit) {
+        this.inner = inner;
+        this.level = level;
+        this.minBytes = minBytes;
+        this.memoryLimit = memoryLimit;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getBytesStored() {
+        return bytesStored.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /**
+     * Returns true if filename is stored deflated, false if raw or missing.
+     */
+    public boolean isStoredCompressed(String filename) {
+        try {
+            return inner.exists(filename) && inner.map(filename).get(0) == DEFLATE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        sizes.remove(filename);
+        try {
+            byte[] sample = new byte[(int) Math.min(size, Compression.SAMPLE_BYTES)];
+            int sampled = readFully(in, sample);
+            if (sampled < sample.length) {
+                return false;
+            }
+            InputStream content = new SequenceInputStream(new ByteArrayInputStream(sample), in);
+
+            if (size < minBytes || !Compression.isCompressible(sample, sampled)) {
+                skipped.incrementAndGet();
+                InputStream stored = new SequenceInputStream(new ByteArrayInputStream(header(RAW, size)), content);
+                return account(size, size + HEADER_BYTES, inner.write(filename, stored, size + HEADER_BYTES));
+            }
+
+            if (size <= memoryLimit) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(size / 2 + HEADER_BYTES, Integer.MAX_VALUE - 8));
+                if (!deflate(content, size, buffer)) {
+                    return false;
+                }
+                return account(size, buffer.size(), inner.write(filename, new ByteArrayInputStream(buffer.toByteArray()), buffer.size()));
+            }
+
+            File spool = File.createTempFile("deflate-", ".tmp");
+            try {
+                try (OutputStream out = new BufferedOutputStream(new FileOutputStream(spool))) {
+                    if (!deflate(content, size, out)) {
+                        return false;
+                    }
+                }
+                try (InputStream stored = new BufferedInputStream(new FileInputStream(spool))) {
+                    return account(size, spool.length(), inner.write(filename, stored, spool.length()));
+                }
+            } finally {
+                spool.delete();
+            }
+        } finally {
+            sizes.remove(filename);
+        }
+    }
+
+    private boolean account(long original, long stored, boolean written) {
+        if (written) {
+            bytesIn.addAndGet(original);
+            bytesStored.addAndGet(stored);
+        }
+        return written;
+    }
+
+    // Writes the header and exactly size bytes of in, deflated; false if in ends early
+    private boolean deflate(InputStream in, long size, OutputStream out) throws IOException {
+        out.write(header(DEFLATE, size));
+        Deflater deflater = new Deflater(level, true);
+        try {
+            DeflaterOutputStream deflating = new DeflaterOutputStream(out, deflater, 64 * 1024);
+            byte[] buffer = new byte[64 * 1024];
+            long remaining = size;
+            while (remaining > 0) {
+                int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (bytesRead == -1) {
+                    return false;
+                }
+                deflating.write(buffer, 0, bytesRead);
+                remaining -= bytesRead;
+            }
+            deflating.finish();
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] header(byte format, long size) {
+        return ByteBuffer.allocate(HEADER_BYTES).put(format).putLong(size).array();
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int bytesRead = in.read(buffer, total, buffer.length - total);
+            if (bytesRead == -1) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    @Override
+    public boolean link(String filename, String contentId, long size) throws IOException {
+        sizes.remove(filename);
+        // The inner store only sees stored sizes, so the original size is checked once linked
+        if (!inner.link(filename, contentId, -1)) {
+            return false;
+        }
+        if (size(filename) != size) {
+            delete(filename);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        inner.sync(filenames);
+    }
+
+    @Override
+    public String contentId(String filename) {
+        return inner.contentId(filename);
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return inner.exists(filename);
+    }
+
+    @Override
+    public long size(String filename) {
+        Long size = sizes.get(filename);
+        if (size != null) {
+            return size;
+        }
+        if (!inner.exists(filename)) {
+            return -1;
+        }
+        // A file without a valid header cannot be read back through this store, so it has no size here either
+        try {
+            ByteBuffer stored = inner.map(filename);
+            checkHeader(filename, stored);
+            size = stored.getLong(1);
+            if (size < 0 || (stored.get(0) == RAW && size != stored.limit() - HEADER_BYTES)) {
+                System.out.println("Bad size in compression header of " + filename);
+                return -1;
+            }
+        } catch (IOException e) {
+            System.out.println(e.getMessage());
+            return -1;
+        }
+        sizes.put(filename, size);
+        return size;
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        ByteBuffer stored = inner.map(filename);
+        checkHeader(filename, stored);
+        if (stored.get(0) == RAW) {
+            stored.position(HEADER_BYTES);
+            WritableByteChannel target = Channels.newChannel(out);
+            while (stored.hasRemaining()) {
+                target.write(stored);
+            }
+            return;
+        }
+
+        stored.position(HEADER_BYTES);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored);
+            byte[] buffer = new byte[64 * 1024];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data in " + filename);
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data in " + filename, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        ByteBuffer stored = inner.map(filename);
+        checkHeader(filename, stored);
+        stored.position(HEADER_BYTES);
+        if (stored.get(0) == RAW) {
+            return stored.slice();
+        }
+
+        long size = stored.getLong(1);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(filename + " is too large to map decompressed");
+        }
+        ByteBuffer content = ByteBuffer.allocate((int) size);
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(stored);
+            while (!inflater.finished() && content.hasRemaining()) {
+                if (inflater.inflate(content) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed data in " + filename);
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed data in " + filename, e);
+        } finally {
+            inflater.end();
+        }
+        content.flip();
+        return content.asReadOnlyBuffer();
+    }
+
+    private static void checkHeader(String filename, ByteBuffer stored) throws IOException {
+        if (stored.limit() < HEADER_BYTES || (stored.get(0) != RAW && stored.get(0) != DEFLATE)) {
+            throw new IOException("Missing compression header in " + filename);
+        }
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException {
+        try {
+            return inner.delete(filename);
+        } finally {
+            sizes.remove(filename);
+        }
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return inner.list();
+    }
+
+    @Override
+    public void clear() throws IOException {
+        try {
+            inner.clear();
+        } finally {
+            sizes.clear();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether content is worth compressing. Formats that are compressed already are
+ * recognised by their magic numbers; anything else is judged by deflating a sample at
+ * the fastest level and checking that it shrinks by at least a tenth.
+ */
+public class Compression {
+    public static final int SAMPLE_BYTES = 64 * 1024;
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private static final byte[][] COMPRESSED_MAGIC = {
+        {(byte) 0x1f, (byte) 0x8b},                         // gzip
+        {'P', 'K', 3, 4},                                   // zip, jar, docx, ...
+        {(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd}, // zstd
+        {(byte) 0x04, (byte) 0x22, (byte) 0x4d, (byte) 0x18}, // lz4 frame
+        {(byte) 0xfd, '7', 'z', 'X', 'Z', 0},               // xz
+        {'B', 'Z', 'h'},                                    // bzip2
+        {'7', 'z', (byte) 0xbc, (byte) 0xaf},               // 7z
+        {(byte) 0x89, 'P', 'N', 'G'},                       // png
+        {(byte) 0xff, (byte) 0xd8, (byte) 0xff},            // jpeg
+        {'G', 'I', 'F', '8'},                               // gif
+        {'R', 'I', 'F', 'F'},                               // webp, wav, avi
+        {'O', 'g', 'g', 'S'},                               // ogg
+        {'I', 'D', '3'},                                    // mp3
+    };
+
+    private Compression() {
+    }
+
+    public static boolean isCompressible(byte[] sample, int length) {
+        return isCompressible(ByteBuffer.wrap(sample, 0, length));
+    }
+
+    /**
+     * Looks at the remaining bytes of sample, up to SAMPLE_BYTES, without moving its position.
+     */
+    public static boolean isCompressible(ByteBuffer sample) {
+        int length = Math.min(sample.remaining(), SAMPLE_BYTES);
+        if (length == 0) {
+            return false;
+        }
+        byte[] head = new byte[length];
+        sample.duplicate().get(head);
+        if (hasCompressedMagic(head) || isIsoMedia(head)) {
+            return false;
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(head);
+            deflater.finish();
+            byte[] out = new byte[length];
+            int compressed = 0;
+            while (!deflater.finished()) {
+                int n = deflater.deflate(out);
+                compressed += n;
+                if (compressed > length * MAX_SAMPLE_RATIO) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static boolean hasCompressedMagic(byte[] head) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (head.length < magic.length) continue;
+            boolean match = true;
+            for (int i = 0; i < magic.length && match; i++) {
+                match = head[i] == magic[i];
+            }
+            if (match) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // mp4, mov, heic: "ftyp" box at offset 4
+    private static boolean isIsoMedia(byte[] head) {
+        return head.length >= 8 && head[4] == 'f' && head[5] == 't' && head[6] == 'y' && head[7] == 'p';
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Measures compression ratio and STORE/LOAD throughput of CompressingFileStore over a
+ * DirectoryFileStore in a temporary folder. Uses the files of a directory when one is
+ * given, otherwise a generated corpus of application logs, JSON records, random bytes
+ * and gzipped logs, the last two to check that incompressible content is skipped.
+ *
+ * Usage: java CompressionBenchmark [corpusDirectory] [level ...]
+ */
+public class CompressionBenchmark {
+    private static final int FILE_BYTES = 1024 * 1024;
+    private static final int FILES_PER_KIND = 32;
+
+    public static void main(String[] args) throws IOException {
+        Map<String, List<byte[]>> corpus = new LinkedHashMap<>();
+        int firstLevel = 0;
+        if (args.length > 0 && new File(args[0]).isDirectory()) {
+            corpus.put(args[0], readDirectory(new File(args[0])));
+            firstLevel = 1;
+        } else {
+            corpus.putAll(generateCorpus());
+        }
+        List<Integer> levels = new ArrayList<>();
+        for (int i = firstLevel; i < args.length; i++) {
+            levels.add(Integer.parseInt(args[i]));
+        }
+        if (levels.isEmpty()) {
+            levels.add(1);
+            levels.add(6);
+        }
+
+        System.out.printf("%-12s %5s %8s %8s %12s %12s %8s%n", "corpus", "level", "MB", "ratio", "store MB/s", "load MB/s", "skipped");
+        for (int level : levels) {
+            for (Map.Entry<String, List<byte[]>> kind : corpus.entrySet()) {
+                run(kind.getKey(), kind.getValue(), level);
+            }
+        }
+    }
+
+    private static void run(String name, List<byte[]> files, int level) throws IOException {
+        File folder = Files.createTempDirectory("compression-bench").toFile();
+        try {
+            DirectoryFileStore disk = new DirectoryFileStore(folder);
+            CompressingFileStore store = new CompressingFileStore(disk, level, 512, 16L * 1024 * 1024);
+            long total = 0;
+            for (byte[] file : files) {
+                total += file.length;
+            }
+
+            // One untimed pass to warm up the JIT
+            storeAll(store, files);
+            long start = System.nanoTime();
+            storeAll(store, files);
+            double storeSeconds = (System.nanoTime() - start) / 1e9;
+
+            long stored = 0;
+            for (int i = 0; i < files.size(); i++) {
+                stored += disk.size("f" + i);
+            }
+
+            OutputStream sink = OutputStream.nullOutputStream();
+            start = System.nanoTime();
+            for (int i = 0; i < files.size(); i++) {
+                store.transferTo("f" + i, sink);
+            }
+            double loadSeconds = (System.nanoTime() - start) / 1e9;
+
+            // The round trip must give back every byte
+            for (int i = 0; i < files.size(); i++) {
+                ByteArrayOutputStream loaded = new ByteArrayOutputStream(files.get(i).length);
+                store.transferTo("f" + i, loaded);
+                if (!Arrays.equals(loaded.toByteArray(), files.get(i))) {
+                    throw new IllegalStateException("Round trip of " + name + " file " + i + " differs");
+                }
+            }
+
+            double megabytes = total / (1024.0 * 1024);
+            System.out.printf("%-12s %5d %8.1f %7.2fx %12.1f %12.1f %8d%n", name, level, megabytes, (double) total / stored,
+                megabytes / storeSeconds, megabytes / loadSeconds, store.getSkipped() / 2);
+        } finally {
+            new DirectoryFileStore(folder).clear();
+            folder.delete();
+        }
+    }
+
+    private static void storeAll(CompressingFileStore store, List<byte[]> files) throws IOException {
+        for (int i = 0; i < files.size(); i++) {
+            store.write("f" + i, new ByteArrayInputStream(files.get(i)), files.get(i).length);
+        }
+    }
+
+    private static List<byte[]> readDirectory(File directory) throws IOException {
+        List<byte[]> files = new ArrayList<>();
+        File[] entries = directory.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                if (entry.isFile()) {
+                    files.add(Files.readAllBytes(entry.toPath()));
+                }
+            }
+        }
+        return files;
+    }
+
+    private static Map<String, List<byte[]>> generateCorpus() throws IOException {
+        Random random = new Random(42);
+        String[] levels = {"INFO", "INFO", "INFO", "DEBUG", "WARN", "ERROR"};
+        String[] components = {"Controller", "Dstore", "AckBatcher", "SegmentFileStore", "IndexReplicator"};
+        String[] messages = {"Received STORE_ACK for ", "Sent file to Dstore 127.0.0.1:", "Rebalance operation completed for ",
+            "Connection established with client: /10.0.", "Error storing file: timeout after ", "Re-replicating files "};
+        String[] users = {"alice", "bob", "carol", "dave", "erin"};
+
+        Map<String, List<byte[]>> corpus = new LinkedHashMap<>();
+        List<byte[]> logs = new ArrayList<>();
+        List<byte[]> json = new ArrayList<>();
+        List<byte[]> noise = new ArrayList<>();
+        List<byte[]> gzipped = new ArrayList<>();
+        long time = 1715617881547L;
+        for (int f = 0; f < FILES_PER_KIND; f++) {
+            StringBuilder log = new StringBuilder(FILE_BYTES + 256);
+            while (log.length() < FILE_BYTES) {
+                time += random.nextInt(50);
+                log.append(time).append(' ').append(levels[random.nextInt(levels.length)]).append(" [")
+                   .append(components[random.nextInt(components.length)]).append("] ")
+                   .append(messages[random.nextInt(messages.length)]).append(random.nextInt(100000)).append('\n');
+            }
+            logs.add(log.substring(0, FILE_BYTES).getBytes("UTF-8"));
+
+            StringBuilder records = new StringBuilder(FILE_BYTES + 256);
+            while (records.length() < FILE_BYTES) {
+                records.append("{\"id\":").append(random.nextInt(1 << 30))
+                       .append(",\"user\":\"").append(users[random.nextInt(users.length)])
+                       .append("\",\"size\":").append(random.nextInt(1 << 20))
+                       .append(",\"state\":\"").append(random.nextBoolean() ? "STORE_COMPLETE" : "REMOVE_IN_PROGRESS")
+                       .append("\",\"replicas\":[").append(random.nextInt(10)).append(',').append(random.nextInt(10)).append("]}\n");
+            }
+            json.add(records.substring(0, FILE_BYTES).getBytes("UTF-8"));
+
+            byte[] bytes = new byte[FILE_BYTES];
+            random.nextBytes(bytes);
+            noise.add(bytes);
+
+            ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+            try (GZIPOutputStream out = new GZIPOutputStream(gzip)) {
+                out.write(logs.get(f));
+            }
+            gzipped.add(gzip.toByteArray());
+        }
+        corpus.put("logs", logs);
+        corpus.put("json", json);
+        corpus.put("random", noise);
+        corpus.put("gzip", gzipped);
+        return corpus;
+    }
+}
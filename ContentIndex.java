@@ -0,0 +1,63 @@
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps filenames to the content IDs reported by deduplicating Dstores and back, so the
+ * Controller can tell which files share content. Only files stored on such Dstores have
+ * an entry.
+ */
+public class ContentIndex {
+    private final Map<String, String> contentByFile = new HashMap<>();
+    private final Map<String, Set<String>> filesByContent = new HashMap<>();
+
+    public synchronized void record(String filename, String contentId) {
+        String previous = contentByFile.put(filename, contentId);
+        if (contentId.equals(previous)) return;
+        if (previous != null) {
+            unlink(filename, previous);
+        }
+        filesByContent.computeIfAbsent(contentId, k -> new HashSet<>()).add(filename);
+    }
+
+    public synchronized void forget(String filename) {
+        String contentId = contentByFile.remove(filename);
+        if (contentId != null) {
+            unlink(filename, contentId);
+        }
+    }
+
+    public synchronized String contentOf(String filename) {
+        return contentByFile.get(filename);
+    }
+
+    /**
+     * Returns the other files with the same content as filename.
+     */
+    public synchronized Set<String> duplicatesOf(String filename) {
+        String contentId = contentByFile.get(filename);
+        if (contentId == null) return Collections.emptySet();
+        Set<String> duplicates = new HashSet<>(filesByContent.get(contentId));
+        duplicates.remove(filename);
+        return duplicates;
+    }
+
+    public synchronized int size() {
+        return filesByContent.size();
+    }
+
+    public synchronized void clear() {
+        contentByFile.clear();
+        filesByContent.clear();
+    }
+
+    private void unlink(String filename, String contentId) {
+        Set<String> files = filesByContent.get(contentId);
+        files.remove(filename);
+        if (files.isEmpty()) {
+            filesByContent.remove(contentId);
+        }
+    }
+}
@@ -16,6 +16,78 @@ public class Controller {
     private ScheduledExecutorService scheduler;
 
     private volatile boolean running = true;
+    private static final int LOCK_STRIPES = Integer.getInteger("controller.lockStripes", Runtime.getRuntime().availableProcessors() * 16);
+    private static final int DSTORE_FAILURE_TIMEOUT_MS = Integer.getInteger("controller.dstoreFailureTimeoutMs", 5000); // 0 disables failure detection
+    private static final String PARTITIONS = System.getProperty("controller.partitions"); // e.g. "12345,12355", unset for a single Controller
+    private final PartitionMap partitionMap;
+    private static final long REJOIN_GRACE_MS = Long.getLong("controller.rejoinGraceMs", 10000); // after startup, files reported by rejoining Dstores are adopted
+    private volatile long adoptUntil;
+    private final Map<String, Set<String>> dstoreInventories = new ConcurrentHashMap<>(); // Dstore address -> files reported so far
+    private static final long ANTI_ENTROPY_MS = Long.getLong("controller.antiEntropyMs", 30000); // 0 disables background Merkle checks
+    private final Map<String, MerkleCheck> merkleChecks = new ConcurrentHashMap<>(); // Dstore address -> comparison in progress
+    private static final long MERKLE_TIMEOUT_MS = Long.getLong("controller.merkleTimeoutMs", 60_000); // a comparison the Dstore stops answering is dropped after this
+
+    // The index's view of one Dstore, snapshotted when a Merkle comparison starts
+    private static class MerkleCheck {
+        final MerkleTree expected = new MerkleTree();
+        final Map<String, Long> expectedFiles = new HashMap<>();
+        final long startedAt = System.currentTimeMillis();
+        Set<Integer> leaves; // set once the comparison reaches the differing leaves
+    }
+    private static final int EC_DATA_SHARDS = Integer.getInteger("controller.ecDataShards", 0); // 0 stores every file with full replication
+    private static final int EC_PARITY_SHARDS = Integer.getInteger("controller.ecParityShards", 2);
+    private static final long EC_MIN_BYTES = Long.getLong("controller.ecMinBytes", 0); // smaller files stay replicated
+    private static final int MAX_CLIENT_CONNECTIONS = Integer.getInteger("controller.maxClientConnections", 1024);
+    private static final long QUEUE_TIMEOUT_MS = Long.getLong("controller.queueTimeoutMs", 1000);
+    // "store=active/queued,..."; a STORE holds its slot until STORE_COMPLETE or the timeout, the others only while handled
+    private final Map<String, Admission> admissions = Admission.parse(System.getProperty("controller.admission"),
+        Map.of("store", new int[] {256, 1024}, "load", new int[] {512, 2048}, "remove", new int[] {256, 1024}, "list", new int[] {16, 64}),
+        QUEUE_TIMEOUT_MS);
+    private final Map<String, Long> storeTickets = new ConcurrentHashMap<>(); // filename -> admission ticket of its STORE
+    private static final String CLIENT_KEY = System.getProperty("controller.clientKey", "host"); // "host" or "connection"; CLIENT <name> overrides either
+    private static final long CLIENT_REQUESTS_PER_SEC = Long.getLong("controller.clientRequestsPerSec", 0); // 0 leaves clients unlimited
+    private static final long CLIENT_QUOTA_BYTES = Long.getLong("controller.clientQuotaBytes", 0); // 0 leaves clients unlimited
+    private static final long LOAD_EXPIRY_MS = Long.getLong("controller.loadExpiryMs", 60_000); // a LOAD not reported done by then stops counting against its Dstore
+    private static final long CLIENT_IDLE_MS = Long.getLong("controller.clientIdleMs", 10 * 60 * 1000); // accounts holding no bytes are forgotten after this
+    private static final int SCHEDULER_THREADS = Integer.getInteger("controller.schedulerThreads", 8); // 0 handles requests on the connection thread
+    private static final int SCHEDULER_QUANTUM = Integer.getInteger("controller.schedulerQuantum", 1);
+    private final Map<String, Integer> clientWeights = parseWeights(System.getProperty("controller.clientWeights")); // e.g. "10.0.0.5=4,batch=1"
+    private final ClientAccounts clientAccounts = new ClientAccounts(CLIENT_REQUESTS_PER_SEC, CLIENT_QUOTA_BYTES);
+    private final FairScheduler fairScheduler = SCHEDULER_THREADS > 0
+        ? new FairScheduler(SCHEDULER_THREADS, SCHEDULER_QUANTUM, client -> clientWeights.getOrDefault(client, 1)) : null;
+    private final Map<String, String> clientIds = new ConcurrentHashMap<>(); // client connection address -> client it is accounted to
+    private final Map<String, String> clientZones = new ConcurrentHashMap<>(); // client connection address -> zone given with CLIENT
+    // "host-or-client=zone,...", e.g. "/10.0.1.5=eu-west-1a,batch=eu-west-1b"; reads prefer replicas in the client's zone
+    private final Map<String, String> configuredClientZones = parseZones(System.getProperty("controller.clientZones"));
+    private final Map<String, String> ecPlacements = new ConcurrentHashMap<>(); // filename -> "size k m e0 ... en" until the coordinator ACKs
+    private final Map<String, Queue<List<String>>> pendingRebalanceRemovals = new ConcurrentHashMap<>(); // Dstore address -> files each unanswered REBALANCE told it to drop
+    private static final double REBALANCE_TOLERANCE = Double.parseDouble(System.getProperty("controller.rebalanceTolerance", "0.1")); // allowed distance of a Dstore's bytes from its share
+    private static final long LEASE_MS = Long.getLong("controller.leaseMs", 3000);
+    private static final String LEASE_FILE = System.getProperty("controller.leaseFile"); // defaults to one file per partition in java.io.tmpdir
+    private ControllerLease lease; // null unless the partition has standbys
+    private ScheduledExecutorService leaseRenewal; // its own thread, so work queued on scheduler cannot delay a renewal
+    private volatile boolean leader = true;
+    private volatile int leaderPort;
+    private volatile boolean following = false;
+    private volatile Socket followSocket;
+    private final IndexReplicator indexReplicator = new IndexReplicator(this::indexRecord);
+    private final Map<String, StandbyEntry> standbyIndex = new ConcurrentHashMap<>(); // filename -> replicated entry
+
+    // A file as replicated to standbys: "INDEX_PUT f size k m n e1 ... en", with k = m = 0 for a replicated file
+    private static class StandbyEntry {
+        final long fileSize;
+        final int dataShards;
+        final int parityShards;
+        final List<String> endpoints; // the replica holders, or the shard holders of an erasure-coded file
+
+        StandbyEntry(String[] record) {
+            this.fileSize = Long.parseLong(record[2]);
+            this.dataShards = Integer.parseInt(record[3]);
+            this.parityShards = Integer.parseInt(record[4]);
+            this.endpoints = Arrays.asList(record).subList(6, record.length);
+        }
+    }
+    private final Map<String, Set<String>> recoveredReplicas = new ConcurrentHashMap<>(); // Dstore endpoint -> files to re-attach at JOIN
     
     private ConcurrentHashMap<String, FileInfo> fileIndex = new ConcurrentHashMap<>();
     private Map<String, Socket> clientConnections = new ConcurrentHashMap<>();
@@ -25,6 +97,16 @@ public class Controller {
     private Map<String, Map<String, String>> clientToLastDstoreMap = new ConcurrentHashMap<>();
     private ConcurrentMap<String, ConcurrentSkipListSet<String>> pendingRemoveAcks = new ConcurrentHashMap<>();
     private Map<String, Map<String, Set<String>>> usedDstoresMap = new ConcurrentHashMap<>();
+    private Map<String, PendingBatch> fileToPendingBatch = new ConcurrentHashMap<>();
+    private DstoreFileIndex dstoreFileIndex = new DstoreFileIndex();
+    private final ContentIndex contentIndex = new ContentIndex(); // filled from CONTENT_ID reports of deduplicating Dstores
+    // Share of disk taken, then connections being served; Dstores that report no capacity count as empty
+    private static final Comparator<DstoreInfo> EMPTIEST_FIRST = Comparator.comparingDouble(DstoreInfo::fillRatio)
+        .thenComparingInt(DstoreInfo::getIoLoad);
+    private Map<Integer, String> dstoreAddressById = new ConcurrentHashMap<>();
+    private final BitSet usedDstoreIds = new BitSet();
+    // Check-then-act sequences on a file's index entry run under that file's stripe
+    private final StripedLock fileLocks = new StripedLock(LOCK_STRIPES);
 
     public Controller(int port, int replicationFactor, int timeout, int rebalancePeriod) {
         this.port = port;
@@ -33,14 +115,55 @@ public class Controller {
         this.rebalancePeriod = rebalancePeriod;
         this.dstores = new ConcurrentHashMap<>();
         this.fileIndex = new ConcurrentHashMap<>();
+        this.partitionMap = PartitionMap.parse(PARTITIONS, port);
+        this.leaderPort = port;
     }
 
     public void start() throws IOException {
+        if (partitionMap.indexOf(port) < 0) {
+            throw new IOException("Port " + port + " is not listed in controller.partitions");
+        }
         serverSocket = new ServerSocket(port);
+        if (partitionMap.size() > 1) {
+            System.out.println("Controller owns partition " + partitionMap.indexOf(port) + " of " + partitionMap.size());
+        }
+        int[] group = partitionMap.getGroup(partitionMap.indexOf(port));
+        if (group.length > 1) {
+            File leaseFile = LEASE_FILE != null ? new File(LEASE_FILE)
+                : new File(System.getProperty("java.io.tmpdir"), "controller-" + group[0] + ".lease");
+            lease = new ControllerLease(leaseFile, port, LEASE_MS);
+            leader = false;
+            System.out.println("Electing a leader among Controllers " + Arrays.toString(group) + " using " + leaseFile);
+        }
         System.out.println("Controller started on port " + port + " with replication factor " + replicationFactor + ", timeout " + timeout + " ms, rebalance period " + rebalancePeriod + " s.");
 
-        //scheduler = Executors.newScheduledThreadPool(1);
+        scheduler = Executors.newScheduledThreadPool(1);
+        if (lease != null) {
+            checkLeadership();
+            leaseRenewal = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "lease-renewal");
+                t.setDaemon(true);
+                return t;
+            });
+            leaseRenewal.scheduleAtFixedRate(this::checkLeadership, LEASE_MS / 3, LEASE_MS / 3, TimeUnit.MILLISECONDS);
+            // Catches a renewal stuck on the lease file, which would otherwise never notice the lease ran out
+            scheduler.scheduleAtFixedRate(this::standDownIfExpired, LEASE_MS / 3, LEASE_MS / 3, TimeUnit.MILLISECONDS);
+        }
         //scheduler.scheduleAtFixedRate(this::rebalance, rebalancePeriod, rebalancePeriod, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::evictIdleClients, CLIENT_IDLE_MS, CLIENT_IDLE_MS, TimeUnit.MILLISECONDS);
+        if (DSTORE_FAILURE_TIMEOUT_MS > 0) {
+            long checkInterval = Math.max(100, DSTORE_FAILURE_TIMEOUT_MS / 4);
+            scheduler.scheduleAtFixedRate(this::detectFailedDstores, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        }
+
+        // A freshly started Controller rebuilds its index from the inventories of rejoining Dstores
+        adoptUntil = System.currentTimeMillis() + REJOIN_GRACE_MS;
+        if (ANTI_ENTROPY_MS > 0) {
+            scheduler.scheduleAtFixedRate(this::startConsistencyChecks, ANTI_ENTROPY_MS, ANTI_ENTROPY_MS, TimeUnit.MILLISECONDS);
+        }
+        if (REJOIN_GRACE_MS > 0) {
+            scheduler.schedule(() -> reReplicate(new ArrayList<>(fileIndex.keySet())), REJOIN_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
 
         new Thread(this::acceptConnections).start();
     }
@@ -77,7 +200,17 @@ public class Controller {
             }
     
             String[] initialParts = initialMessage.split(" ");
-            
+
+            // Only the leader serves Dstores, clients and standbys; the others point at it
+            if (!leader) {
+                writer.println("ERROR_NOT_LEADER " + leaderPort);
+                System.out.println("Not the leader, redirected " + address + " to " + leaderPort);
+                return;
+            }
+            if (initialParts[0].equals("FOLLOW")) {
+                serveFollower(reader, writer, address);
+                return;
+            }
     
             // Identify if the connection is a Dstore or a client
             if (initialParts[0].equals("JOIN")) {
@@ -85,17 +218,29 @@ public class Controller {
                     int port = Integer.parseInt(initialParts[1]);
     
                     // Add the Dstore information
-                    dstores.put(address, new DstoreInfo(socket, port));
+                    int dstoreId = allocateDstoreId();
+                    dstoreAddressById.put(dstoreId, address);
+                    DstoreInfo dstoreInfo = new DstoreInfo(socket, port, dstoreId, LOAD_EXPIRY_MS);
+                    updateCapacity(dstoreInfo, initialParts, 2);
+                    if (initialParts.length > 6) {
+                        dstoreInfo.setZone(initialParts[6]);
+                    }
+                    dstores.put(address, dstoreInfo);
                     isDstore = true;
                     shouldClose = false;
                     System.out.println("Dstore joined: " + address + " on port " + port);
+                    attachRecoveredReplicas(address, dstoreInfo);
     
                     
                 } catch (NumberFormatException e) {
                     System.out.println("Invalid port provided in JOIN message: " + initialParts[1]);
                 }
             } else {
-               
+                if (clientConnections.size() >= MAX_CLIENT_CONNECTIONS) {
+                    writer.println("ERROR_BUSY " + admissions.get("list").retryAfterMs());
+                    System.out.println("Too many client connections, rejected " + address);
+                    return;
+                }
                 clientConnections.putIfAbsent(address, socket);
                 shouldClose = false;
                 System.out.println("Client connection registered: " + address);
@@ -116,19 +261,65 @@ public class Controller {
                 if (parts.length == 0) continue;
     
                 // Handle Dstore commands
-                if (isDstore && dstores.containsKey(address)) {
+                DstoreInfo dstoreInfo = isDstore ? dstores.get(address) : null;
+                if (dstoreInfo != null) {
+                    dstoreInfo.touch();
                     switch (parts[0]) {
+                        case "HEARTBEAT":
+                            updateCapacity(dstoreInfo, parts, 1);
+                            break;
+                        case "REBALANCE_COMPLETE":
+                            System.out.println("Dstore " + address + " completed rebalance");
+                            handleRebalanceComplete(address, parts);
+                            break;
+                        case "EC_ENCODE_FAILED":
+                            if (parts.length >= 2) {
+                                FileInfo failed = fileIndex.get(parts[1]);
+                                if (failed != null) failStore(parts[1], failed, "could not be erasure coded by Dstore " + address);
+                            }
+                            break;
                         case "STORE_ACK":
-                            if (parts.length >= 2) handleStoreAck(parts[1], socket);
+                            if (parts.length >= 2) handleStoreAcks(Collections.singletonList(parts[1]), socket);
                             break;
                         case "REMOVE_ACK":
-                            if (parts.length >= 2) handleRemoveAck(parts[1], address);
+                            if (parts.length >= 2) handleRemoveAcks(Collections.singletonList(parts[1]), address);
+                            break;
+                        case "STORE_ACK_BATCH":
+                            handleStoreAcks(parseBatch(parts), socket);
+                            break;
+                        case "REMOVE_ACK_BATCH":
+                            handleRemoveAcks(parseBatch(parts), address);
+                            break;
+                        case "LOAD_DONE":
+                            handleLoadDone(address, parts);
+                            break;
+                        case "CONTENT_ID":
+                            if (parts.length >= 3 && fileIndex.containsKey(parts[1])) contentIndex.record(parts[1], parts[2]);
+                            break;
+                        case "INVENTORY":
+                            handleInventory(address, dstoreInfo, parts);
+                            break;
+                        case "INVENTORY_END":
+                            finishInventory(address);
+                            break;
+                        case "MERKLE_HASHES":
+                            handleMerkleHashes(address, parts);
+                            break;
+                        case "MERKLE_FILES":
+                            handleMerkleFiles(address, dstoreInfo, parts);
                             break;
                         default:
                             System.out.println("Unknown Dstore command: " + message);
                             break;
                     }
                 } else {
+                    // A deposed leader's index may be stale already, so its open client connections are redirected like new ones
+                    if (!leader) {
+                        writer.println("ERROR_NOT_LEADER " + leaderPort);
+                        System.out.println("No longer the leader, redirected " + address + " to " + leaderPort);
+                        shouldClose = true;
+                        break;
+                    }
                     // Handle client commands
                     handleClientRequest(socket, parts, writer, address);
                 }
@@ -142,6 +333,8 @@ public class Controller {
                     removeDstore(address);
                 }
                 clientConnections.remove(address);
+                clientIds.remove(address);
+                clientZones.remove(address);
                 try {
                     socket.close();
                     System.out.println("Socket closed for " + address);
@@ -155,13 +348,176 @@ public class Controller {
     
     
     
+    // Parses "<TOKEN> n f1 ... fn" as sent by AckBatcher
+    private List<String> parseBatch(String[] parts) {
+        if (parts.length < 2) return Collections.emptyList();
+        int count;
+        try {
+            count = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            System.out.println("Malformed batch count: " + parts[1]);
+            return Collections.emptyList();
+        }
+        if (parts.length - 2 != count) {
+            System.out.println("Batch count mismatch, expected " + count + " but got " + (parts.length - 2));
+        }
+        return Arrays.asList(parts).subList(2, parts.length);
+    }
+
     private void removeDstore(String address) {
-        dstores.remove(address);
+        dstoreInventories.remove(address);
+        merkleChecks.remove(address);
+        pendingRebalanceRemovals.remove(address);
+        DstoreInfo removed = dstores.remove(address);
+        if (removed == null) {
+            return;
+        }
         System.out.println("Removed Dstore: " + address);
+
+        // Purge the Dstore from every replica set it was part of
+        List<String> affectedFiles = dstoreFileIndex.removeDstore(address);
+        for (String filename : affectedFiles) {
+            FileInfo fileInfo = fileIndex.get(filename);
+            if (fileInfo != null) {
+                fileInfo.removeReplica(removed.getId());
+                indexReplicator.publish(filename);
+            }
+            // A dead Dstore will never REMOVE_ACK, so stop waiting for it
+            ConcurrentSkipListSet<String> acks = pendingRemoveAcks.get(filename);
+            if (acks != null && acks.remove(address) && acks.isEmpty()) {
+                completeRemove(filename);
+            }
+        }
+        System.out.println("Dstore " + address + " held " + affectedFiles.size() + " files");
+        dstoreAddressById.remove(removed.getId());
+        releaseDstoreId(removed.getId());
+
+        if (running && leader && !affectedFiles.isEmpty()) {
+            scheduler.execute(() -> reReplicate(affectedFiles));
+        }
+    }
+
+    // Hands out the lowest free small-int Dstore ID so FileInfo replica bitsets stay short
+    private int allocateDstoreId() {
+        synchronized (usedDstoreIds) {
+            int id = usedDstoreIds.nextClearBit(0);
+            usedDstoreIds.set(id);
+            return id;
+        }
+    }
+
+    private void releaseDstoreId(int id) {
+        synchronized (usedDstoreIds) {
+            usedDstoreIds.clear(id);
+        }
+    }
+
+    // Addresses of the connected Dstores holding a replica of the file
+    private List<String> replicaAddresses(FileInfo fileInfo) {
+        List<String> addresses = new ArrayList<>();
+        for (int id : fileInfo.replicaIds()) {
+            String address = dstoreAddressById.get(id);
+            if (address != null) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    private void detectFailedDstores() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, DstoreInfo> entry : dstores.entrySet()) {
+            DstoreInfo dstoreInfo = entry.getValue();
+            if (now - dstoreInfo.getLastSeen() > DSTORE_FAILURE_TIMEOUT_MS) {
+                System.out.println("No heartbeat from Dstore " + entry.getKey() + " for " + (now - dstoreInfo.getLastSeen()) + " ms, declaring it dead");
+                try {
+                    dstoreInfo.getSocket().close();
+                } catch (IOException e) {
+                    System.out.println("Error closing socket for " + entry.getKey() + ": " + e.getMessage());
+                }
+                removeDstore(entry.getKey());
+            }
+        }
+    }
+
+    // Restores the replication factor of files that lost replicas, most endangered files first
+    private void reReplicate(Collection<String> filenames) {
+        List<String> queue = filenames.stream()
+            .filter(filename -> {
+                FileInfo fileInfo = fileIndex.get(filename);
+                return fileInfo != null && fileInfo.isStoreComplete()
+                    && fileInfo.replicaCount() > 0 && fileInfo.replicaCount() < fileInfo.requiredHolders(replicationFactor);
+            })
+            .sorted(Comparator.comparingInt(filename -> fileIndex.get(filename).replicaCount()))
+            .collect(Collectors.toList());
+        System.out.println("Re-replicating " + queue.size() + " files");
+
+        for (String filename : queue) {
+            FileInfo fileInfo = fileIndex.get(filename);
+            if (fileInfo == null) continue;
+
+            String source = leastLoadedReplica(connectedReplicas(replicaAddresses(fileInfo)));
+            if (source == null) {
+                System.out.println("No live replica left to copy " + filename + " from");
+                continue;
+            }
+
+            // Prefer Dstores that already hold the same content, where the copy is only a link, then the emptiest
+            Set<String> holdingContent = dstoresHoldingDuplicates(filename);
+            long replicaBytes = fileInfo.isErasureCoded()
+                ? (fileInfo.getFileSize() + fileInfo.getDataShards() - 1) / fileInfo.getDataShards()
+                : fileInfo.getFileSize();
+            List<String> ordered = dstores.entrySet().stream()
+                .filter(entry -> entry.getValue().isConnected() && !fileInfo.hasReplica(entry.getValue().getId()))
+                .filter(entry -> holdingContent.contains(entry.getKey()) || entry.getValue().canHold(replicaBytes))
+                .sorted(Comparator.comparing((Map.Entry<String, DstoreInfo> entry) -> !holdingContent.contains(entry.getKey()))
+                    .thenComparing(Map.Entry::getValue, EMPTIEST_FIRST)
+                    .thenComparingInt(entry -> dstoreFileIndex.count(entry.getKey())))
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+            // Away from the failure domains of the surviving replicas where possible
+            List<String> targets = spreadOverDomains(ordered, fileInfo.requiredHolders(replicationFactor) - fileInfo.replicaCount(),
+                domainsOf(connectedReplicas(replicaAddresses(fileInfo))));
+            targets.forEach(dstoreId -> dstores.get(dstoreId).reserve(replicaBytes));
+            if (targets.isEmpty()) {
+                System.out.println("No Dstore available to receive a new replica of " + filename);
+                continue;
+            }
+
+            List<String> endpoints = targets.stream()
+                .map(dstoreId -> dstores.get(dstoreId).getEndpoint())
+                .collect(Collectors.toList());
+            if (fileInfo.isErasureCoded()) {
+                // Only the lost shards are rebuilt, from any k of the surviving ones
+                List<String> live = connectedReplicas(replicaAddresses(fileInfo)).stream()
+                    .map(dstoreId -> dstores.get(dstoreId).getEndpoint())
+                    .collect(Collectors.toList());
+                if (live.size() < fileInfo.getDataShards()) {
+                    System.out.println("Only " + live.size() + " shards of " + filename + " left, cannot rebuild");
+                    continue;
+                }
+                sendToDstore(source, "EC_REBUILD " + filename + " " + endpoints.size() + " " + String.join(" ", endpoints) + " " + String.join(" ", live));
+                System.out.println("Asked " + source + " to rebuild shards of " + filename + " on " + targets);
+                continue;
+            }
+            sendRebalance(source, "REBALANCE 1 " + filename + " " + endpoints.size() + " " + String.join(" ", endpoints) + " 0", Collections.emptyList());
+            System.out.println("Asked " + source + " to copy " + filename + " to " + targets);
+        }
     }
     
     
     
+    private Set<String> dstoresHoldingDuplicates(String filename) {
+        Set<String> holders = new HashSet<>();
+        for (String duplicate : contentIndex.duplicatesOf(filename)) {
+            FileInfo fileInfo = fileIndex.get(duplicate);
+            if (fileInfo != null) {
+                holders.addAll(replicaAddresses(fileInfo));
+            }
+        }
+        return holders;
+    }
+
     private void handleClientRequest(Socket socket, String[] commandParts, PrintWriter writer, String address) {
         if (commandParts.length == 0) {
             writer.println("ERROR_EMPTY_COMMAND");
@@ -172,8 +528,180 @@ public class Controller {
         if (!commandParts[0].equals("RELOAD")) {
             resetUsedDstores(address);
         }
-    
+
+        String misrouted = misroutedFilename(commandParts);
+        if (misrouted != null) {
+            writer.println("ERROR_WRONG_PARTITION " + partitionMap.ownerPort(misrouted));
+            System.out.println("Redirected " + commandParts[0] + " for " + misrouted + " from client " + address);
+            return;
+        }
+
+        String client = clientIds.computeIfAbsent(address, this::defaultClientId);
+        if (commandParts[0].equals("CLIENT")) {
+            // CLIENT <name> [zone] accounts this connection to a named client, e.g. a tenant spread over several hosts
+            if (commandParts.length < 2) {
+                writer.println("ERROR_MALFORMED_COMMAND");
+            } else {
+                clientIds.put(address, commandParts[1]);
+                if (commandParts.length > 2) {
+                    clientZones.put(address, commandParts[2]);
+                }
+                writer.println("CLIENT_OK " + commandParts[1]);
+            }
+            return;
+        }
+        if (commandParts[0].equals("STATS")) {
+            writer.println(statsLine());
+            return;
+        }
+        long retryAfter = clientAccounts.admit(client, commandParts[0]);
+        if (retryAfter > 0) {
+            writer.println("ERROR_BUSY " + retryAfter);
+            System.out.println("Client " + client + " over its request rate, rejected " + commandParts[0]);
+            return;
+        }
+
+        Admission admission = admissionFor(commandParts[0]);
+        long ticket = admission == null ? 0 : admission.enter();
+        if (ticket < 0) {
+            writer.println("ERROR_BUSY " + admission.retryAfterMs());
+            System.out.println("Busy, rejected " + commandParts[0] + " from client " + address);
+            return;
+        }
+        try {
+            // Requests from all clients share the workers in proportion to their weights
+            if (fairScheduler == null) {
+                dispatchClientRequest(socket, commandParts, writer, address);
+            } else {
+                fairScheduler.run(client, () -> dispatchClientRequest(socket, commandParts, writer, address));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            boolean held = commandParts[0].equals("STORE") && commandParts.length >= 3 && holdStoreTicket(commandParts[1], ticket);
+            if (admission != null && !held) {
+                admission.exit(ticket);
+            }
+        }
+    }
+
+    private String defaultClientId(String address) {
+        return CLIENT_KEY.equals("connection") ? address : address.substring(0, address.lastIndexOf(':'));
+    }
+
+    private static Map<String, String> parseZones(String spec) {
+        Map<String, String> zones = new HashMap<>();
+        if (spec != null && !spec.trim().isEmpty()) {
+            for (String entry : spec.split(",")) {
+                String[] clientAndZone = entry.trim().split("=");
+                zones.put(clientAndZone[0].trim(), clientAndZone[1].trim());
+            }
+        }
+        return zones;
+    }
+
+    private static Map<String, Integer> parseWeights(String spec) {
+        Map<String, Integer> weights = new HashMap<>();
+        if (spec != null && !spec.trim().isEmpty()) {
+            for (String entry : spec.split(",")) {
+                String[] clientAndWeight = entry.trim().split("=");
+                weights.put(clientAndWeight[0].trim(), Integer.parseInt(clientAndWeight[1].trim()));
+            }
+        }
+        return weights;
+    }
+
+    private void evictIdleClients() {
+        int evicted = clientAccounts.evictIdle(CLIENT_IDLE_MS);
+        if (evicted > 0) {
+            System.out.println("Forgot " + evicted + " idle client accounts");
+        }
+    }
+
+    // Client a connection is accounted to, as handleClientRequest filed it
+    private String clientOf(String address) {
+        return clientIds.getOrDefault(address, defaultClientId(address));
+    }
+
+    private String statsLine() {
+        StringBuilder stats = new StringBuilder("STATS");
+        for (Admission admission : admissions.values()) {
+            stats.append(' ').append(admission.describe());
+        }
+        stats.append(clientAccounts.describe());
+        dstores.values().forEach(dstoreInfo -> stats.append(" dstore=").append(dstoreInfo.getPort())
+            .append(' ').append(dstoreInfo.describeCapacity()));
+        return stats.toString();
+    }
+
+    private Admission admissionFor(String command) {
+        switch (command) {
+            case "STORE":
+            case "STORE_BATCH":
+                return admissions.get("store");
+            case "LOAD":
+            case "RELOAD":
+            case "LOAD_BATCH":
+                return admissions.get("load");
+            case "REMOVE":
+            case "REMOVE_BATCH":
+                return admissions.get("remove");
+            case "LIST":
+                return admissions.get("list");
+            default:
+                return null;
+        }
+    }
+
+    // Keeps a STORE's admission slot until the store completes, or at most the timeout
+    private boolean holdStoreTicket(String filename, long ticket) {
+        FileInfo fileInfo = fileIndex.get(filename);
+        if (fileInfo == null || fileInfo.state != FileInfo.STORE_IN_PROGRESS) {
+            return false;
+        }
+        Long previous = storeTickets.put(filename, ticket);
+        if (previous != null) {
+            admissions.get("store").exit(previous);
+        }
+        scheduler.schedule(() -> releaseStoreTicket(filename, ticket), timeout, TimeUnit.MILLISECONDS);
+        // The ACKs may have beaten us here
+        if (fileInfo.state != FileInfo.STORE_IN_PROGRESS) {
+            releaseStoreTicket(filename, ticket);
+        }
+        return true;
+    }
+
+    private void releaseStoreTicket(String filename, long ticket) {
+        if (storeTickets.remove(filename, ticket)) {
+            admissions.get("store").exit(ticket);
+        }
+    }
+
+    private void dispatchClientRequest(Socket socket, String[] commandParts, PrintWriter writer, String address) {
+        // The leadership may have been lost while the request waited for a worker
+        if (!leader) {
+            writer.println("ERROR_NOT_LEADER " + leaderPort);
+            return;
+        }
         switch (commandParts[0]) {
+            case "PARTITION_MAP":
+                writer.println("PARTITION_MAP " + partitionMap.toMessage());
+                break;
+
+            case "THROTTLE":
+                // THROTTLE bytesPerSec maxTransfers [yieldMs] is passed on to every Dstore's background transfers
+                if (commandParts.length < 3) {
+                    writer.println("ERROR_MALFORMED_COMMAND");
+                } else {
+                    String message = String.join(" ", commandParts);
+                    for (String dstoreId : dstores.keySet()) {
+                        sendToDstore(dstoreId, message);
+                    }
+                    writer.println("THROTTLE_OK " + dstores.size());
+                    System.out.println("Relayed " + message + " to " + dstores.size() + " Dstores");
+                }
+                break;
+
             case "LIST":
                 System.out.println("List received from client: " + address);
                 processListCommand(writer);
@@ -214,6 +742,21 @@ public class Controller {
                     handleRemoveCommand(commandParts, writer, address);
                 }
                 break;
+
+            case "STORE_BATCH":
+                System.out.println("Store batch received from client: " + address);
+                handleStoreBatchCommand(commandParts, writer, address);
+                break;
+
+            case "LOAD_BATCH":
+                System.out.println("Load batch received from client: " + address);
+                processLoadBatchCommand(commandParts, writer, address);
+                break;
+
+            case "REMOVE_BATCH":
+                System.out.println("Remove batch received from client: " + address);
+                handleRemoveBatchCommand(commandParts, writer, address);
+                break;
     
             default:
                 writer.println("ERROR_UNKNOWN_COMMAND");
@@ -222,6 +765,39 @@ public class Controller {
         }
     }
     
+    // Returns the first filename in the command that another Controller owns, or null
+    private String misroutedFilename(String[] commandParts) {
+        if (partitionMap.size() == 1) return null;
+        int first;
+        int stride;
+        switch (commandParts[0]) {
+            case "STORE":
+            case "LOAD":
+            case "RELOAD":
+            case "REMOVE":
+                first = 1;
+                stride = commandParts.length;
+                break;
+            case "STORE_BATCH":
+                first = 2;
+                stride = 2;
+                break;
+            case "LOAD_BATCH":
+            case "REMOVE_BATCH":
+                first = 2;
+                stride = 1;
+                break;
+            default:
+                return null;
+        }
+        for (int i = first; i < commandParts.length; i += stride) {
+            if (partitionMap.ownerIndex(commandParts[i]) != partitionMap.indexOf(port)) {
+                return commandParts[i];
+            }
+        }
+        return null;
+    }
+
     private void resetUsedDstores(String clientAddress) {
         // Clears last used Dstore information
         clientToLastDstoreMap.remove(clientAddress);
@@ -241,29 +817,40 @@ public class Controller {
             return;
         }
     
-        // Check if the file exists in the index
-        FileInfo fileInfo = fileIndex.get(filename);
-        if (fileInfo == null) {
-            writer.println("ERROR_FILE_DOES_NOT_EXIST");
-            System.out.println("File not found: " + filename);
+        List<String> affectedDstores;
+        Lock lock = fileLocks.get(filename);
+        lock.lock();
+        try {
+            // Check if the file exists in the index and is not already being removed
+            FileInfo fileInfo = fileIndex.get(filename);
+            if (fileInfo == null || fileInfo.state == FileInfo.REMOVE_IN_PROGRESS) {
+                writer.println("ERROR_FILE_DOES_NOT_EXIST");
+                System.out.println("File not found: " + filename);
+                return;
+            }
+
+            // Mark the file as "remove in progress"
+            fileInfo.state = FileInfo.REMOVE_IN_PROGRESS;
+            indexReplicator.publish(filename);
+
+            // Track the client that requested the removal
+            removefileToClientAddress.put(filename, clientAddress);
+
+            // Get Dstores that should remove the file
+            affectedDstores = replicaAddresses(fileInfo);
+            System.out.println("Dstores expected to remove file: " + affectedDstores);
+
+            // Add to the pendingRemoveAcks map
+            pendingRemoveAcks.put(filename, new ConcurrentSkipListSet<>(affectedDstores));
+        } finally {
+            lock.unlock();
+        }
+
+        if (affectedDstores.isEmpty()) {
+            completeRemove(filename);
             return;
         }
     
-        // Mark the file as "remove in progress"
-        fileInfo.status = "remove in progress";
-    
-        // Track the client that requested the removal
-        removefileToClientAddress.put(filename, clientAddress);
-    
-        // Get Dstores that should remove the file
-        Set<String> affectedDstores = fileInfo.dstores;
-        System.out.println("Dstores expected to remove file: " + affectedDstores);
-    
-        ConcurrentSkipListSet<String> pendingAckSet = new ConcurrentSkipListSet<>(affectedDstores);
-    
-        // Add to the pendingRemoveAcks map
-        pendingRemoveAcks.put(filename, pendingAckSet);
-    
         // Send the remove command to all affected Dstores
         for (String dstore : affectedDstores) {
             DstoreInfo dstoreInfo = dstores.get(dstore);
@@ -302,6 +889,12 @@ public class Controller {
         }, timeout);
     }
     
+    private void handleRemoveAcks(List<String> filenames, String dstoreAddress) {
+        for (String filename : filenames) {
+            handleRemoveAck(filename, dstoreAddress);
+        }
+    }
+
     private void handleRemoveAck(String filename, String dstoreAddress) {
         // Retrieve the set of expected acks for this file
         ConcurrentSkipListSet<String> acks = pendingRemoveAcks.get(filename);
@@ -312,42 +905,531 @@ public class Controller {
     
             // Check if all acknowledgments have been received
             if (acks.isEmpty()) {
-                // Remove the file from the index and clear pending acks
-                fileIndex.remove(filename);
-                pendingRemoveAcks.remove(filename);
-    
-                // Find the client associated with this file removal
-                String clientAddress = removefileToClientAddress.remove(filename);
-                if (clientAddress != null) {
-                    Socket clientSocket = clientConnections.get(clientAddress);
-                    if (clientSocket != null && !clientSocket.isClosed()) {
-                        try {
-                            PrintWriter clientWriter = new PrintWriter(clientSocket.getOutputStream(), true);
-                            clientWriter.println("REMOVE_COMPLETE");
-                            System.out.println("Remove operation completed for file " + filename);
-                        } catch (IOException e) {
-                            System.out.println("Error sending REMOVE_COMPLETE to client: " + e.getMessage());
-                        }
-                    } else {
-                        System.out.println("Client socket unavailable or already closed: " + clientAddress);
-                    }
+                completeRemove(filename);
+            }
+        } else {
+            System.out.println("Received REMOVE_ACK for non-existent file: " + filename);
+        }
+    }
+
+    private void completeRemove(String filename) {
+        Lock lock = fileLocks.get(filename);
+        lock.lock();
+        try {
+            // Several last ACKs may race here; only the first one completes the removal
+            FileInfo removed = fileIndex.get(filename);
+            if (removed == null || removed.state != FileInfo.REMOVE_IN_PROGRESS) {
+                return;
+            }
+
+            // Remove the file from the index and clear pending acks
+            fileIndex.remove(filename);
+            contentIndex.forget(filename);
+            clientAccounts.removed(filename);
+            dstoreFileIndex.removeFile(filename, replicaAddresses(removed));
+            pendingRemoveAcks.remove(filename);
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Remove operation completed for file " + filename);
+
+        // Files removed as part of a REMOVE_BATCH are reported once the whole batch is done
+        PendingBatch batch = fileToPendingBatch.remove(filename);
+        if (batch != null) {
+            if (batch.complete(filename)) {
+                notifyClient(batch.getClientAddress(), batch.getCompletionToken());
+            }
+            return;
+        }
+
+        // Find the client associated with this file removal
+        String clientAddress = removefileToClientAddress.remove(filename);
+        if (clientAddress != null) {
+            notifyClient(clientAddress, "REMOVE_COMPLETE");
+        }
+    }
+
+    private void handleRemoveBatchCommand(String[] commandParts, PrintWriter writer, String clientAddress) {
+        List<String> filenames = parseBatch(commandParts);
+        if (filenames.isEmpty()) {
+            writer.println("ERROR_MALFORMED_COMMAND");
+            return;
+        }
+
+        if (dstores.size() < replicationFactor) {
+            writer.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        // Group the files by Dstore so that each Dstore gets a single REMOVE_BATCH
+        PendingBatch batch = new PendingBatch(clientAddress, "REMOVE_BATCH_COMPLETE", filenames);
+        Map<String, List<String>> filesPerDstore = new HashMap<>();
+        List<String> alreadyGone = new ArrayList<>();
+        List<Lock> locks = fileLocks.getAll(filenames);
+        locks.forEach(Lock::lock);
+        try {
+            for (String filename : filenames) {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo == null || !fileInfo.isStoreComplete()) {
+                    writer.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
+                    return;
+                }
+            }
+
+            for (String filename : filenames) {
+                FileInfo fileInfo = fileIndex.get(filename);
+                fileInfo.state = FileInfo.REMOVE_IN_PROGRESS;
+                indexReplicator.publish(filename);
+                fileToPendingBatch.put(filename, batch);
+                List<String> holders = replicaAddresses(fileInfo);
+                if (holders.isEmpty()) {
+                    alreadyGone.add(filename);
+                    continue;
+                }
+                pendingRemoveAcks.put(filename, new ConcurrentSkipListSet<>(holders));
+                for (String dstore : holders) {
+                    filesPerDstore.computeIfAbsent(dstore, k -> new ArrayList<>()).add(filename);
+                }
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+
+        for (Map.Entry<String, List<String>> entry : filesPerDstore.entrySet()) {
+            List<String> dstoreFiles = entry.getValue();
+            sendToDstore(entry.getKey(), "REMOVE_BATCH " + dstoreFiles.size() + " " + String.join(" ", dstoreFiles));
+        }
+
+        for (String filename : alreadyGone) {
+            completeRemove(filename);
+        }
+    }
+
+    private void sendToDstore(String dstoreId, String message) {
+        DstoreInfo dstoreInfo = dstores.get(dstoreId);
+        if (dstoreInfo == null || dstoreInfo.getSocket() == null) {
+            System.out.println("Error: Dstore info not found for " + dstoreId);
+            return;
+        }
+        try {
+            PrintWriter dstoreWriter = new PrintWriter(dstoreInfo.getSocket().getOutputStream(), true);
+            dstoreWriter.println(message);
+        } catch (IOException e) {
+            System.out.println("Error sending command to Dstore: " + dstoreId + ". " + e.getMessage());
+        }
+    }
+
+    private void notifyClient(String clientAddress, String message) {
+        Socket clientSocket = clientConnections.get(clientAddress);
+        if (clientSocket != null && !clientSocket.isClosed()) {
+            try {
+                PrintWriter clientWriter = new PrintWriter(clientSocket.getOutputStream(), true);
+                clientWriter.println(message);
+                System.out.println("Sent " + message + " to client " + clientAddress);
+            } catch (IOException e) {
+                System.out.println("Error sending " + message + " to client: " + e.getMessage());
+            }
+        } else {
+            System.out.println("Client socket unavailable or already closed: " + clientAddress);
+        }
+    }
+    
+    
+    
+    
+    
+    
+
+
+
+
+
+
+    ///////////////////////////////// LEADERSHIP ////////////////////////////////////////////////////////////////////////////////////////
+
+    // Renews or contends for the partition's lease, promoting or stepping down as it changes hands
+    private void checkLeadership() {
+        int holder;
+        try {
+            holder = lease.tryAcquire();
+        } catch (IOException e) {
+            System.out.println("Error checking the leadership lease: " + e.getMessage());
+            standDownIfExpired();
+            return;
+        }
+        if (holder == port) {
+            if (!leader) {
+                promote();
+            }
+            return;
+        }
+        if (leader) {
+            stepDown();
+        }
+        leaderPort = holder;
+        if (!following) {
+            following = true;
+            new Thread(() -> followLeader(holder)).start();
+        }
+    }
+
+    private synchronized void promote() {
+        Socket socket = followSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing the index stream: " + e.getMessage());
+            }
+        }
+
+        // Files come back complete but with no replicas; each Dstore's replicas are re-attached when it joins
+        fileIndex.clear();
+        contentIndex.clear();
+        recoveredReplicas.clear();
+        for (Map.Entry<String, StandbyEntry> entry : standbyIndex.entrySet()) {
+            StandbyEntry standby = entry.getValue();
+            // An erasure-coded file keeps its shape, so its shard holders are not taken for whole replicas
+            fileIndex.put(entry.getKey(), new FileInfo(FileInfo.STORE_COMPLETE, standby.fileSize, standby.dataShards, standby.parityShards));
+            for (String endpoint : standby.endpoints) {
+                recoveredReplicas.computeIfAbsent(endpoint, k -> ConcurrentHashMap.newKeySet()).add(entry.getKey());
+            }
+        }
+        standbyIndex.clear();
+        leaderPort = port;
+        leader = true;
+        System.out.println("Took over as leader with " + fileIndex.size() + " files from the standby index");
+    }
+
+    // A leader whose lease has run out may already have a successor, so it stops acting as leader
+    private void standDownIfExpired() {
+        if (leader && !lease.isHeld()) {
+            System.out.println("Leadership lease expired without renewal");
+            stepDown();
+        }
+    }
+
+    private synchronized void stepDown() {
+        if (!leader) {
+            return;
+        }
+        System.out.println("Lost the leadership lease, stepping down");
+        leader = false;
+        // Keep the index as a standby copy, in case this Controller wins the lease back before following anyone
+        standbyIndex.clear();
+        for (String filename : fileIndex.keySet()) {
+            String[] record = indexRecord(filename).split(" ");
+            if (record[0].equals("INDEX_PUT")) {
+                standbyIndex.put(filename, new StandbyEntry(record));
+            }
+        }
+        // Dropping the Dstores makes them fail over to the new leader
+        for (DstoreInfo dstoreInfo : dstores.values()) {
+            try {
+                dstoreInfo.getSocket().close();
+            } catch (IOException e) {
+                System.out.println("Error closing Dstore socket: " + e.getMessage());
+            }
+        }
+    }
+
+    // Standby side: tails the leader's index stream into standbyIndex until the stream ends
+    private void followLeader(int leaderPort) {
+        try (Socket socket = new Socket("localhost", leaderPort);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+             PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
+            followSocket = socket;
+            writer.println("FOLLOW");
+            standbyIndex.clear();
+            String line;
+            while (!leader && (line = reader.readLine()) != null) {
+                applyIndexRecord(line.split(" "));
+            }
+        } catch (IOException e) {
+            System.out.println("Index stream from leader " + leaderPort + " unavailable: " + e.getMessage());
+        } finally {
+            followSocket = null;
+            following = false;
+        }
+    }
+
+    private void applyIndexRecord(String[] parts) {
+        switch (parts[0]) {
+            case "INDEX_PUT":
+                // INDEX_PUT f size k m n e1 ... en
+                standbyIndex.put(parts[1], new StandbyEntry(parts));
+                break;
+            case "INDEX_DEL":
+                standbyIndex.remove(parts[1]);
+                break;
+            case "INDEX_SYNCED":
+                System.out.println("Standby in sync with leader, " + standbyIndex.size() + " files");
+                break;
+            case "ERROR_NOT_LEADER":
+                break;
+            default:
+                System.out.println("Unknown index record: " + String.join(" ", parts));
+                break;
+        }
+    }
+
+    // Leader side: streams the index to a standby until it disconnects
+    private void serveFollower(BufferedReader reader, PrintWriter writer, String address) throws IOException {
+        System.out.println("Standby Controller connected: " + address);
+        indexReplicator.addFollower(writer, fileIndex.keySet());
+        try {
+            while (reader.readLine() != null) {
+                // Standbys only listen
+            }
+        } finally {
+            indexReplicator.removeFollower(writer);
+            System.out.println("Standby Controller disconnected: " + address);
+        }
+    }
+
+    // The replicated form of a file's entry; only complete files survive a failover. Shard order is
+    // not needed here: each shard holder keeps the placement of all k + m shards in its own metadata.
+    private String indexRecord(String filename) {
+        FileInfo fileInfo = fileIndex.get(filename);
+        if (fileInfo == null || !fileInfo.isStoreComplete()) {
+            return "INDEX_DEL " + filename;
+        }
+        List<String> endpoints = new ArrayList<>();
+        for (String address : replicaAddresses(fileInfo)) {
+            DstoreInfo dstoreInfo = dstores.get(address);
+            if (dstoreInfo != null) {
+                endpoints.add(dstoreInfo.getEndpoint());
+            }
+        }
+        return "INDEX_PUT " + filename + " " + fileInfo.getFileSize() + " " + fileInfo.getDataShards() + " " + fileInfo.getParityShards()
+            + " " + endpoints.size()
+            + (endpoints.isEmpty() ? "" : " " + String.join(" ", endpoints));
+    }
+
+    // After a failover, gives a rejoining Dstore back the replicas the old leader knew it held
+    private void attachRecoveredReplicas(String address, DstoreInfo dstoreInfo) {
+        Set<String> filenames = recoveredReplicas.remove(dstoreInfo.getEndpoint());
+        if (filenames == null) return;
+        for (String filename : filenames) {
+            Lock lock = fileLocks.get(filename);
+            lock.lock();
+            try {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo != null && fileInfo.isStoreComplete()) {
+                    fileInfo.addReplica(dstoreInfo.getId());
+                    dstoreFileIndex.add(address, filename);
+                    indexReplicator.publish(filename);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        System.out.println("Re-attached " + filenames.size() + " replicas to Dstore " + address);
+    }
+
+    // INVENTORY n f1 s1 ... fn sn, one chunk of what a joining Dstore already holds
+    private void handleInventory(String address, DstoreInfo dstoreInfo, String[] parts) {
+        Set<String> reported = dstoreInventories.computeIfAbsent(address, k -> ConcurrentHashMap.newKeySet());
+        reconcileReported(address, dstoreInfo, parts, System.currentTimeMillis() < adoptUntil, reported);
+    }
+
+    // Replicas the index gives this Dstore but that it no longer has are detached and re-replicated
+    private void finishInventory(String address) {
+        Set<String> reported = dstoreInventories.remove(address);
+        DstoreInfo dstoreInfo = dstores.get(address);
+        if (dstoreInfo == null) return;
+
+        // Shards live outside the Dstore's file store and are not part of its inventory
+        List<String> expected = dstoreFileIndex.filesOn(address).stream()
+            .filter(filename -> !isErasureCoded(filename))
+            .collect(Collectors.toList());
+        List<String> missing = detachMissing(address, dstoreInfo, expected, reported);
+        // While adopting, other Dstores may still be about to report copies of these files
+        if (!missing.isEmpty() && System.currentTimeMillis() >= adoptUntil) {
+            scheduler.execute(() -> reReplicate(missing));
+        }
+    }
+
+    /**
+     * Reconciles "f1 s1 ... fn sn" (from parts[2] on) reported by a Dstore against the index.
+     * Matching copies become replicas again; copies of unknown, resized or already fully
+     * replicated files, and whole copies of erasure-coded ones, are deleted from the Dstore
+     * with REMOVE_COPIES, which leaves any shard it holds alone. Files being removed get a
+     * full REMOVE_BATCH, whose ACKs count towards the removal. Unknown files are adopted
+     * instead when adopt is set.
+     */
+    private void reconcileReported(String address, DstoreInfo dstoreInfo, String[] parts, boolean adopt, Set<String> reported) {
+        List<String> attached = new ArrayList<>();
+        List<String> storing = new ArrayList<>();
+        List<String> stale = new ArrayList<>();
+        List<String> removing = new ArrayList<>();
+        for (int i = 2; i + 1 < parts.length; i += 2) {
+            String filename = parts[i];
+            long size;
+            try {
+                size = Long.parseLong(parts[i + 1]);
+            } catch (NumberFormatException e) {
+                System.out.println("Malformed file entry from " + address + ": " + filename);
+                continue;
+            }
+            reported.add(filename);
+
+            Lock lock = fileLocks.get(filename);
+            lock.lock();
+            try {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo == null && adopt) {
+                    fileInfo = new FileInfo(FileInfo.STORE_COMPLETE, size);
+                    fileIndex.put(filename, fileInfo);
+                }
+                if (fileInfo != null && fileInfo.state == FileInfo.REMOVE_IN_PROGRESS) {
+                    removing.add(filename);
+                } else if (fileInfo == null || fileInfo.getFileSize() != size) {
+                    stale.add(filename);
+                } else if (fileInfo.state == FileInfo.STORE_IN_PROGRESS) {
+                    storing.add(filename);
+                } else if (fileInfo.isErasureCoded()) {
+                    // A whole copy left behind by the encoding coordinator; the shards are the file now
+                    stale.add(filename);
+                } else if (fileInfo.hasReplica(dstoreInfo.getId())) {
+                    // Already attached, e.g. after a failover
+                } else if (fileInfo.replicaCount() < replicationFactor) {
+                    fileInfo.addReplica(dstoreInfo.getId());
+                    dstoreFileIndex.add(address, filename);
+                    indexReplicator.publish(filename);
+                    attached.add(filename);
+                } else {
+                    stale.add(filename);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // A STORE whose ACK was lost on the way counts as acknowledged now
+        if (!storing.isEmpty()) {
+            handleStoreAcks(storing, dstoreInfo.getSocket());
+        }
+        if (!stale.isEmpty()) {
+            sendToDstore(address, "REMOVE_COPIES " + stale.size() + " " + String.join(" ", stale));
+        }
+        if (!removing.isEmpty()) {
+            sendToDstore(address, "REMOVE_BATCH " + removing.size() + " " + String.join(" ", removing));
+        }
+        System.out.println("Reconciled files from " + address + ": attached " + attached.size() + ", completed " + storing.size()
+            + ", dropping " + stale.size() + ", removing " + removing.size());
+    }
+
+    private boolean isErasureCoded(String filename) {
+        FileInfo fileInfo = fileIndex.get(filename);
+        return fileInfo != null && fileInfo.isErasureCoded();
+    }
+
+    // Detaches the expected files the Dstore did not report and returns them
+    private List<String> detachMissing(String address, DstoreInfo dstoreInfo, Collection<String> expected, Set<String> reported) {
+        List<String> missing = new ArrayList<>();
+        for (String filename : expected) {
+            if (reported != null && reported.contains(filename)) continue;
+            Lock lock = fileLocks.get(filename);
+            lock.lock();
+            try {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo != null && fileInfo.isStoreComplete() && fileInfo.hasReplica(dstoreInfo.getId())) {
+                    fileInfo.removeReplica(dstoreInfo.getId());
+                    dstoreFileIndex.remove(address, filename);
+                    indexReplicator.publish(filename);
+                    missing.add(filename);
                 }
+            } finally {
+                lock.unlock();
             }
-        } else {
-            System.out.println("Received REMOVE_ACK for non-existent file: " + filename);
         }
+        if (!missing.isEmpty()) {
+            System.out.println("Dstore " + address + " is missing " + missing.size() + " files it should hold");
+        }
+        return missing;
     }
-    
-    
-    
-    
-    
-    
 
+    ///////////////////////////////// ANTI-ENTROPY //////////////////////////////////////////////////////////////////////////////////////
+
+    // Starts a Merkle comparison with every Dstore that is not already in one, giving up on those gone unanswered
+    private void startConsistencyChecks() {
+        if (!leader) return;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, DstoreInfo> entry : dstores.entrySet()) {
+            String address = entry.getKey();
+            MerkleCheck pending = merkleChecks.get(address);
+            if (pending != null && now - pending.startedAt >= MERKLE_TIMEOUT_MS && merkleChecks.remove(address, pending)) {
+                System.out.println("Merkle check of " + address + " got no answer within " + MERKLE_TIMEOUT_MS + " ms, starting over");
+            }
+            if (!entry.getValue().isConnected() || dstoreInventories.containsKey(address) || merkleChecks.containsKey(address)) {
+                continue;
+            }
+            MerkleCheck check = new MerkleCheck();
+            for (String filename : dstoreFileIndex.filesOn(address)) {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo != null && !fileInfo.isErasureCoded()) {
+                    check.expectedFiles.put(filename, fileInfo.getFileSize());
+                    check.expected.add(filename, fileInfo.getFileSize());
+                }
+            }
+            merkleChecks.put(address, check);
+            sendToDstore(address, "MERKLE_QUERY 0 0");
+        }
+    }
 
+    // MERKLE_HASHES level i1 h1 ... in hn: descend into the nodes that differ from the index's view
+    private void handleMerkleHashes(String address, String[] parts) {
+        MerkleCheck check = merkleChecks.get(address);
+        if (check == null) return;
+        int level = Integer.parseInt(parts[1]);
+        List<Integer> differing = new ArrayList<>();
+        for (int i = 2; i + 1 < parts.length; i += 2) {
+            int index = Integer.parseInt(parts[i]);
+            if (Long.parseUnsignedLong(parts[i + 1], 16) != check.expected.hash(level, index)) {
+                differing.add(index);
+            }
+        }
 
+        if (differing.isEmpty()) {
+            merkleChecks.remove(address);
+            if (level == 0) {
+                System.out.println("Dstore " + address + " is consistent with the index");
+            }
+            return;
+        }
+        StringBuilder next = new StringBuilder();
+        if (level == MerkleTree.DEPTH) {
+            check.leaves = new HashSet<>(differing);
+            next.append("MERKLE_LEAVES ").append(differing.size());
+            for (int index : differing) {
+                next.append(" ").append(index);
+            }
+        } else {
+            next.append("MERKLE_QUERY ").append(level + 1);
+            for (int index : differing) {
+                next.append(" ").append(2 * index).append(" ").append(2 * index + 1);
+            }
+        }
+        sendToDstore(address, next.toString());
+    }
 
+    // MERKLE_FILES n f1 s1 ... fn sn: what the Dstore holds in the differing leaves
+    private void handleMerkleFiles(String address, DstoreInfo dstoreInfo, String[] parts) {
+        MerkleCheck check = merkleChecks.remove(address);
+        if (check == null || check.leaves == null) return;
 
+        Set<String> reported = new HashSet<>();
+        reconcileReported(address, dstoreInfo, parts, false, reported);
+        List<String> expected = check.expectedFiles.keySet().stream()
+            .filter(filename -> check.leaves.contains(MerkleTree.bucket(filename)))
+            .collect(Collectors.toList());
+        List<String> missing = detachMissing(address, dstoreInfo, expected, reported);
+        if (!missing.isEmpty()) {
+            scheduler.execute(() -> reReplicate(missing));
+        }
+        System.out.println("Merkle check of " + address + " found " + check.leaves.size() + " differing leaves");
+    }
 
     ///////////////////////////////// JOIN //////////////////////////////////////////////////////////////////////////////////////////////////
 
@@ -360,7 +1442,9 @@ public class Controller {
         int listeningPort = Integer.parseInt(parts[1]);  // Convert port string to integer
         String dstoreID = getDstoreID(dstoreSocket);
     
-        dstores.put(dstoreID, new DstoreInfo(dstoreSocket, listeningPort));
+        int id = allocateDstoreId();
+        dstoreAddressById.put(id, dstoreID);
+        dstores.put(dstoreID, new DstoreInfo(dstoreSocket, listeningPort, id, LOAD_EXPIRY_MS));
         System.out.println("Dstore joined from port " + listeningPort + " with ID: " + dstoreID);
     }
     
@@ -378,7 +1462,7 @@ public class Controller {
     
         // Retrieve all filenames that are marked as "store complete"
         String fileList = fileIndex.entrySet().stream()
-            .filter(entry -> entry.getValue().status.equals("store complete"))
+            .filter(entry -> entry.getValue().isStoreComplete())
             .map(Map.Entry::getKey)
             .collect(Collectors.joining(" "));
     
@@ -397,26 +1481,111 @@ public class Controller {
     ////////////////////////////////// STORE /////////////////////////////////////////////////////////////////////////////////
 
     
-    private void handleStoreAck(String filename, Socket socket) {
+    private void handleStoreAcks(List<String> filenames, Socket socket) {
         String dstoreId = socket.getRemoteSocketAddress().toString();
-        System.out.println("Received STORE_ACK for " + filename + " from Dstore " + dstoreId);
+        System.out.println("Received " + filenames.size() + " STORE_ACK(s) from Dstore " + dstoreId);
+        DstoreInfo dstoreInfo = dstores.get(dstoreId);
+        if (dstoreInfo == null) {
+            System.out.println("Ignoring STORE_ACK(s) from removed Dstore " + dstoreId);
+            return;
+        }
 
-        FileInfo fileInfo = fileIndex.get(filename);
-        fileInfo.dstores.add(dstoreId);
+        // Apply the whole batch to the index first, then notify clients
+        List<String> completed = new ArrayList<>();
+        List<PendingBatch> ackedBatches = new ArrayList<>();
+        for (String filename : filenames) {
+            Lock lock = fileLocks.get(filename);
+            lock.lock();
+            try {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo == null) {
+                    System.out.println("Received STORE_ACK for unknown file: " + filename);
+                    continue;
+                }
+                fileInfo.addReplica(dstoreInfo.getId());
+                dstoreFileIndex.add(dstoreId, filename);
+
+                // Check if we have received enough ACKs
+                if (fileInfo.replicaCount() >= fileInfo.requiredHolders(replicationFactor) && fileInfo.state == FileInfo.STORE_IN_PROGRESS) {
+                    // The files of a STORE_BATCH stay in progress until every one of them is fully ACKed
+                    PendingBatch batch = fileToPendingBatch.get(filename);
+                    if (batch == null) {
+                        fileInfo.state = FileInfo.STORE_COMPLETE;
+                        completed.add(filename);
+                    } else if (batch.complete(filename)) {
+                        ackedBatches.add(batch);
+                    }
+                }
+                if (fileInfo.isStoreComplete()) {
+                    indexReplicator.publish(filename);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // The Dstore may have been declared dead meanwhile and its ID handed out again
+        if (dstores.get(dstoreId) != dstoreInfo) {
+            for (String filename : filenames) {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo != null) fileInfo.removeReplica(dstoreInfo.getId());
+                dstoreFileIndex.remove(dstoreId, filename);
+                indexReplicator.publish(filename);
+            }
+            return;
+        }
 
-        System.out.println("DEBUG: Dstores that have acknowledged storing " + filename + ": " + fileInfo.dstores);
-        System.out.println("rep factor: " + replicationFactor);
+        // The coordinator of an erasure-coded store has the whole file now and can encode it
+        for (String filename : filenames) {
+            String placement = ecPlacements.remove(filename);
+            if (placement != null) {
+                sendToDstore(dstoreId, "EC_ENCODE " + filename + " " + placement);
+                // Encoding and pushing the shards get a timeout of their own
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (fileInfo != null) {
+                    expireStoreAfterTimeout(filename, fileInfo);
+                }
+            }
+        }
 
-        // Check if we have received enough ACKs
-        if (fileInfo.dstores.size() >= replicationFactor) {
-            fileInfo.status = "store complete";
+        for (String filename : completed) {
             notifyClientStoreComplete(filename);
         }
+        ackedBatches.forEach(this::commitStoreBatch);
+    }
+
+    // Commits every file of a fully ACKed STORE_BATCH at once, unless one of them has failed meanwhile
+    private void commitStoreBatch(PendingBatch batch) {
+        List<Lock> locks = fileLocks.getAll(batch.getFilenames());
+        locks.forEach(Lock::lock);
+        try {
+            for (String filename : batch.getFilenames()) {
+                FileInfo fileInfo = fileIndex.get(filename);
+                if (batch.isFailed() || fileInfo == null || fileInfo.state != FileInfo.STORE_IN_PROGRESS || fileToPendingBatch.get(filename) != batch) {
+                    // failStore drops the rest of the batch and tells the client
+                    return;
+                }
+            }
+            for (String filename : batch.getFilenames()) {
+                fileIndex.get(filename).state = FileInfo.STORE_COMPLETE;
+                fileToPendingBatch.remove(filename);
+                indexReplicator.publish(filename);
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        batch.getFilenames().forEach(clientAccounts::storeCompleted);
+        notifyClient(batch.getClientAddress(), batch.getCompletionToken());
     }
  
     private void notifyClientStoreComplete(String filename) {
         System.out.println("notifyCli");
-    
+        clientAccounts.storeCompleted(filename);
+        Long ticket = storeTickets.get(filename);
+        if (ticket != null) {
+            releaseStoreTicket(filename, ticket);
+        }
+
         // Retrieve the client's address for this specific filename
         String clientAddress = fileToClientAddress.get(filename);
         if (clientAddress != null) {
@@ -445,23 +1614,44 @@ public class Controller {
         String clientAddress = clientSocket.getRemoteSocketAddress().toString();
         System.out.println("Store command received from client: " + clientAddress + " for file: " + filename);
     
-        // Map the filename to the client's address
-        fileToClientAddress.put(filename, clientAddress);
-    
-        // Check if the file already exists and is marked as "store complete"
-        FileInfo fileInfo = fileIndex.get(filename);
-        if (fileInfo != null && fileInfo.status.equals("store complete")) {
-            clientWriter.println("ERROR_FILE_ALREADY_EXISTS");
+        Lock lock = fileLocks.get(filename);
+        lock.lock();
+        try {
+            // A name is taken from the first STORE until it is removed or that store fails or times out
+            if (fileIndex.containsKey(filename)) {
+                clientWriter.println("ERROR_FILE_ALREADY_EXISTS");
+                return;
+            }
+            // The quota is checked with the name held, so only a STORE that goes ahead reserves bytes
+            long fileSize = Long.parseLong(commandParts[2]);
+            if (!clientAccounts.storeStarted(clientOf(clientAddress), filename, fileSize)) {
+                clientWriter.println("ERROR_QUOTA_EXCEEDED");
+                System.out.println("Client " + clientOf(clientAddress) + " over its storage quota, rejected STORE of " + filename);
+                return;
+            }
+
+            // Map the filename to the client's address
+            fileToClientAddress.put(filename, clientAddress);
+
+            // Initialize file information and set the status to "store in progress"
+            FileInfo fileInfo = EC_DATA_SHARDS > 0 && fileSize >= EC_MIN_BYTES
+                ? new FileInfo(FileInfo.STORE_IN_PROGRESS, fileSize, EC_DATA_SHARDS, EC_PARITY_SHARDS)
+                : new FileInfo(FileInfo.STORE_IN_PROGRESS, fileSize);
+            fileIndex.put(filename, fileInfo);
+            expireStoreAfterTimeout(filename, fileInfo);
+        } finally {
+            lock.unlock();
+        }
+
+        if (EC_DATA_SHARDS > 0 && Long.parseLong(commandParts[2]) >= EC_MIN_BYTES) {
+            handleErasureCodedStore(filename, commandParts[2], clientWriter);
             return;
         }
     
-        // Initialize file information and set the status to "store in progress"
-        fileInfo = new FileInfo("store in progress", Integer.parseInt(commandParts[2]));
-        fileIndex.put(filename, fileInfo);
-    
         // Select Dstores for storage
-        List<String> selectedDstorePorts = selectDstoresForStorage();
+        List<String> selectedDstorePorts = selectDstoresForStorage(Long.parseLong(commandParts[2]));
         if (selectedDstorePorts.size() < replicationFactor) {
+            abandonStore(filename);
             clientWriter.println("ERROR_NOT_ENOUGH_DSTORES");
             return;
         }
@@ -472,12 +1662,228 @@ public class Controller {
         System.out.println("Sending STORE_TO command with ports: " + response);
     }
     
-    private List<String> selectDstoresForStorage() {
-        return dstores.values().stream()
-            .limit(replicationFactor)
-            .map(DstoreInfo::getPort)
-            .map(String::valueOf)
+    private void handleStoreBatchCommand(String[] commandParts, PrintWriter clientWriter, String clientAddress) {
+        // STORE_BATCH n f1 s1 ... fn sn
+        Map<String, Long> files = new LinkedHashMap<>();
+        try {
+            int count = Integer.parseInt(commandParts[1]);
+            if (commandParts.length != 2 + 2 * count || count == 0) {
+                clientWriter.println("ERROR_MALFORMED_COMMAND");
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                files.put(commandParts[2 + 2 * i], Long.parseLong(commandParts[3 + 2 * i]));
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            clientWriter.println("ERROR_MALFORMED_COMMAND");
+            return;
+        }
+
+        if (dstores.size() < replicationFactor) {
+            clientWriter.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        PendingBatch batch = new PendingBatch(clientAddress, "STORE_BATCH_COMPLETE", files.keySet());
+        List<Lock> locks = fileLocks.getAll(files.keySet());
+        locks.forEach(Lock::lock);
+        try {
+            for (String filename : files.keySet()) {
+                if (fileIndex.containsKey(filename)) {
+                    clientWriter.println("ERROR_FILE_ALREADY_EXISTS " + filename);
+                    return;
+                }
+            }
+            if (!clientAccounts.storeStarted(clientOf(clientAddress), files)) {
+                clientWriter.println("ERROR_QUOTA_EXCEEDED");
+                System.out.println("Client " + clientOf(clientAddress) + " over its storage quota, rejected STORE_BATCH");
+                return;
+            }
+
+            for (Map.Entry<String, Long> file : files.entrySet()) {
+                FileInfo fileInfo = new FileInfo(FileInfo.STORE_IN_PROGRESS, file.getValue());
+                fileIndex.put(file.getKey(), fileInfo);
+                fileToPendingBatch.put(file.getKey(), batch);
+                expireStoreAfterTimeout(file.getKey(), fileInfo);
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+
+        // One placement is shared by every file in the batch; as for a single STORE, capacity is only reserved once the names are held
+        long batchBytes = files.values().stream().mapToLong(Long::longValue).sum();
+        List<String> selectedDstorePorts = selectDstoresForStorage(batchBytes);
+        if (selectedDstorePorts.size() < replicationFactor) {
+            // Failed up front, so abandoning the files does not also report ERROR_STORE_BATCH_FAILED
+            batch.fail();
+            files.keySet().forEach(this::abandonStore);
+            clientWriter.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        String response = "STORE_TO " + String.join(" ", selectedDstorePorts);
+        clientWriter.println(response);
+        System.out.println("Sending STORE_TO for batch of " + files.size() + " files: " + response);
+    }
+
+    private List<String> selectDstoresForStorage(long bytes) {
+        return leastLoadedDstores(replicationFactor, bytes).stream()
+            .map(dstoreId -> String.valueOf(dstores.get(dstoreId).getPort()))
+            .collect(Collectors.toList());
+    }
+
+    // Place new files on the Dstores with room for them whose disks are emptiest, then busiest, then by file count,
+    // one per failure domain while there are domains left
+    private List<String> leastLoadedDstores(int count, long bytes) {
+        List<String> ordered = dstores.entrySet().stream()
+            .filter(entry -> entry.getValue().isConnected() && entry.getValue().canHold(bytes))
+            .sorted(Comparator.comparing((Map.Entry<String, DstoreInfo> entry) -> entry.getValue(), EMPTIEST_FIRST)
+                .thenComparingInt(entry -> dstoreFileIndex.count(entry.getKey())))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+        List<String> chosen = spreadOverDomains(ordered, count, Collections.emptySet());
+        if (chosen.size() == count) {
+            chosen.forEach(dstoreId -> dstores.get(dstoreId).reserve(bytes));
+        }
+        return chosen;
+    }
+
+    /**
+     * Takes up to count Dstores from ordered, best first, skipping any whose failure domain
+     * is already used (by takenDomains or an earlier pick) until every domain has one, then
+     * filling up with the best of the rest.
+     */
+    private List<String> spreadOverDomains(List<String> ordered, int count, Set<String> takenDomains) {
+        List<String> chosen = new ArrayList<>();
+        Set<String> domains = new HashSet<>(takenDomains);
+        for (String dstoreId : ordered) {
+            if (chosen.size() >= count) break;
+            DstoreInfo dstoreInfo = dstores.get(dstoreId);
+            if (dstoreInfo != null && domains.add(dstoreInfo.failureDomain())) {
+                chosen.add(dstoreId);
+            }
+        }
+        for (String dstoreId : ordered) {
+            if (chosen.size() >= count) break;
+            if (!chosen.contains(dstoreId)) {
+                chosen.add(dstoreId);
+            }
+        }
+        return chosen;
+    }
+
+    private Set<String> domainsOf(Collection<String> dstoreIds) {
+        Set<String> domains = new HashSet<>();
+        for (String dstoreId : dstoreIds) {
+            DstoreInfo dstoreInfo = dstores.get(dstoreId);
+            if (dstoreInfo != null) domains.add(dstoreInfo.failureDomain());
+        }
+        return domains;
+    }
+
+    // Forgets a STORE that could not be placed, e.g. because no Dstores had room, so it holds nothing up
+    private void abandonStore(String filename) {
+        FileInfo fileInfo = fileIndex.get(filename);
+        if (fileInfo != null) {
+            failStore(filename, fileInfo, "could not be placed");
+        }
+    }
+
+    // A STORE that has not been ACKed by all its Dstores within the timeout fails
+    private void expireStoreAfterTimeout(String filename, FileInfo fileInfo) {
+        scheduler.schedule(() -> {
+            if (fileInfo.state != FileInfo.STORE_IN_PROGRESS) {
+                return;
+            }
+            // A fully ACKed file of a STORE_BATCH only waits for its siblings, whose own timeouts fail the batch
+            if (fileToPendingBatch.containsKey(filename) && fileInfo.replicaCount() >= fileInfo.requiredHolders(replicationFactor)) {
+                return;
+            }
+            failStore(filename, fileInfo, "timed out");
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Drops the index entry of a STORE that will not complete, if it is still that store's
+     * entry, so the name can be stored again; Dstores that already ACKed are told to remove
+     * their copy. The client is never sent STORE_COMPLETE and gives up on its own timeout.
+     * A file of a STORE_BATCH takes the rest of its batch with it.
+     */
+    private void failStore(String filename, FileInfo fileInfo, String reason) {
+        List<String> holders;
+        PendingBatch batch;
+        Lock lock = fileLocks.get(filename);
+        lock.lock();
+        try {
+            if (fileIndex.get(filename) != fileInfo || fileInfo.state != FileInfo.STORE_IN_PROGRESS) {
+                return;
+            }
+            fileIndex.remove(filename);
+            holders = replicaAddresses(fileInfo);
+            dstoreFileIndex.removeFile(filename, holders);
+            fileToClientAddress.remove(filename);
+            batch = fileToPendingBatch.remove(filename);
+            ecPlacements.remove(filename);
+            clientAccounts.storeFailed(filename);
+        } finally {
+            lock.unlock();
+        }
+        System.out.println("Store of " + filename + " " + reason + ", dropping it from the index");
+        for (String holder : holders) {
+            sendToDstore(holder, "REMOVE " + filename);
+        }
+        if (batch != null) {
+            failStoreBatch(batch, filename);
+        }
+    }
+
+    // No file of a batch is committed before all are, so the rest are dropped too and the client is told once
+    private void failStoreBatch(PendingBatch batch, String failedFile) {
+        if (!batch.fail()) {
+            return;
+        }
+        for (String sibling : batch.getFilenames()) {
+            FileInfo fileInfo = fileIndex.get(sibling);
+            if (fileInfo != null && fileToPendingBatch.get(sibling) == batch) {
+                failStore(sibling, fileInfo, "failed with its batch");
+            }
+        }
+        notifyClient(batch.getClientAddress(), "ERROR_STORE_BATCH_FAILED " + failedFile);
+    }
+
+    // Reads the "capacity used free load" fields of a JOIN or HEARTBEAT starting at parts[from], if sent
+    private void updateCapacity(DstoreInfo dstoreInfo, String[] parts, int from) {
+        if (parts.length < from + 4) {
+            return;
+        }
+        try {
+            dstoreInfo.updateCapacity(Long.parseLong(parts[from]), Long.parseLong(parts[from + 1]),
+                Long.parseLong(parts[from + 2]), Integer.parseInt(parts[from + 3]));
+        } catch (NumberFormatException e) {
+            System.out.println("Malformed capacity report from Dstore on port " + dstoreInfo.getPort() + ": " + String.join(" ", parts));
+        }
+    }
+
+    /**
+     * The client uploads the whole file to one coordinator Dstore only. Once it ACKs, the
+     * coordinator is sent EC_ENCODE with the shard placement; it encodes the k + m shards,
+     * keeps shard 0 and sends the rest on, and every shard holder ACKs like a replica.
+     */
+    private void handleErasureCodedStore(String filename, String fileSize, PrintWriter clientWriter) {
+        long shardBytes = (Long.parseLong(fileSize) + EC_DATA_SHARDS - 1) / EC_DATA_SHARDS;
+        List<String> placement = leastLoadedDstores(EC_DATA_SHARDS + EC_PARITY_SHARDS, shardBytes);
+        if (placement.size() < EC_DATA_SHARDS + EC_PARITY_SHARDS) {
+            abandonStore(filename);
+            clientWriter.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+        List<String> endpoints = placement.stream()
+            .map(dstoreId -> dstores.get(dstoreId).getEndpoint())
             .collect(Collectors.toList());
+        ecPlacements.put(filename, fileSize + " " + EC_DATA_SHARDS + " " + EC_PARITY_SHARDS + " " + String.join(" ", endpoints));
+
+        clientWriter.println("STORE_TO " + dstores.get(placement.get(0)).getPort());
+        System.out.println("Storing " + filename + " as RS(" + EC_DATA_SHARDS + "+" + EC_PARITY_SHARDS + ") on " + placement);
     }
     
     
@@ -496,7 +1902,7 @@ public class Controller {
         System.out.println("DEBUG: Processing RELOAD command for file: " + filename + " from client: " + clientAddress);
     
         FileInfo fileInfo = fileIndex.get(filename);
-        if (fileInfo == null || !fileInfo.status.equals("store complete")) {
+        if (fileInfo == null || !fileInfo.isStoreComplete()) {
             writer.println("ERROR_FILE_DOES_NOT_EXIST");
             System.out.println("DEBUG: File does not exist or is not completely stored: " + filename);
             return;
@@ -507,7 +1913,7 @@ public class Controller {
         Set<String> usedDstores = fileToUsedDstores.getOrDefault(filename, new HashSet<>());
     
         // Filter Dstores to exclude those already used
-        List<String> availableDstores = fileInfo.dstores.stream()
+        List<String> availableDstores = replicaAddresses(fileInfo).stream()
             .filter(dstore -> !usedDstores.contains(dstore))
             .collect(Collectors.toList());
     
@@ -517,16 +1923,15 @@ public class Controller {
             return;
         }
     
-        // Select a random Dstore from available ones
-        Random random = new Random();
-        String chosenDstore = availableDstores.get(random.nextInt(availableDstores.size()));
-        DstoreInfo dstoreInfo = dstores.get(chosenDstore);
-    
-        if (dstoreInfo == null) {
+        // Fall back to the least loaded of the remaining replicas, in the client's zone if any are left there
+        String chosenDstore = leastLoadedReplica(inZoneIfAny(connectedReplicas(availableDstores), clientZone(clientAddress)));
+        if (chosenDstore == null) {
             writer.println("ERROR_LOAD");
-            System.out.println("DEBUG: Dstore info not found for chosen Dstore: " + chosenDstore);
+            System.out.println("DEBUG: No connected alternative Dstores available for " + filename);
             return;
         }
+        DstoreInfo dstoreInfo = dstores.get(chosenDstore);
+        dstoreInfo.loadStarted();
     
         // Update the set of used Dstores for this client and file
         usedDstores.add(chosenDstore);
@@ -551,14 +1956,14 @@ public class Controller {
     
         // Check if the file is marked as stored completely
         FileInfo fileInfo = fileIndex.get(filename);
-        if (fileInfo == null || !fileInfo.status.equals("store complete")) {
+        if (fileInfo == null || !fileInfo.isStoreComplete()) {
             writer.println("ERROR_FILE_DOES_NOT_EXIST");
             System.out.println("DEBUG: File does not exist or is not completely stored: " + filename);
             return;
         }
     
         // Retrieve all Dstores that have the file stored, ignoring used Dstores tracking
-        List<String> availableDstores = new ArrayList<>(fileInfo.dstores);
+        List<String> availableDstores = replicaAddresses(fileInfo);
     
         System.out.println("DEBUG: Available Dstores for " + filename + ": " + availableDstores);
     
@@ -569,27 +1974,137 @@ public class Controller {
             return;
         }
     
-        // Select a random Dstore to load the file from
-        Random random = new Random();
-        String chosenDstore = availableDstores.get(random.nextInt(availableDstores.size()));
-        DstoreInfo dstoreInfo = dstores.get(chosenDstore);
-    
-        if (dstoreInfo == null) {
+        // Pick the replica by current load and latency
+        String chosenDstore = chooseReplica(availableDstores, clientZone(clientAddress));
+        if (chosenDstore == null) {
             writer.println("ERROR_NOT_ENOUGH_DSTORES");
-            System.out.println("DEBUG: Dstore info not found for chosen Dstore: " + chosenDstore);
+            System.out.println("DEBUG: None of the Dstores holding " + filename + " is connected");
             return;
         }
+        DstoreInfo dstoreInfo = dstores.get(chosenDstore);
+        dstoreInfo.loadStarted();
     
-        // Update the set of used Dstores for this client and file at the end of the load operation
+        // A new LOAD starts a fresh sequence of RELOAD attempts for this client and file
         Map<String, Set<String>> clientFilesToUsedDstores = usedDstoresMap.computeIfAbsent(clientAddress, k -> new ConcurrentHashMap<>());
-        Set<String> usedDstores = clientFilesToUsedDstores.computeIfAbsent(filename, k -> new HashSet<>());
+        Set<String> usedDstores = ConcurrentHashMap.newKeySet();
         usedDstores.add(chosenDstore);
+        clientFilesToUsedDstores.put(filename, usedDstores);
     
         long fileSize = getFileSize(filename);
         writer.println("LOAD_FROM " + dstoreInfo.getPort() + " " + fileSize);
         System.out.println("DEBUG: LOAD_FROM command sent for " + filename + " from Dstore port " + dstoreInfo.getPort() + " with size " + fileSize);
     }
         
+    private void processLoadBatchCommand(String[] commandParts, PrintWriter writer, String clientAddress) {
+        List<String> filenames = parseBatch(commandParts);
+        if (filenames.isEmpty()) {
+            writer.println("ERROR_MALFORMED_COMMAND");
+            return;
+        }
+
+        if (dstores.size() < replicationFactor) {
+            writer.println("ERROR_NOT_ENOUGH_DSTORES");
+            return;
+        }
+
+        // LOAD_FROM_BATCH n f1 port1 size1 ... fn portn sizen
+        StringBuilder response = new StringBuilder("LOAD_FROM_BATCH ").append(filenames.size());
+        for (String filename : filenames) {
+            FileInfo fileInfo = fileIndex.get(filename);
+            if (fileInfo == null || !fileInfo.isStoreComplete()) {
+                writer.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
+                return;
+            }
+
+            String chosenDstore = chooseReplica(replicaAddresses(fileInfo), clientZone(clientAddress));
+            if (chosenDstore == null) {
+                writer.println("ERROR_LOAD " + filename);
+                return;
+            }
+            dstores.get(chosenDstore).loadStarted();
+            response.append(" ").append(filename)
+                    .append(" ").append(dstores.get(chosenDstore).getPort())
+                    .append(" ").append(fileInfo.getFileSize());
+        }
+
+        writer.println(response);
+        System.out.println("DEBUG: LOAD_FROM_BATCH sent for " + filenames.size() + " files");
+    }
+
+    // Power-of-two-choices: sample two connected replicas and keep the less loaded one, or null if none is connected.
+    // Replicas in the client's zone are preferred so reads stay within the zone.
+    private String chooseReplica(Collection<String> candidates, String zone) {
+        List<String> connected = inZoneIfAny(connectedReplicas(candidates), zone);
+        if (connected.size() <= 2) {
+            return leastLoadedReplica(connected);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(connected.size());
+        int second = random.nextInt(connected.size() - 1);
+        if (second >= first) second++;
+        return leastLoadedReplica(Arrays.asList(connected.get(first), connected.get(second)));
+    }
+
+    private List<String> inZoneIfAny(List<String> candidates, String zone) {
+        if (zone == null) {
+            return candidates;
+        }
+        List<String> local = candidates.stream()
+            .filter(dstoreId -> {
+                DstoreInfo dstoreInfo = dstores.get(dstoreId);
+                return dstoreInfo != null && zone.equals(dstoreInfo.getZone());
+            })
+            .collect(Collectors.toList());
+        return local.isEmpty() ? candidates : local;
+    }
+
+    // Zone a client named with CLIENT, else the one configured for its host or client name, else null
+    private String clientZone(String clientAddress) {
+        String zone = clientZones.get(clientAddress);
+        if (zone == null && clientAddress.lastIndexOf(':') > 0) {
+            zone = configuredClientZones.get(clientAddress.substring(0, clientAddress.lastIndexOf(':')));
+        }
+        if (zone == null && clientIds.containsKey(clientAddress)) {
+            zone = configuredClientZones.get(clientIds.get(clientAddress));
+        }
+        return zone;
+    }
+
+    private List<String> connectedReplicas(Collection<String> candidates) {
+        return candidates.stream()
+            .filter(dstoreId -> {
+                DstoreInfo dstoreInfo = dstores.get(dstoreId);
+                return dstoreInfo != null && dstoreInfo.isConnected();
+            })
+            .collect(Collectors.toList());
+    }
+
+    private String leastLoadedReplica(List<String> candidates) {
+        String best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (String dstoreId : candidates) {
+            DstoreInfo dstoreInfo = dstores.get(dstoreId);
+            if (dstoreInfo == null) continue;
+            double score = dstoreInfo.loadScore();
+            if (score < bestScore) {
+                best = dstoreId;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    private void handleLoadDone(String dstoreId, String[] parts) {
+        // LOAD_DONE <filename> <latencyMs>
+        DstoreInfo dstoreInfo = dstores.get(dstoreId);
+        if (dstoreInfo == null || parts.length < 3) return;
+        try {
+            dstoreInfo.loadFinished(Long.parseLong(parts[2]));
+        } catch (NumberFormatException e) {
+            System.out.println("Malformed LOAD_DONE from " + dstoreId + ": " + String.join(" ", parts));
+        }
+    }
+
     private long getFileSize(String filename) {
         FileInfo fileInfo = fileIndex.get(filename);
         if (fileInfo != null) {
@@ -681,87 +2196,55 @@ public class Controller {
     
 
     private Map<String, Pair<List<Pair<String, List<String>>>, List<String>>> createRebalancePlan(Map<String, List<String>> dstoreFileLists) {
-        Map<String, Pair<List<Pair<String, List<String>>>, List<String>>> rebalancePlan = new ConcurrentHashMap<>();
         System.out.println("Creating rebalance plan...");
-    
-        int totalFiles = fileIndex.size();
-        int idealMinFiles = (int) Math.floor((double) replicationFactor * totalFiles / dstores.size());
-        int idealMaxFiles = (int) Math.ceil((double) replicationFactor * totalFiles / dstores.size());
-    
-        System.out.println("Desired file distribution per Dstore: min=" + idealMinFiles + ", max=" + idealMaxFiles);
-    
-        for (String dstoreId : dstores.keySet()) {
-            rebalancePlan.put(dstoreId, new Pair<>(new ArrayList<>(), new ArrayList<>()));
-        }
-        // Identify Dstores holding too few/many files and mark files for sending or removal
         Map<String, Set<String>> dstoreFiles = new HashMap<>();
-        for (Map.Entry<String, List<String>> entry : dstoreFileLists.entrySet()) {
-            dstoreFiles.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        for (String dstoreId : dstores.keySet()) {
+            // Fall back to the reverse index for Dstores that did not answer LIST
+            List<String> listed = dstoreFileLists.get(dstoreId);
+            dstoreFiles.put(dstoreId, new HashSet<>(listed != null ? listed : dstoreFileIndex.filesOn(dstoreId)));
         }
-    
-        // Process each file in the index to ensure replication across Dstores
+
+        // Replicas are where the index and the Dstore's own listing agree, so every move has a real source
+        RebalancePlanner planner = new RebalancePlanner(replicationFactor, REBALANCE_TOLERANCE);
+        dstoreFiles.keySet().forEach(dstoreId -> {
+            DstoreInfo dstoreInfo = dstores.get(dstoreId);
+            planner.addDstore(dstoreId, dstoreInfo.failureDomain(), dstoreInfo.getCapacityBytes(), dstoreInfo.getFreeBytes());
+        });
         for (Map.Entry<String, FileInfo> fileEntry : fileIndex.entrySet()) {
             String filename = fileEntry.getKey();
             FileInfo fileInfo = fileEntry.getValue();
-            Set<String> dstoreHoldingFile = new HashSet<>(fileInfo.dstores);
-    
-            // If the file needs more replicas
-            if (dstoreHoldingFile.size() < replicationFactor) {
-                List<String> dstoresToReplicate = new ArrayList<>();
-                for (String dstoreId : dstores.keySet()) {
-                    if (!dstoreHoldingFile.contains(dstoreId) && dstoreFiles.get(dstoreId).size() < idealMaxFiles) {
-                        dstoresToReplicate.add(dstoreId);
-                        dstoreHoldingFile.add(dstoreId);
-                        dstoreFiles.get(dstoreId).add(filename);
-    
-                        if (dstoresToReplicate.size() >= (replicationFactor - fileInfo.dstores.size())) break;
-                    }
-                }
-    
-                // Mark the file for sending to new Dstores
-                for (String existingDstore : fileInfo.dstores) {
-                    Pair<List<Pair<String, List<String>>>, List<String>> dstorePlan = rebalancePlan.get(existingDstore);
-                    dstorePlan.getFirst().add(new Pair<>(filename, dstoresToReplicate));
-                }
-            }
-    
-            // If the file is over-replicated, mark excess copies for removal
-            if (dstoreHoldingFile.size() > replicationFactor) {
-                List<String> excessDstores = new ArrayList<>(dstoreHoldingFile);
-                excessDstores = excessDstores.subList(replicationFactor, excessDstores.size());
-    
-                for (String dstoreId : excessDstores) {
-                    Pair<List<Pair<String, List<String>>>, List<String>> dstorePlan = rebalancePlan.get(dstoreId);
-                    dstorePlan.getSecond().add(filename);
-                    dstoreFiles.get(dstoreId).remove(filename);
-                }
+            if (!fileInfo.isStoreComplete() || fileInfo.isErasureCoded()) {
+                // Shards are rebuilt by reReplicate, never copied whole
+                continue;
             }
+            List<String> holders = replicaAddresses(fileInfo).stream()
+                .filter(dstoreId -> dstoreFiles.containsKey(dstoreId) && dstoreFiles.get(dstoreId).contains(filename))
+                .collect(Collectors.toList());
+            planner.addFile(filename, fileInfo.getFileSize(), holders);
         }
-    
-        // Mark unindexed files for removal in each Dstore
-        for (Map.Entry<String, Set<String>> dstoreEntry : dstoreFiles.entrySet()) {
-            String dstoreId = dstoreEntry.getKey();
-            Set<String> currentFiles = dstoreEntry.getValue();
-    
-            Pair<List<Pair<String, List<String>>>, List<String>> dstorePlan = rebalancePlan.get(dstoreId);
-            List<String> filesToRemove = dstorePlan.getSecond();
-    
-            for (String storedFile : currentFiles) {
+        RebalancePlanner.Plan plan = planner.plan();
+        System.out.println("Rebalance plan: " + plan.describe());
+
+        Map<String, Pair<List<Pair<String, List<String>>>, List<String>>> rebalancePlan = new ConcurrentHashMap<>(plan.perDstore);
+        for (Map.Entry<String, Pair<List<Pair<String, List<String>>>, List<String>>> entry : rebalancePlan.entrySet()) {
+            DstoreInfo dstoreInfo = dstores.get(entry.getKey());
+            for (Pair<String, List<String>> send : entry.getValue().getFirst()) {
+                long size = fileIndex.get(send.getFirst()).getFileSize();
+                send.getSecond().forEach(target -> dstores.get(target).reserve(size));
+            }
+            // Mark unindexed files for removal in each Dstore
+            for (String storedFile : dstoreFiles.get(entry.getKey())) {
                 if (!fileIndex.containsKey(storedFile)) {
-                    filesToRemove.add(storedFile);
+                    entry.getValue().getSecond().add(storedFile);
                 }
             }
         }
-    
         return rebalancePlan;
     }
-    
 
     private void sendRebalanceCommands(Map<String, Pair<List<Pair<String, List<String>>>, List<String>>> rebalancePlan) {
         for (Map.Entry<String, Pair<List<Pair<String, List<String>>>, List<String>>> entry : rebalancePlan.entrySet()) {
             String dstoreId = entry.getKey();
-            DstoreInfo dstoreInfo = dstores.get(dstoreId);
-            Socket dstoreSocket = dstoreInfo.getSocket();
     
             Pair<List<Pair<String, List<String>>>, List<String>> dstorePlan = entry.getValue();
             List<Pair<String, List<String>>> filesToSend = dstorePlan.getFirst();
@@ -773,9 +2256,13 @@ public class Controller {
             rebalanceCommand.append(filesToSend.size()).append(" ");
             for (Pair<String, List<String>> file : filesToSend) {
                 String filename = file.getFirst();
-                List<String> dstores = file.getSecond();
-                rebalanceCommand.append(filename).append(" ").append(dstores.size()).append(" ");
-                rebalanceCommand.append(String.join(" ", dstores)).append(" ");
+                List<String> endpoints = file.getSecond().stream()
+                    .map(dstores::get)
+                    .filter(Objects::nonNull)
+                    .map(DstoreInfo::getEndpoint)
+                    .collect(Collectors.toList());
+                rebalanceCommand.append(filename).append(" ").append(endpoints.size()).append(" ");
+                rebalanceCommand.append(String.join(" ", endpoints)).append(" ");
             }
     
             // Format the `files_to_remove` part
@@ -785,16 +2272,50 @@ public class Controller {
             }
     
             // Send the rebalance command to the Dstore
+            sendRebalance(dstoreId, rebalanceCommand.toString().trim(), filesToRemove);
+            System.out.println("Sent REBALANCE command to Dstore " + dstoreId + ": " + rebalanceCommand);
+        }
+    }
+
+    // Copies a Dstore is told to drop keep counting until its REBALANCE_COMPLETE says they are gone. A Dstore
+    // answers its REBALANCEs in order, so each is queued in the order it goes out on the connection.
+    private void sendRebalance(String dstoreId, String command, List<String> filesToRemove) {
+        Queue<List<String>> pending = pendingRebalanceRemovals.computeIfAbsent(dstoreId, id -> new ConcurrentLinkedQueue<>());
+        synchronized (pending) {
+            pending.add(filesToRemove);
+            sendToDstore(dstoreId, command);
+        }
+    }
+    
+    // REBALANCE_COMPLETE [kept...]: the Dstore dropped every file of its oldest unanswered REBALANCE but the kept ones,
+    // which it could not copy to all their targets first
+    private void handleRebalanceComplete(String dstoreId, String[] parts) {
+        Queue<List<String>> pending = pendingRebalanceRemovals.get(dstoreId);
+        List<String> filesToRemove = pending == null ? null : pending.poll();
+        DstoreInfo dstoreInfo = dstores.get(dstoreId);
+        if (filesToRemove == null || dstoreInfo == null) {
+            return;
+        }
+        Set<String> kept = new HashSet<>(Arrays.asList(parts).subList(1, parts.length));
+        for (String file : filesToRemove) {
+            if (kept.contains(file)) {
+                System.out.println("Dstore " + dstoreId + " kept " + file + " after a failed rebalance copy");
+                continue;
+            }
+            Lock lock = fileLocks.get(file);
+            lock.lock();
             try {
-                PrintWriter writer = new PrintWriter(dstoreSocket.getOutputStream(), true);
-                writer.println(rebalanceCommand.toString().trim());
-                System.out.println("Sent REBALANCE command to Dstore " + dstoreId + ": " + rebalanceCommand);
-            } catch (IOException e) {
-                System.out.println("Error sending REBALANCE command to Dstore " + dstoreId + ": " + e.getMessage());
+                FileInfo fileInfo = fileIndex.get(file);
+                if (fileInfo != null && fileInfo.removeReplica(dstoreInfo.getId())) {
+                    dstoreFileIndex.remove(dstoreId, file);
+                    indexReplicator.publish(file);
+                }
+            } finally {
+                lock.unlock();
             }
         }
     }
-    
+
 //////////////////////////////// MAIN ///////////////////////////////////////////////////////////////////////////////////////////////////
 
     public void stop() throws IOException {
@@ -805,6 +2326,12 @@ public class Controller {
         if (scheduler != null) {
             scheduler.shutdown();
         }
+        if (leaseRenewal != null) {
+            leaseRenewal.shutdown();
+        }
+        if (lease != null && leader) {
+            lease.release();
+        }
     }
 
     public static void main(String[] args) {
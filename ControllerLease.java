@@ -0,0 +1,82 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Leader election between the Controllers of one partition, using a lease kept in a file
+ * they all can reach. The file holds "port expiresAtMillis"; whoever holds an unexpired
+ * lease is the leader and must renew it well before it runs out. A file lock makes each
+ * read-and-renew atomic across processes. The holder also remembers when its own lease
+ * runs out, so it can tell it has lost the lease even when it cannot reach the file.
+ */
+public class ControllerLease {
+    private final File file;
+    private final int port;
+    private final long leaseMillis;
+    private volatile long heldUntil = 0; // expiry of the last lease this Controller wrote
+
+    public ControllerLease(File file, int port, long leaseMillis) {
+        this.file = file;
+        this.port = port;
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Renews the lease if this Controller holds it, takes it over if it has expired,
+     * and returns the port of the Controller holding it afterwards.
+     */
+    public int tryAcquire() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.lock(); // released when the channel closes
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 64));
+            channel.read(buffer, 0);
+            String[] parts = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim().split(" ");
+
+            long now = System.currentTimeMillis();
+            if (parts.length == 2) {
+                int holder = Integer.parseInt(parts[0]);
+                long expiresAt = Long.parseLong(parts[1]);
+                if (holder != port && expiresAt > now) {
+                    return holder;
+                }
+            }
+
+            byte[] lease = (port + " " + (now + leaseMillis)).getBytes(StandardCharsets.UTF_8);
+            channel.truncate(0);
+            channel.write(ByteBuffer.wrap(lease), 0);
+            channel.force(false);
+            heldUntil = now + leaseMillis;
+            return port;
+        } catch (NumberFormatException e) {
+            throw new IOException("Corrupt lease file " + file, e);
+        }
+    }
+
+    /**
+     * Gives the lease up so a standby can take over without waiting for it to expire.
+     */
+    public void release() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.lock(); // released when the channel closes
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), 64));
+            channel.read(buffer, 0);
+            String holder = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8).trim().split(" ")[0];
+            if (holder.equals(String.valueOf(port))) {
+                channel.truncate(0);
+            }
+            heldUntil = 0;
+        }
+    }
+
+    /**
+     * Whether the lease this Controller last wrote is still running, by its own clock.
+     */
+    public boolean isHeld() {
+        return System.currentTimeMillis() < heldUntil;
+    }
+}
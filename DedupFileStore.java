@@ -0,0 +1,265 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Content-addressed storage: every distinct content is kept once as a blob named by its
+ * SHA-256, and each filename is a small link file pointing at a blob. Blobs are
+ * reference counted and deleted with their last link, so files stored under several
+ * names cost the disk space of one.
+ *
+ * Incoming data is hashed while it is written to a staging file, which is then either
+ * renamed into place as a new blob or dropped because the blob already exists. Link files
+ * are staged and renamed the same way, and staging files left by a crash are removed
+ * along with unreferenced blobs on recovery. With forceStaged set, staged blobs and links
+ * are forced before their rename, as in DirectoryFileStore.
+ */
+public class DedupFileStore implements FileStore {
+    private static final String STAGING_PREFIX = ".incoming-";
+
+    private final File blobFolder;
+    private final File linkFolder;
+    private final Map<String, String> links = new HashMap<>(); // filename -> content ID
+    private final Map<String, Integer> refCounts = new HashMap<>(); // content ID -> number of links
+    private final AtomicLong staging = new AtomicLong();
+    private final AtomicLong dedupedBytes = new AtomicLong();
+    private final boolean forceStaged;
+
+    public DedupFileStore(File folder, boolean forceStaged) throws IOException {
+        this.blobFolder = new File(folder, ".blobs");
+        this.linkFolder = new File(folder, ".links");
+        this.forceStaged = forceStaged;
+        blobFolder.mkdirs();
+        linkFolder.mkdirs();
+        recover();
+    }
+
+    // Rebuilds the reference counts from the link files and drops blobs nothing points to
+    private void recover() throws IOException {
+        File[] linkFiles = linkFolder.listFiles();
+        if (linkFiles != null) {
+            for (File link : linkFiles) {
+                String id = new String(Files.readAllBytes(link.toPath()), StandardCharsets.UTF_8).trim();
+                if (new File(blobFolder, id).isFile()) {
+                    links.put(link.getName(), id);
+                    refCounts.merge(id, 1, Integer::sum);
+                } else {
+                    link.delete();
+                }
+            }
+        }
+        File[] blobs = blobFolder.listFiles();
+        if (blobs != null) {
+            for (File blob : blobs) {
+                if (!refCounts.containsKey(blob.getName())) {
+                    blob.delete();
+                }
+            }
+        }
+        if (!links.isEmpty()) {
+            System.out.println("Recovered " + links.size() + " files sharing " + refCounts.size() + " blobs");
+        }
+    }
+
+    public long getDedupedBytes() {
+        return dedupedBytes.get();
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        File incoming = new File(blobFolder, STAGING_PREFIX + staging.incrementAndGet());
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[4096];
+        long totalRead = 0;
+        try (FileOutputStream fileOut = new FileOutputStream(incoming)) {
+            DigestInputStream hashing = new DigestInputStream(in, digest);
+            while (totalRead < size) {
+                int bytesRead = hashing.read(buffer, 0, (int) Math.min(buffer.length, size - totalRead));
+                if (bytesRead == -1) {
+                    break;
+                }
+                fileOut.write(buffer, 0, bytesRead);
+                totalRead += bytesRead;
+            }
+            if (forceStaged && totalRead == size) {
+                fileOut.getChannel().force(true);
+            }
+        }
+        if (totalRead != size) {
+            incoming.delete();
+            return false;
+        }
+
+        String id = toHex(digest.digest());
+        synchronized (this) {
+            if (refCounts.containsKey(id)) {
+                incoming.delete();
+                dedupedBytes.addAndGet(size);
+            } else {
+                DirectoryFileStore.publish(incoming, blob(id));
+            }
+            setLink(filename, id);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean link(String filename, String contentId, long size) throws IOException {
+        if (!refCounts.containsKey(contentId) || (size >= 0 && blob(contentId).length() != size)) {
+            return false;
+        }
+        setLink(filename, contentId);
+        dedupedBytes.addAndGet(blob(contentId).length());
+        return true;
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        List<File> dirty = new ArrayList<>();
+        synchronized (this) {
+            for (String filename : filenames) {
+                String id = links.get(filename);
+                if (id != null) {
+                    dirty.add(blob(id));
+                    dirty.add(new File(linkFolder, filename));
+                }
+            }
+        }
+        if (dirty.isEmpty()) return;
+        for (File file : dirty) {
+            if (file.isFile()) {
+                DirectoryFileStore.force(file);
+            }
+        }
+        DirectoryFileStore.force(blobFolder);
+        DirectoryFileStore.force(linkFolder);
+    }
+
+    @Override
+    public synchronized String contentId(String filename) {
+        return links.get(filename);
+    }
+
+    // Caller holds the monitor
+    private void setLink(String filename, String id) throws IOException {
+        // Staged like a blob so a crash never leaves a truncated link behind
+        File incoming = new File(blobFolder, STAGING_PREFIX + staging.incrementAndGet());
+        Files.write(incoming.toPath(), id.getBytes(StandardCharsets.UTF_8));
+        if (forceStaged) {
+            DirectoryFileStore.force(incoming);
+        }
+        DirectoryFileStore.publish(incoming, new File(linkFolder, filename));
+        refCounts.merge(id, 1, Integer::sum);
+        String previous = links.put(filename, id);
+        if (previous != null) {
+            release(previous);
+        }
+    }
+
+    // Caller holds the monitor
+    private void release(String id) {
+        int remaining = refCounts.merge(id, -1, Integer::sum);
+        if (remaining <= 0) {
+            refCounts.remove(id);
+            blob(id).delete();
+        }
+    }
+
+    @Override
+    public synchronized boolean exists(String filename) {
+        return links.containsKey(filename);
+    }
+
+    @Override
+    public long size(String filename) {
+        File blob = resolve(filename);
+        return blob != null && blob.isFile() ? blob.length() : -1;
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        File blob = resolve(filename);
+        if (blob == null || !blob.isFile()) {
+            throw new FileNotFoundException(filename);
+        }
+        Files.copy(blob.toPath(), out);
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        File blob = resolve(filename);
+        if (blob == null || !blob.isFile()) {
+            throw new FileNotFoundException(filename);
+        }
+        try (FileChannel channel = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public synchronized boolean delete(String filename) {
+        String id = links.remove(filename);
+        if (id == null) {
+            return false;
+        }
+        new File(linkFolder, filename).delete();
+        release(id);
+        return true;
+    }
+
+    @Override
+    public synchronized List<String> list() {
+        return new ArrayList<>(links.keySet());
+    }
+
+    @Override
+    public synchronized void clear() {
+        links.clear();
+        refCounts.clear();
+        for (File folder : new File[] {linkFolder, blobFolder}) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private synchronized File resolve(String filename) {
+        String id = links.get(filename);
+        return id == null ? null : blob(id);
+    }
+
+    private File blob(String id) {
+        return new File(blobFolder, id);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stores each file as its own file inside a folder.
+ *
+ * Writes go to a staging file in a hidden subfolder and are renamed into place only once
+ * every byte has arrived, so readers see either the previous content or the complete new
+ * one, never a partial file. With forceStaged set the staged file is forced before the
+ * rename, which makes the rename the commit point: after a crash the name holds the old
+ * content or the complete new one, and an interrupted write leaves only an orphaned
+ * staging file. Without it the rename can reach the disk before the data does, so a crash
+ * shortly after a write may leave the name pointing at a truncated file. Orphans from
+ * earlier runs are deleted in the background at startup.
+ */
+public class DirectoryFileStore implements FileStore {
+    private static final String STAGING_FOLDER = ".staging";
+
+    private final File folder;
+    private final File stagingFolder;
+    private final AtomicLong staging = new AtomicLong();
+    private final boolean forceStaged;
+
+    public DirectoryFileStore(File folder) {
+        this(folder, false);
+    }
+
+    public DirectoryFileStore(File folder, boolean forceStaged) {
+        this.folder = folder;
+        this.stagingFolder = new File(folder, STAGING_FOLDER);
+        this.forceStaged = forceStaged;
+        removeOrphans();
+    }
+
+    // Anything already staged belongs to a write that never finished
+    private void removeOrphans() {
+        File[] orphans = stagingFolder.listFiles();
+        if (orphans == null || orphans.length == 0) {
+            return;
+        }
+        Thread cleaner = new Thread(() -> {
+            for (File orphan : orphans) {
+                orphan.delete();
+            }
+            System.out.println("Removed " + orphans.length + " unfinished writes from " + stagingFolder);
+        }, "staging-cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        stagingFolder.mkdirs();
+        File staged = new File(stagingFolder, staging.incrementAndGet() + "-" + System.nanoTime());
+        byte[] buffer = new byte[4096];
+        long totalRead = 0;
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(staged)) {
+                while (totalRead < size) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, size - totalRead));
+                    if (bytesRead == -1) {
+                        break;
+                    }
+                    fileOut.write(buffer, 0, bytesRead);
+                    totalRead += bytesRead;
+                }
+                if (forceStaged && totalRead == size) {
+                    fileOut.getChannel().force(true);
+                }
+            }
+            if (totalRead != size) {
+                return false;
+            }
+            publish(staged, new File(folder, filename));
+            return true;
+        } finally {
+            staged.delete();
+        }
+    }
+
+    /**
+     * Renames staged over target in one step, falling back to a plain replace on file
+     * systems without atomic renames.
+     */
+    static void publish(File staged, File target) throws IOException {
+        try {
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(staged.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        boolean any = false;
+        for (String filename : filenames) {
+            File file = new File(folder, filename);
+            if (file.isFile()) {
+                // A forced staged file only needs its new directory entry made durable
+                if (!forceStaged) {
+                    force(file);
+                }
+                any = true;
+            }
+        }
+        // New directory entries only survive a crash once the folder itself is forced
+        if (any) {
+            force(folder);
+        }
+    }
+
+    /**
+     * Forces a file, or the entries of a folder, to stable storage.
+     */
+    static void force(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Some platforms cannot open a folder for forcing; its entries are then synced with the files
+            if (!file.isDirectory()) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return new File(folder, filename).isFile();
+    }
+
+    @Override
+    public long size(String filename) {
+        File file = new File(folder, filename);
+        return file.isFile() ? file.length() : -1;
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        File file = new File(folder, filename);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(filename);
+        }
+        Files.copy(file.toPath(), out);
+    }
+
+    /**
+     * Opens the content of filename for reading, for callers that read it piece by piece.
+     */
+    public InputStream open(String filename) throws IOException {
+        File file = new File(folder, filename);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(filename);
+        }
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        File file = new File(folder, filename);
+        if (!file.isFile()) {
+            throw new FileNotFoundException(filename);
+        }
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    @Override
+    public boolean delete(String filename) {
+        return new File(folder, filename).delete();
+    }
+
+    @Override
+    public List<String> list() {
+        List<String> names = new ArrayList<>();
+        File[] listOfFiles = folder.listFiles();
+        if (listOfFiles != null) {
+            for (File file : listOfFiles) {
+                if (file.isFile()) {
+                    names.add(file.getName());
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        Path directory = folder.toPath();
+        if (!Files.exists(directory)) {
+            System.out.println("Directory does not exist, expected to exist: " + directory);
+            return;
+        }
+        Files.walk(directory)
+             .sorted(Comparator.reverseOrder())
+             .map(Path::toFile)
+             .filter(file -> !file.equals(directory.toFile()))
+             .forEach(File::delete);
+    }
+}
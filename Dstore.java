@@ -1,34 +1,174 @@
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.*;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 public class Dstore {
     private ServerSocket serverSocket;
-    private Socket controllerSocket;
-    private PrintWriter controllerOut;
-    private BufferedReader controllerIn;
+    private final List<ControllerLink> controllerLinks = new CopyOnWriteArrayList<>();
+    private final PartitionMap partitionMap;
     private final String controllerHost;
     private final int controllerPort;
     private final int port;
     private boolean running = true;
     private final String fileFolder;
+    private final FileStore store;
+    private final CachingFileStore cache; // null when the hot-file cache is disabled
+    private final DedupFileStore dedup; // null unless the dedup storage engine is used on a single disk
+    private final StripedFileStore striped; // null unless there are several data folders
+    private final List<File> roots;
+    private volatile long usedBytes = 0; // recounted on its own thread, so JOIN and HEARTBEAT only read it
+    private final CompressingFileStore compression; // null when compression at rest is disabled
+    private final MerkleFileStore merkle;
+    private final File shardFolder;
+    private final DirectoryFileStore shards; // Reed-Solomon shards ("f.shard") and their placement ("f.meta"), apart from whole files
     private final int timeout;
     private static final int CLIENT_TIMEOUT_MS = 10000; // Example: 10 seconds
+    private static final long ACK_BATCH_WINDOW_MS = Long.getLong("dstore.ackBatchWindowMs", 0); // 0 disables ACK coalescing
+    private static final int ACK_BATCH_SIZE = Integer.getInteger("dstore.ackBatchSize", 64);
+    private static final String STORAGE_ENGINE = System.getProperty("dstore.storageEngine", "directory"); // "directory", "segment" or "dedup"
+    private static final long SEGMENT_BYTES = Long.getLong("dstore.segmentBytes", 64L * 1024 * 1024);
+    private static final long SMALL_FILE_BYTES = Long.getLong("dstore.smallFileBytes", 64L * 1024);
+    private static final double COMPACTION_THRESHOLD = Double.parseDouble(System.getProperty("dstore.compactionThreshold", "0.5"));
+    private static final int COMPACTION_INTERVAL_SECONDS = Integer.getInteger("dstore.compactionIntervalSeconds", 30);
+    private static final long CAPACITY_BYTES = Long.getLong("dstore.capacityBytes", 0); // 0 offers the whole disk
+    private static final long USAGE_REFRESH_MS = Long.getLong("dstore.usageRefreshMs", 1000); // how often stored bytes are recounted
+    private static final String ZONE = System.getProperty("dstore.zone"); // failure domain label such as "eu-west-1a" or "rack7", no spaces
+    private static final int IO_THREADS_PER_DISK = Integer.getInteger("dstore.ioThreadsPerDisk", 4);
+    private static final long STAGE_MEMORY_BYTES = Long.getLong("dstore.stageMemoryBytes", 4L * 1024 * 1024); // files moved to or from striped disks are staged in memory up to this, in a temporary file beyond
+    private static final long HEARTBEAT_INTERVAL_MS = Long.getLong("dstore.heartbeatMs", 1000);
+    private ScheduledExecutorService heartbeat;
+    private ScheduledExecutorService usageCounter;
+    private static final long CACHE_BYTES = Long.getLong("dstore.cacheBytes", 64L * 1024 * 1024); // 0 disables the hot-file cache
+    private static final long CACHE_MAX_ENTRY_BYTES = Long.getLong("dstore.cacheMaxEntryBytes", 4L * 1024 * 1024);
+    private static final String PARTITIONS = System.getProperty("dstore.partitions"); // Controller ports, same list as controller.partitions
+    private static final long CONTROLLER_RETRY_MS = Long.getLong("dstore.controllerRetryMs", 500);
+    private static final boolean REJOIN = Boolean.getBoolean("dstore.rejoin"); // keep fileFolder across restarts instead of wiping it
+    private static final int INVENTORY_BATCH = Integer.getInteger("dstore.inventoryBatch", 1000);
+    private static final boolean COMPRESSION = Boolean.getBoolean("dstore.compression"); // deflate files at rest; not readable by Dstores without it
+    private static final int COMPRESSION_LEVEL = Integer.getInteger("dstore.compressionLevel", 1);
+    private static final long COMPRESSION_MIN_BYTES = Long.getLong("dstore.compressionMinBytes", 512);
+    private static final long COMPRESSION_MEMORY_BYTES = Long.getLong("dstore.compressionMemoryBytes", 16L * 1024 * 1024); // larger files are spooled to disk
+    private static final boolean WIRE_COMPRESSION = Boolean.getBoolean("dstore.wireCompression"); // deflate compressible replicas sent to other Dstores
+    private static final long REBALANCE_BYTES_PER_SEC = Long.getLong("dstore.rebalanceBytesPerSec", 0); // 0 leaves background transfers unthrottled
+    private static final int REBALANCE_MAX_TRANSFERS = Integer.getInteger("dstore.rebalanceMaxTransfers", 2); // 0 means no cap
+    private static final long REBALANCE_YIELD_MS = Long.getLong("dstore.rebalanceYieldMs", 200); // longest pause per chunk while clients are served
+    private final TransferThrottle transfers = new TransferThrottle(REBALANCE_BYTES_PER_SEC, REBALANCE_MAX_TRANSFERS, REBALANCE_YIELD_MS);
+    private static final int MAX_CONNECTIONS = Integer.getInteger("dstore.maxConnections", 512);
+    private static final long QUEUE_TIMEOUT_MS = Long.getLong("dstore.queueTimeoutMs", 1000);
+    // "store=active/queued,load=active/queued"; STORE-like commands write to disk, LOAD-like ones read
+    private final Map<String, Admission> admissions = Admission.parse(System.getProperty("dstore.admission"),
+        Map.of("store", new int[] {64, 256}, "load", new int[] {128, 512}), QUEUE_TIMEOUT_MS);
+    private final AtomicInteger openConnections = new AtomicInteger();
+    // "none" ACKs once written, "file" fsyncs each STORE, "group" fsyncs concurrent STOREs together
+    private static final GroupCommitSyncer.Mode FSYNC_MODE = GroupCommitSyncer.parseMode(System.getProperty("dstore.fsync", "none"));
+    // With any fsync, staged files are forced before their rename, so a published name never points at missing data
+    private static final boolean FORCE_STAGED = FSYNC_MODE != GroupCommitSyncer.Mode.NONE;
+    private final GroupCommitSyncer syncer = new GroupCommitSyncer(FSYNC_MODE,
+        Long.getLong("dstore.fsyncGroupMs", 0), Long.getLong("dstore.fsyncGroupBytes", 8L * 1024 * 1024));
 
-    public Dstore(int port, String controllerHost, int controllerPort, int timeout, String fileFolder) {
+    /**
+     * Connection to one Controller. With a partitioned deployment the Dstore joins every
+     * Controller and routes each file's ACKs to the Controller that owns it. A link that
+     * drops is replaced by one to the partition's next Controller, so a standby that has
+     * taken over gets the Dstore back within a retry interval.
+     */
+    private class ControllerLink {
+        final int partition;
+        final int controllerPort;
+        final Socket socket;
+        final PrintWriter out;
+        final BufferedReader in;
+        final AckBatcher acks;
+
+        ControllerLink(int partition, int controllerPort) throws IOException {
+            this.partition = partition;
+            this.controllerPort = controllerPort;
+            this.socket = new Socket(controllerHost, controllerPort);
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.acks = new AckBatcher(out, ACK_BATCH_WINDOW_MS, ACK_BATCH_SIZE);
+        }
+    }
+
+    public Dstore(int port, String controllerHost, int controllerPort, int timeout, String fileFolder) throws IOException {
         this.port = port;
         this.controllerHost = controllerHost;
         this.controllerPort = controllerPort;
         this.timeout = timeout;
         this.fileFolder = fileFolder;
+        this.partitionMap = PartitionMap.parse(PARTITIONS, controllerPort);
+        // Several folders, comma separated, are one per disk and have files striped over them
+        roots = new ArrayList<>();
+        for (String folder : fileFolder.split(",")) {
+            roots.add(new File(folder.trim()));
+        }
+        FileStore fileStore;
+        if (roots.size() > 1) {
+            List<FileStore> engines = new ArrayList<>();
+            for (File root : roots) {
+                root.mkdirs();
+                engines.add(createFileStore(root));
+            }
+            this.striped = new StripedFileStore(roots, engines, IO_THREADS_PER_DISK, STAGE_MEMORY_BYTES);
+            fileStore = striped;
+        } else {
+            this.striped = null;
+            fileStore = createFileStore(roots.get(0));
+        }
+        this.dedup = fileStore instanceof DedupFileStore ? (DedupFileStore) fileStore : null;
+        if (COMPRESSION) {
+            this.compression = new CompressingFileStore(fileStore, COMPRESSION_LEVEL, COMPRESSION_MIN_BYTES, COMPRESSION_MEMORY_BYTES);
+            fileStore = compression;
+        } else {
+            this.compression = null;
+        }
+        if (CACHE_BYTES > 0) {
+            this.cache = new CachingFileStore(fileStore, CACHE_BYTES, CACHE_MAX_ENTRY_BYTES);
+            fileStore = cache;
+        } else {
+            this.cache = null;
+        }
+        this.merkle = new MerkleFileStore(fileStore, partitionMap.size(), partitionMap::ownerIndex);
+        this.store = merkle;
+        this.shardFolder = new File(roots.get(0), ".shards");
+        this.shards = new DirectoryFileStore(shardFolder, FORCE_STAGED);
+    }
+
+    private static FileStore createFileStore(File folder) throws IOException {
+        if (STORAGE_ENGINE.equals("dedup")) {
+            System.out.println("Using deduplicating storage engine in " + folder);
+            return new DedupFileStore(folder, FORCE_STAGED);
+        }
+        if (STORAGE_ENGINE.equals("segment")) {
+            System.out.println("Using segment storage engine in " + folder);
+            return new SegmentFileStore(folder, SEGMENT_BYTES, SMALL_FILE_BYTES, COMPACTION_THRESHOLD, COMPACTION_INTERVAL_SECONDS, FORCE_STAGED);
+        }
+        return new DirectoryFileStore(folder, FORCE_STAGED);
     }
 
     public void start() {
-        clearLocalData();
+        if (REJOIN) {
+            System.out.println("Rejoining with the existing contents of " + fileFolder);
+        } else {
+            clearLocalData();
+        }
         
 
         try {
@@ -36,7 +176,6 @@ public class Dstore {
             serverSocket = new ServerSocket(port);
             System.out.println("Dstore listening on port: " + port);
 
-            new Thread(this::handleControllerCommands).start();
             new Thread(this::acceptClientConnections).start();
 
         } catch (IOException e) {
@@ -51,7 +190,20 @@ public class Dstore {
             try {
                 Socket clientSocket = serverSocket.accept();
                 System.out.println("Accepted client connection from: " + clientSocket.getRemoteSocketAddress());
-                new Thread(() -> handleClientConnection(clientSocket)).start(); // Handle each client in a new thread
+
+                // Shed connections beyond the cap before they cost a thread
+                if (openConnections.incrementAndGet() > MAX_CONNECTIONS) {
+                    openConnections.decrementAndGet();
+                    rejectConnection(clientSocket);
+                    continue;
+                }
+                new Thread(() -> {
+                    try {
+                        handleClientConnection(clientSocket);
+                    } finally {
+                        openConnections.decrementAndGet();
+                    }
+                }).start(); // Handle each client in a new thread
             } catch (IOException e) {
                 if (!running) break; // Exit if the server is stopped
                 System.out.println("Error accepting client connection: " + e.getMessage());
@@ -73,25 +225,81 @@ public class Dstore {
             while ((header = reader.readLine()) != null) {
                 System.out.println("Received command: " + header);
                 String[] parts = header.split(" ");
+                if (parts[0].equals("STATS")) {
+                    writer.println(statsLine());
+                    continue;
+                }
+                if (parts[0].equals("THROTTLE")) {
+                    writer.println(handleThrottleCommand(parts));
+                    continue;
+                }
                 if (parts.length < 2) {
                     writer.println("ERROR_MALFORMED_COMMAND");
                     System.out.println("Malformed command: " + header);
                     continue; 
                 }
 
-                switch (parts[0]) {
-                    case "STORE":
-                        handleStoreCommand(parts, writer, clientSocket);
-                        System.out.println("STORE");
-                        break;
-                    case "LOAD_DATA":
-                        handleLoadDataCommand(parts[1], clientSocket);
-                        System.out.println("LOAD DATA");
-                        break;
-                    default:
-                        writer.println("ERROR_UNKNOWN_COMMAND");
-                        System.out.println("Unknown command: " + header);
+                Admission admission = admissionFor(parts[0]);
+                long ticket = admission == null ? 0 : admission.enter();
+                if (ticket < 0) {
+                    System.out.println("Busy, rejected " + parts[0] + " from " + clientSocket.getRemoteSocketAddress());
+                    if (admission == admissions.get("load")) {
+                        // A reader expects file bytes, so closing is the only safe answer; the client reloads elsewhere
                         break;
+                    }
+                    writer.println("ERROR_BUSY " + admission.retryAfterMs());
+                    continue;
+                }
+
+                // Background transfers give way while a client is storing or loading
+                boolean clientIo = isClientIo(parts[0]);
+                if (clientIo) transfers.beginClientIo();
+                try {
+                    switch (parts[0]) {
+                        case "STORE":
+                            handleStoreCommand(parts, writer, clientSocket, false);
+                            System.out.println("STORE");
+                            break;
+                        case "REBALANCE_STORE":
+                            // Replicas copied from another Dstore are acknowledged to the Controller just like a client STORE
+                            handleStoreCommand(parts, writer, clientSocket, false);
+                            System.out.println("REBALANCE_STORE");
+                            break;
+                        case "REBALANCE_STORE_DEFLATE":
+                            handleStoreCommand(parts, writer, clientSocket, true);
+                            break;
+                        case "LINK":
+                            handleLinkCommand(parts, writer, clientSocket);
+                            break;
+                        case "LOAD_DATA":
+                            handleLoadDataCommand(parts[1], clientSocket);
+                            System.out.println("LOAD DATA");
+                            break;
+                        case "STORE_BATCH":
+                            handleStoreBatchCommand(parts, writer, clientSocket);
+                            System.out.println("STORE BATCH");
+                            break;
+                        case "LOAD_DATA_BATCH":
+                            handleLoadDataBatchCommand(parts, clientSocket);
+                            System.out.println("LOAD DATA BATCH");
+                            break;
+                        case "SHARD_STORE":
+                            handleShardStore(parts, writer, clientSocket);
+                            break;
+                        case "SHARD_DATA":
+                            handleShardData(parts[1], clientSocket);
+                            break;
+                        case "SHARD_PLACEMENT":
+                            handleShardPlacement(parts);
+                            break;
+                        default:
+                            writer.println("ERROR_UNKNOWN_COMMAND");
+                            System.out.println("Unknown command: " + header);
+                            break;
+                    }
+                } finally {
+                    if (clientIo) transfers.endClientIo();
+                    if (admission != null) admission.exit(ticket);
                 }
             }
     
@@ -102,30 +310,54 @@ public class Dstore {
         }
     }
     
+    private String statsLine() {
+        StringBuilder stats = new StringBuilder("STATS");
+        stats.append(' ').append(transfers.describe());
+        stats.append(' ').append(syncer.describe());
+        for (Admission admission : admissions.values()) {
+            stats.append(' ').append(admission.describe());
+        }
+        if (cache != null) {
+            stats.append(" cacheHits=").append(cache.getHits())
+                 .append(" cacheMisses=").append(cache.getMisses())
+                 .append(" cacheEvictions=").append(cache.getEvictions())
+                 .append(" cacheBytes=").append(cache.getCachedBytes());
+        }
+        if (striped != null) {
+            stats.append(' ').append(striped.describe());
+        }
+        if (dedup != null) {
+            stats.append(" dedupedBytes=").append(dedup.getDedupedBytes());
+        }
+        if (compression != null) {
+            stats.append(" compressedBytesIn=").append(compression.getBytesIn())
+                 .append(" compressedBytesStored=").append(compression.getBytesStored())
+                 .append(" compressionSkipped=").append(compression.getSkipped());
+        }
+        return stats.toString();
+    }
+
 /////////////////////////////////////////STORE AND LOAD ////////////////////////////////////////////////////////////////////////////
     
    
 
     private void handleLoadDataCommand(String filename, Socket clientSocket) {
+        long startTime = System.currentTimeMillis();
         try {
             // Set the socket read timeout to zero (indefinite)
             clientSocket.setSoTimeout(0);
             System.out.println("LOAD client connection from: " + clientSocket.getRemoteSocketAddress());
-            File file = new File(fileFolder + File.separator + filename);
 
             // Check if the file exists
-            if (!file.exists()) {
+            if (!holdsLocally(filename)) {
                 System.err.println(clientSocket.getPort() + " in dstore " + port + " :File does not exist: " + filename);
                 clientSocket.close();
                 return;
             }
 
-            byte[] fileContent = Files.readAllBytes(file.toPath());
-            System.out.println(new String(fileContent, StandardCharsets.UTF_8));
-
             OutputStream out = clientSocket.getOutputStream();
 
-            out.write(fileContent);
+            transferLocal(filename, out);
             out.flush();
             System.out.println("file successful written" + filename);
         } catch (Exception e) {
@@ -135,12 +367,29 @@ public class Dstore {
             } catch (IOException e1) {
                 System.err.println(clientSocket.getPort() + " in dstore " + port + " :Error closing client socket: " + e1.getMessage());
             }
+        } finally {
+            notifyControllerLoadDone(filename, System.currentTimeMillis() - startTime);
         }
     }
 
+    // Lets the Controller track outstanding loads and latency for replica selection
+    private void notifyControllerLoadDone(String filename, long latencyMs) {
+        ControllerLink link = linkFor(filename);
+        if (link != null) {
+            link.out.println("LOAD_DONE " + filename + " " + latencyMs);
+        }
+    }
+
+    // The link to the Controller that owns the file, or null while the Dstore is (re)joining it
+    private ControllerLink linkFor(String filename) {
+        if (controllerLinks.size() != partitionMap.size()) return null;
+        return controllerLinks.get(partitionMap.ownerIndex(filename));
+    }
+
 
 
-    private void handleStoreCommand(String[] commandParts, PrintWriter writer, Socket clientSocket) {
+    // With deflated set the data arrives deflated on the wire; size is still the original size
+    private void handleStoreCommand(String[] commandParts, PrintWriter writer, Socket clientSocket, boolean deflated) {
         if (commandParts.length != 3) {
             writer.println("ERROR_MALFORMED_COMMAND");
             System.out.println("Malformed STORE command: " + String.join(" ", commandParts));
@@ -159,51 +408,167 @@ public class Dstore {
 
         System.out.println("Preparing to store file: " + filename + " with size: " + filesize);
 
-        File file = new File(fileFolder, filename);
-
         writer.println("ACK");
         System.out.println("Sent ACK to client.");
 
-        // Prepare to receive the file data
-        byte[] buffer = new byte[4096];
-        int totalRead = 0;
-
-        try (FileOutputStream fileOut = new FileOutputStream(file)) {
-            InputStream fileStream = clientSocket.getInputStream();
-            while (totalRead < filesize) {
-                int bytesRead = fileStream.read(buffer);
-                if (bytesRead == -1) {
-                    break;
-                }
-                fileOut.write(buffer, 0, bytesRead);
-                totalRead += bytesRead;
-                System.out.println("Received " + totalRead + " bytes so far.");
+        boolean complete;
+        Inflater inflater = deflated ? new Inflater(true) : null;
+        try {
+            InputStream in = clientSocket.getInputStream();
+            if (deflated) {
+                in = new InflaterInputStream(in, inflater, 64 * 1024);
+            }
+            complete = store.write(filename, in, filesize);
+            if (complete) {
+                syncer.commit(store, Collections.singletonList(filename), filesize);
             }
         } catch (IOException e) {
             System.out.println("Error storing file: " + filename + ". " + e.getMessage());
             writer.println("ERROR_STORING_FILE");
             return;
+        } finally {
+            if (inflater != null) inflater.end();
         }
 
         // Verify that the entire file was received
-        if (totalRead == filesize) {
+        if (complete) {
             notifyControllerStoreAck(filename);  
             System.out.println("File stored successfully: " + filename);
         } else {
-            System.out.println("File transfer incomplete. Expected: " + filesize + ", received: " + totalRead);
+            System.out.println("File transfer incomplete. Expected: " + filesize + " bytes for " + filename);
             writer.println("ERROR_STORING_FILE");
         }
     }
 
+    private void handleStoreBatchCommand(String[] commandParts, PrintWriter writer, Socket clientSocket) {
+        // STORE_BATCH n f1 s1 ... fn sn, followed by the contents of all files back to back
+        List<Pair<String, Long>> files = new ArrayList<>();
+        try {
+            int count = Integer.parseInt(commandParts[1]);
+            if (commandParts.length != 2 + 2 * count) {
+                writer.println("ERROR_MALFORMED_COMMAND");
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                files.add(new Pair<>(commandParts[2 + 2 * i], Long.parseLong(commandParts[3 + 2 * i])));
+            }
+        } catch (NumberFormatException e) {
+            writer.println("ERROR_MALFORMED_COMMAND");
+            System.out.println("Malformed STORE_BATCH command: " + String.join(" ", commandParts));
+            return;
+        }
+
+        writer.println("ACK");
+
+        List<String> stored = new ArrayList<>();
+        try {
+            InputStream in = clientSocket.getInputStream();
+            for (Pair<String, Long> file : files) {
+                if (!store.write(file.getFirst(), in, file.getSecond())) {
+                    System.out.println("Batch transfer incomplete at file: " + file.getFirst());
+                    writer.println("ERROR_STORING_FILE");
+                    break;
+                }
+                stored.add(file.getFirst());
+            }
+        } catch (IOException e) {
+            System.out.println("Error storing batch: " + e.getMessage());
+            writer.println("ERROR_STORING_FILE");
+        }
+        try {
+            long storedBytes = 0;
+            for (int i = 0; i < stored.size(); i++) {
+                storedBytes += files.get(i).getSecond();
+            }
+            syncer.commit(store, stored, storedBytes);
+        } catch (IOException e) {
+            System.out.println("Error syncing batch: " + e.getMessage());
+            writer.println("ERROR_STORING_FILE");
+            return;
+        }
+
+        // ACK everything that made it to disk as one group per owning Controller
+        if (!stored.isEmpty() && controllerLinks.size() == partitionMap.size()) {
+            Map<Integer, List<String>> storedByPartition = new HashMap<>();
+            for (String filename : stored) {
+                storedByPartition.computeIfAbsent(partitionMap.ownerIndex(filename), k -> new ArrayList<>()).add(filename);
+            }
+            storedByPartition.forEach((partition, filenames) -> {
+                ControllerLink link = controllerLinks.get(partition);
+                if (link == null) return;
+                for (String filename : filenames) {
+                    reportContentId(link, filename);
+                }
+                link.acks.storeAcks(filenames);
+            });
+        }
+        System.out.println("Stored " + stored.size() + " of " + files.size() + " files from batch");
+    }
+
+    private void handleLoadDataBatchCommand(String[] commandParts, Socket clientSocket) {
+        // LOAD_DATA_BATCH n f1 ... fn, answered with the contents of all files back to back
+        try {
+            clientSocket.setSoTimeout(0);
+            OutputStream out = clientSocket.getOutputStream();
+            for (int i = 2; i < commandParts.length; i++) {
+                long startTime = System.currentTimeMillis();
+                if (!holdsLocally(commandParts[i])) {
+                    System.err.println("in dstore " + port + " :File does not exist: " + commandParts[i]);
+                    for (int j = i; j < commandParts.length; j++) {
+                        notifyControllerLoadDone(commandParts[j], 0);
+                    }
+                    clientSocket.close();
+                    return;
+                }
+                transferLocal(commandParts[i], out);
+                notifyControllerLoadDone(commandParts[i], System.currentTimeMillis() - startTime);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("in dstore " + port + " :Error loading batch: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException e1) {
+                System.err.println("in dstore " + port + " :Error closing client socket: " + e1.getMessage());
+            }
+        }
+    }
+
+    // LINK f size id: a peer offers a replica by content ID; only if the content is not here does the data follow
+    private void handleLinkCommand(String[] commandParts, PrintWriter writer, Socket clientSocket) throws IOException {
+        if (commandParts.length != 4) {
+            writer.println("ERROR_MALFORMED_COMMAND");
+            return;
+        }
+        String filename = commandParts[1];
+        if (store.link(filename, commandParts[3], Long.parseLong(commandParts[2]))) {
+            syncer.commit(store, Collections.singletonList(filename), 0);
+            writer.println("LINKED");
+            notifyControllerStoreAck(filename);
+            System.out.println("Linked " + filename + " to stored content " + commandParts[3]);
+            return;
+        }
+        handleStoreCommand(Arrays.copyOf(commandParts, 3), writer, clientSocket, false);
+    }
+
     private void notifyControllerStoreAck(String filename) {
-        if (controllerOut != null) {
+        ControllerLink link = linkFor(filename);
+        if (link != null) {
+            reportContentId(link, filename);
             System.out.println("STORE_ACK");
-            controllerOut.println("STORE_ACK " + filename);
+            link.acks.storeAck(filename);
+        }
+    }
+    // Sent ahead of the ACK so the Controller knows the content by the time the file completes
+    private void reportContentId(ControllerLink link, String filename) {
+        String contentId = store.contentId(filename);
+        if (contentId != null) {
+            link.out.println("CONTENT_ID " + filename + " " + contentId);
         }
     }
 ///////////////////////////////// REBALANCE /////////////////////////////////////////////////////////////////////////////////////
     
-private void handleRebalanceCommand(String[] commandParts) {
+private void handleRebalanceCommand(ControllerLink link, String[] commandParts) {
         System.out.println("REBALANCE");
         int numFilesToSend = Integer.parseInt(commandParts[1]);
         int currentIndex = 2;
@@ -225,74 +590,168 @@ private void handleRebalanceCommand(String[] commandParts) {
             filesToRemove.add(commandParts[currentIndex++]);
         }
 
-        // Send files to target Dstores
+        // Send files to target Dstores; a file that did not reach all of them is kept
+        Set<String> unsent = new HashSet<>();
         for (Pair<String, List<String>> fileSend : filesToSend) {
             String filename = fileSend.getFirst();
             List<String> targetDstores = fileSend.getSecond();
 
             for (String dstore : targetDstores) {
-                sendFileToDstore(filename, dstore);
+                if (!sendFileToDstore(filename, dstore)) {
+                    unsent.add(filename);
+                }
             }
         }
 
+        List<String> kept = new ArrayList<>();
         for (String filename : filesToRemove) {
-            File file = new File(fileFolder, filename);
-            if (file.exists()) {
-                file.delete();
-                System.out.println("Removed file: " + filename);
+            if (unsent.contains(filename)) {
+                kept.add(filename);
+                System.out.println("Keeping file " + filename + ", it was not copied to all its new Dstores");
+                continue;
+            }
+            try {
+                if (store.delete(filename)) {
+                    System.out.println("Removed file: " + filename);
+                }
+            } catch (IOException e) {
+                System.out.println("Error removing file: " + filename + ". " + e.getMessage());
+                kept.add(filename);
             }
         }
 
-        notifyControllerRebalanceComplete();
+        notifyControllerRebalanceComplete(link, kept);
     }
 
-    private void sendFileToDstore(String filename, String dstoreAddress) {
+    // True once the target has acknowledged and been sent the whole file, or already had its content
+    private boolean sendFileToDstore(String filename, String dstoreAddress) {
+        try {
+            transfers.beginTransfer();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
         try (Socket dstoreSocket = new Socket(dstoreAddress.split(":")[0], Integer.parseInt(dstoreAddress.split(":")[1]));
             PrintWriter writer = new PrintWriter(dstoreSocket.getOutputStream(), true);
             BufferedReader reader = new BufferedReader(new InputStreamReader(dstoreSocket.getInputStream()));
-            InputStream fileInputStream = new FileInputStream(new File(fileFolder, filename));
             OutputStream dstoreOutputStream = dstoreSocket.getOutputStream()) {
 
-            long fileSize = new File(fileFolder, filename).length();
-            writer.println("REBALANCE_STORE " + filename + " " + fileSize);
+            long fileSize = store.size(filename);
+            if (fileSize < 0) {
+                System.out.println("Cannot send missing file " + filename + " to Dstore " + dstoreAddress);
+                return false;
+            }
+            String contentId = store.contentId(filename);
+            boolean deflate = contentId == null && WIRE_COMPRESSION && worthDeflating(filename);
+            if (contentId != null) {
+                writer.println("LINK " + filename + " " + fileSize + " " + contentId);
+            } else if (deflate) {
+                writer.println("REBALANCE_STORE_DEFLATE " + filename + " " + fileSize);
+            } else {
+                writer.println("REBALANCE_STORE " + filename + " " + fileSize);
+            }
 
-       
             String response = reader.readLine();
-            if (response.equals("ACK")) {
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fileInputStream.read(buffer)) != -1) {
-                    dstoreOutputStream.write(buffer, 0, bytesRead);
+            OutputStream throttled = transfers.throttle(dstoreOutputStream);
+            if ("LINKED".equals(response)) {
+                System.out.println("Dstore " + dstoreAddress + " already had the content of " + filename);
+                return true;
+            } else if ("ACK".equals(response) && deflate) {
+                Deflater deflater = new Deflater(COMPRESSION_LEVEL, true);
+                try {
+                    DeflaterOutputStream deflating = new DeflaterOutputStream(throttled, deflater, 64 * 1024);
+                    store.transferTo(filename, deflating);
+                    deflating.finish();
+                    deflating.flush();
+                } finally {
+                    deflater.end();
                 }
+                System.out.println("Sent file " + filename + " deflated to Dstore " + dstoreAddress);
+                return true;
+            } else if ("ACK".equals(response)) {
+                store.transferTo(filename, throttled);
+                throttled.flush();
                 System.out.println("Sent file " + filename + " to Dstore " + dstoreAddress);
+                return true;
             }
+            System.out.println("Dstore " + dstoreAddress + " refused " + filename + ": " + response);
+            return false;
         } catch (IOException e) {
             System.out.println("Error sending file to Dstore: " + e.getMessage());
+            return false;
+        } finally {
+            transfers.endTransfer();
         }
     }
 
-    private void notifyControllerRebalanceComplete() {
-        if (controllerOut != null) {
-            controllerOut.println("REBALANCE_COMPLETE");
-            System.out.println("Rebalance operation completed.");
+    private Admission admissionFor(String command) {
+        switch (command) {
+            case "STORE":
+            case "STORE_BATCH":
+            case "REBALANCE_STORE":
+            case "REBALANCE_STORE_DEFLATE":
+            case "LINK":
+            case "SHARD_STORE":
+                return admissions.get("store");
+            case "LOAD_DATA":
+            case "LOAD_DATA_BATCH":
+            case "SHARD_DATA":
+                return admissions.get("load");
+            default:
+                return null;
         }
     }
 
+    private void rejectConnection(Socket socket) {
+        System.out.println("Too many connections, rejected " + socket.getRemoteSocketAddress());
+        try (Socket rejected = socket) {
+            Admission load = admissions.get("load");
+            new PrintWriter(rejected.getOutputStream(), true).println("ERROR_BUSY " + (load == null ? 100 : load.retryAfterMs()));
+        } catch (IOException e) {
+            System.out.println("Error rejecting connection: " + e.getMessage());
+        }
+    }
+
+    private static boolean isClientIo(String command) {
+        return command.equals("STORE") || command.equals("LOAD_DATA")
+            || command.equals("STORE_BATCH") || command.equals("LOAD_DATA_BATCH");
+    }
+
+    // THROTTLE bytesPerSec maxTransfers [yieldMs], from an operator or relayed by the Controller
+    private String handleThrottleCommand(String[] parts) {
+        try {
+            long bytesPerSecond = Long.parseLong(parts[1]);
+            int maxTransfers = Integer.parseInt(parts[2]);
+            long yieldMillis = parts.length > 3 ? Long.parseLong(parts[3]) : REBALANCE_YIELD_MS;
+            transfers.configure(bytesPerSecond, maxTransfers, yieldMillis);
+            return "THROTTLE_OK " + transfers.describe();
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "ERROR_MALFORMED_COMMAND";
+        }
+    }
+
+    // Files kept compressed at rest were judged when stored; others are sampled
+    private boolean worthDeflating(String filename) throws IOException {
+        if (compression != null) {
+            return compression.isStoredCompressed(filename);
+        }
+        return Compression.isCompressible(store.map(filename));
+    }
+
+    // Names the files it was told to remove but kept, so the Controller goes on counting those replicas
+    private void notifyControllerRebalanceComplete(ControllerLink link, List<String> kept) {
+        link.out.println(kept.isEmpty() ? "REBALANCE_COMPLETE" : "REBALANCE_COMPLETE " + String.join(" ", kept));
+        System.out.println("Rebalance operation completed.");
+    }
+
 ////////////////////////////// HANDLE COMMANDS //////////////////////////////////////////////////////////////////////////////////////
     
 private void clearLocalData() {
         try {
-            Path directory = Paths.get(fileFolder);
-            if (!Files.exists(directory)) {
-                System.out.println("Directory does not exist, expected to exist: " + directory);
-                return; 
-            }
-            Files.walk(directory)
-                 .sorted(Comparator.reverseOrder()) 
-                 .map(Path::toFile)
-                 .filter(file -> !file.equals(directory.toFile())) 
-                 .forEach(File::delete);
-    
+            store.clear();
+            if (shardFolder.exists()) {
+                shards.clear();
+            }
             System.out.println("Cleared local data in existing directory successfully.");
         } catch (IOException e) {
             System.out.println("Failed to clear local data: " + e.getMessage());
@@ -302,24 +761,170 @@ private void clearLocalData() {
     
 
     private void connectToController() throws IOException {
-        controllerSocket = new Socket(controllerHost, controllerPort);
-        controllerOut = new PrintWriter(controllerSocket.getOutputStream(), true);
-        controllerIn = new BufferedReader(new InputStreamReader(controllerSocket.getInputStream()));
-    
-        controllerOut.println("JOIN " + port); 
-        System.out.println("Sent JOIN message with port: " + port);
-    
-        // Listen for commands from the controller in a separate thread
-        new Thread(this::handleControllerCommands).start();
+        // The first JOIN reports a real count; later ones and heartbeats take the latest recount
+        countUsedBytes();
+        usageCounter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "usage-counter");
+            t.setDaemon(true);
+            return t;
+        });
+        usageCounter.scheduleWithFixedDelay(this::countUsedBytes, USAGE_REFRESH_MS, USAGE_REFRESH_MS, TimeUnit.MILLISECONDS);
+
+        // Join every Controller; controllerLinks is indexed by partition
+        for (int i = 0; i < partitionMap.size(); i++) {
+            controllerLinks.add(null);
+        }
+        for (int i = 0; i < partitionMap.size(); i++) {
+            if (!connectLink(i, partitionMap.getControllerPort(i))) {
+                throw new IOException("No Controller reachable for partition " + i);
+            }
+        }
+
+        if (HEARTBEAT_INTERVAL_MS > 0) {
+            heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "heartbeat");
+                t.setDaemon(true);
+                return t;
+            });
+            heartbeat.scheduleAtFixedRate(() -> {
+                for (ControllerLink link : controllerLinks) {
+                    if (link != null) link.out.println("HEARTBEAT " + capacityReport());
+                }
+            }, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * "capacity used free load" for JOIN and HEARTBEAT: bytes this Dstore offers, bytes of
+     * files it stores, bytes still free for new files, and connections being served.
+     */
+    private String capacityReport() {
+        long capacity = 0;
+        long free = 0;
+        Set<java.nio.file.FileStore> disks = new HashSet<>();
+        for (File root : roots) {
+            try {
+                java.nio.file.FileStore disk = java.nio.file.Files.getFileStore(root.toPath());
+                if (disks.add(disk)) {
+                    capacity += disk.getTotalSpace();
+                    free += disk.getUsableSpace();
+                }
+            } catch (IOException e) {
+                System.out.println("Cannot read the size of the disk holding " + root + ": " + e.getMessage());
+            }
+        }
+
+        if (CAPACITY_BYTES > 0) {
+            capacity = Math.min(capacity, CAPACITY_BYTES);
+            free = Math.max(0, Math.min(free, CAPACITY_BYTES - usedBytes));
+        }
+        return capacity + " " + usedBytes + " " + free + " " + openConnections.get();
+    }
+
+    // Walks every stored file, so it runs at startup and on the usage-counter thread, never for a report
+    private void countUsedBytes() {
+        long used = 0;
+        try {
+            for (String filename : store.list()) {
+                used += Math.max(0, store.size(filename));
+            }
+            usedBytes = used;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Cannot count stored bytes: " + e.getMessage());
+        }
+    }
+
+    // Tries the partition's Controllers starting with preferredPort and joins the first that answers
+    private boolean connectLink(int partition, int preferredPort) {
+        int[] group = partitionMap.getGroup(partition);
+        int first = 0;
+        for (int i = 0; i < group.length; i++) {
+            if (group[i] == preferredPort) first = i;
+        }
+        for (int i = 0; i < group.length; i++) {
+            int controllerPort = group[(first + i) % group.length];
+            try {
+                ControllerLink link = new ControllerLink(partition, controllerPort);
+                controllerLinks.set(partition, link);
+
+                link.out.println("JOIN " + port + " " + capacityReport() + (ZONE != null ? " " + ZONE : ""));
+                System.out.println("Sent JOIN message with port: " + port + " to controller " + controllerPort);
+                sendInventory(link);
+
+                // Listen for commands from the controller in a separate thread
+                new Thread(() -> handleControllerCommands(link)).start();
+                return true;
+            } catch (IOException e) {
+                System.out.println("Controller on port " + controllerPort + " unavailable: " + e.getMessage());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reports the files this Dstore already holds for the link's partition as
+     * "INVENTORY n f1 s1 ... fn sn" chunks followed by INVENTORY_END, so the Controller can
+     * re-attach them instead of re-replicating everything after a restart or failover.
+     */
+    private void sendInventory(ControllerLink link) {
+        List<String> entries = new ArrayList<>();
+        int total = 0;
+        try {
+            for (String filename : store.list()) {
+                if (partitionMap.ownerIndex(filename) != link.partition) continue;
+                long size = store.size(filename);
+                if (size < 0) continue;
+                entries.add(filename + " " + size);
+                if (entries.size() == INVENTORY_BATCH) {
+                    link.out.println("INVENTORY " + entries.size() + " " + String.join(" ", entries));
+                    total += entries.size();
+                    entries.clear();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Error listing files for inventory: " + e.getMessage());
+        }
+        if (!entries.isEmpty()) {
+            link.out.println("INVENTORY " + entries.size() + " " + String.join(" ", entries));
+            total += entries.size();
+        }
+        link.out.println("INVENTORY_END");
+        System.out.println("Sent inventory of " + total + " files to controller " + link.controllerPort);
+    }
+
+    private void reconnect(ControllerLink lost, int preferredPort) {
+        lost.acks.shutdown();
+        try {
+            lost.socket.close();
+        } catch (IOException e) {
+            System.out.println("Error closing controller socket: " + e.getMessage());
+        }
+        controllerLinks.set(lost.partition, null);
+        while (running) {
+            try {
+                Thread.sleep(CONTROLLER_RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (connectLink(lost.partition, preferredPort)) {
+                return;
+            }
+        }
     }
 
-    private void handleControllerCommands() {
-        while (running && controllerSocket.isConnected()) {
+    private void handleControllerCommands(ControllerLink link) {
+        // Unless told where the leader is, retry the partition's other Controllers first
+        int[] group = partitionMap.getGroup(link.partition);
+        int nextPort = group[0];
+        for (int i = 0; i < group.length; i++) {
+            if (group[i] == link.controllerPort) nextPort = group[(i + 1) % group.length];
+        }
+
+        while (running && link.socket.isConnected()) {
             try {
-                String command = controllerIn.readLine();
+                String command = link.in.readLine();
                 if (command == null) {
-                    System.out.println("Lost connection to the controller");
-                    running = false;
+                    System.out.println("Lost connection to the controller on port " + link.controllerPort);
                     break;
                 }
     
@@ -328,6 +933,11 @@ private void clearLocalData() {
                     System.out.println("Malformed command from controller: " + command);
                     continue;
                 }
+                if (parts[0].equals("ERROR_NOT_LEADER") && parts.length >= 2) {
+                    System.out.println("Controller on port " + link.controllerPort + " is a standby, leader is " + parts[1]);
+                    nextPort = Integer.parseInt(parts[1]);
+                    break;
+                }
     
               
                 switch (parts[0]) {
@@ -335,14 +945,35 @@ private void clearLocalData() {
                         if (parts.length < 2) {
                             System.out.println("REMOVE command missing filename.");
                         } else {
-                            handleRemoveCommand(parts[1], controllerOut);
+                            handleRemoveCommand(link, parts[1]);
                         }
                         break;
+                    case "REMOVE_BATCH":
+                        handleRemoveBatchCommand(link, parts, false);
+                        break;
+                    case "REMOVE_COPIES":
+                        handleRemoveBatchCommand(link, parts, true);
+                        break;
                     case "REBALANCE":
-                        handleRebalanceCommand(parts);
+                        handleRebalanceCommand(link, parts);
                         break;
                     case "LIST":
-                        handleListCommand();
+                        handleListCommand(link);
+                        break;
+                    case "THROTTLE":
+                        handleThrottleCommand(parts);
+                        break;
+                    case "MERKLE_QUERY":
+                        handleMerkleQuery(link, parts);
+                        break;
+                    case "MERKLE_LEAVES":
+                        handleMerkleLeaves(link, parts);
+                        break;
+                    case "EC_ENCODE":
+                        new Thread(() -> handleEcEncode(link, parts)).start();
+                        break;
+                    case "EC_REBUILD":
+                        new Thread(() -> handleEcRebuild(parts)).start();
                         break;
                     default:
                         System.out.println("Unknown command from controller: " + command);
@@ -351,53 +982,456 @@ private void clearLocalData() {
     
             } catch (IOException e) {
                 System.out.println("Error in controller communication: " + e.getMessage());
-                running = false;
                 break;
             }
         }
-        System.out.println("Stopped listening to the controller");
+        System.out.println("Stopped listening to the controller on port " + link.controllerPort);
+        if (running) {
+            reconnect(link, nextPort);
+        }
     }
     
-    private void handleListCommand() {
-        File folder = new File(fileFolder);
-        File[] listOfFiles = folder.listFiles();
+    private void handleListCommand(ControllerLink link) {
+        // Each Controller only sees the files in its own partition, so rebalancing never touches another partition's files
         StringBuilder fileListBuilder = new StringBuilder("LIST");
-        if (listOfFiles != null) {
-            for (File file : listOfFiles) {
-                if (file.isFile()) {
-                    fileListBuilder.append(" ").append(file.getName());
+        try {
+            for (String filename : store.list()) {
+                if (linkFor(filename) == link) {
+                    fileListBuilder.append(" ").append(filename);
                 }
             }
+        } catch (IOException e) {
+            System.out.println("Error listing files: " + e.getMessage());
         }
-        controllerOut.println(fileListBuilder.toString());
+        link.out.println(fileListBuilder.toString());
         System.out.println("Sent file list to controller.");
     }
     
     
-    private void handleRemoveCommand(String filename, PrintWriter controllerWriter) {
-        File file = new File(fileFolder, filename);
+    // MERKLE_QUERY level i1 ... in, answered with MERKLE_HASHES level i1 h1 ... in hn
+    private void handleMerkleQuery(ControllerLink link, String[] parts) {
+        MerkleTree tree = merkle.getTree(link.partition);
+        int level = Integer.parseInt(parts[1]);
+        StringBuilder reply = new StringBuilder("MERKLE_HASHES ").append(level);
+        for (int i = 2; i < parts.length; i++) {
+            int index = Integer.parseInt(parts[i]);
+            reply.append(" ").append(index).append(" ").append(Long.toHexString(tree.hash(level, index)));
+        }
+        link.out.println(reply);
+    }
+
+    // MERKLE_LEAVES n b1 ... bn, answered with MERKLE_FILES n f1 s1 ... fn sn for those buckets
+    private void handleMerkleLeaves(ControllerLink link, String[] parts) {
+        Set<Integer> buckets = new HashSet<>();
+        for (int i = 2; i < parts.length; i++) {
+            buckets.add(Integer.parseInt(parts[i]));
+        }
+        List<String> entries = merkle.filesInBuckets(link.partition, buckets);
+        link.out.println("MERKLE_FILES " + entries.size() + (entries.isEmpty() ? "" : " " + String.join(" ", entries)));
+        System.out.println("Sent " + entries.size() + " files from " + buckets.size() + " differing Merkle leaves");
+    }
+
+    private void handleRemoveCommand(ControllerLink link, String filename) {
         System.out.println("Processing REMOVE command for file: " + filename);
     
-        if (file.delete()) {
+        boolean removed;
+        try {
+            removed = deleteLocal(filename);
+        } catch (IOException e) {
+            System.out.println("Error removing file: " + filename + ". " + e.getMessage());
+            removed = false;
+        }
+
+        if (removed) {
             System.out.println("File successfully removed: " + filename);
-            controllerWriter.println("REMOVE_ACK " + filename); 
+            link.acks.removeAck(filename);
         } else {
             System.out.println("Failed to remove file: " + filename);
-            if (!file.exists()) {
-                controllerWriter.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
+            if (!holdsLocally(filename)) {
+                link.out.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
             } else {
-                controllerWriter.println("ERROR_DELETING_FILE " + filename);
+                link.out.println("ERROR_DELETING_FILE " + filename);
             }
         }
     }
     
+    // REMOVE_BATCH n f1 ... fn, or REMOVE_COPIES n f1 ... fn, which drops stale whole copies only, keeps any shard
+    // of the file and, since no removal waits on it, sends no ACKs
+    private void handleRemoveBatchCommand(ControllerLink link, String[] parts, boolean copiesOnly) {
+        List<String> removed = new ArrayList<>();
+        for (int i = 2; i < parts.length; i++) {
+            String filename = parts[i];
+            boolean deleted;
+            try {
+                deleted = copiesOnly ? store.delete(filename) : deleteLocal(filename);
+            } catch (IOException e) {
+                System.out.println("Error removing file: " + filename + ". " + e.getMessage());
+                deleted = false;
+            }
+            if (deleted) {
+                removed.add(filename);
+            } else if (copiesOnly) {
+                continue;
+            } else if (!holdsLocally(filename)) {
+                link.out.println("ERROR_FILE_DOES_NOT_EXIST " + filename);
+            } else {
+                link.out.println("ERROR_DELETING_FILE " + filename);
+            }
+        }
+        if (!removed.isEmpty() && !copiesOnly) {
+            link.acks.removeAcks(removed);
+        }
+        System.out.println("Removed " + removed.size() + (copiesOnly ? " stale copies" : " files from batch"));
+    }
+
+/////////////////////////////////// ERASURE CODING ///////////////////////////////////////////////////////////////////////////////////////
+
+    // A file is held either whole or as one Reed-Solomon shard
+    private boolean holdsLocally(String filename) {
+        return store.exists(filename) || shards.exists(filename + ".meta");
+    }
+
+    private void transferLocal(String filename, OutputStream out) throws IOException {
+        if (store.exists(filename)) {
+            store.transferTo(filename, out);
+        } else {
+            transferDecoded(filename, out);
+        }
+    }
+
+    private boolean deleteLocal(String filename) throws IOException {
+        boolean deleted = store.delete(filename);
+        if (shards.delete(filename + ".shard")) {
+            deleted = true;
+        }
+        shards.delete(filename + ".meta");
+        return deleted;
+    }
+
+    // Shard metadata: "size k m index e0 ... en", where ei is the Dstore holding shard i
+    private String[] readShardMeta(String filename) throws IOException {
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        shards.transferTo(filename + ".meta", meta);
+        return meta.toString("UTF-8").trim().split(" ");
+    }
+
+    private void writeShardMeta(String filename, String meta) throws IOException {
+        byte[] bytes = meta.getBytes("UTF-8");
+        shards.write(filename + ".meta", new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private boolean writeShard(String filename, String meta, InputStream in, long shardSize) throws IOException {
+        shardFolder.mkdirs();
+        if (!shards.write(filename + ".shard", in, shardSize)) {
+            shards.delete(filename + ".shard");
+            return false;
+        }
+        writeShardMeta(filename, meta);
+        syncer.commit(shards, Arrays.asList(filename + ".shard", filename + ".meta"), shardSize);
+        return true;
+    }
+
+    /**
+     * EC_ENCODE f size k m e0 ... en: this Dstore has the whole file and streams it into
+     * shards one stripe at a time, pushing each shard to its holder (itself included) as it
+     * goes. If the file cannot be read or any push fails, every push is cut off, so no
+     * holder keeps a partial shard, and the Controller is told with EC_ENCODE_FAILED so it
+     * can drop the store.
+     */
+    private void handleEcEncode(ControllerLink link, String[] parts) {
+        String filename = parts[1];
+        long size = Long.parseLong(parts[2]);
+        int k = Integer.parseInt(parts[3]);
+        int m = Integer.parseInt(parts[4]);
+        List<String> placement = new ArrayList<>(Arrays.asList(parts).subList(5, parts.length));
+        List<ShardPush> pushes = new ArrayList<>();
+        boolean encoded = false;
+        try {
+            long shardSize = ErasureStripes.shardSize(size, k);
+            OutputStream[] outputs = new OutputStream[placement.size()];
+            for (int i = 0; i < placement.size(); i++) {
+                ShardPush push = openShardPush(placement.get(i), shardStoreCommand(filename, shardSize, size, k, m, i, placement), false);
+                pushes.add(push);
+                outputs[i] = push.out;
+            }
+            try (ErasureStripes.Encoder encoder = new ErasureStripes.Encoder(new ReedSolomon(k, m), size, outputs)) {
+                store.transferTo(filename, encoder);
+            }
+            for (ShardPush push : pushes) {
+                push.out.flush();
+            }
+            encoded = true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error encoding " + filename + ": " + e.getMessage());
+        } finally {
+            pushes.forEach(ShardPush::close);
+        }
+        if (!encoded) {
+            link.out.println("EC_ENCODE_FAILED " + filename);
+            return;
+        }
+        try {
+            store.delete(filename);
+        } catch (IOException e) {
+            System.out.println("Error dropping the whole copy of " + filename + ": " + e.getMessage());
+        }
+        System.out.println("Encoded " + filename + " into " + k + "+" + m + " shards");
+    }
+
+    /**
+     * EC_REBUILD f n t1 ... tn l1 ... ll: recomputes the shards whose holders are not among
+     * the live endpoints l, streaming them stripe by stripe to the targets t, and tells the
+     * live holders.
+     */
+    private void handleEcRebuild(String[] parts) {
+        String filename = parts[1];
+        int targetCount = Integer.parseInt(parts[2]);
+        List<String> targets = Arrays.asList(parts).subList(3, 3 + targetCount);
+        Set<String> live = new HashSet<>(Arrays.asList(parts).subList(3 + targetCount, parts.length));
+        List<Closeable> sources = new ArrayList<>();
+        List<ShardPush> pushes = new ArrayList<>();
+        try {
+            String[] meta = readShardMeta(filename);
+            long size = Long.parseLong(meta[0]);
+            int k = Integer.parseInt(meta[1]);
+            int m = Integer.parseInt(meta[2]);
+            int ownIndex = Integer.parseInt(meta[3]);
+            List<String> placement = new ArrayList<>(Arrays.asList(meta).subList(4, meta.length));
+
+            List<Integer> lost = new ArrayList<>();
+            for (int i = 0; i < placement.size(); i++) {
+                if (i != ownIndex && !live.contains(placement.get(i))) {
+                    lost.add(i);
+                }
+            }
+            InputStream[] inputs = openShards(filename, placement, ownIndex, k, new HashSet<>(lost), sources);
+            int rebuilt = Math.min(lost.size(), targets.size());
+            for (int j = 0; j < rebuilt; j++) {
+                placement.set(lost.get(j), targets.get(j));
+            }
+            long shardSize = ErasureStripes.shardSize(size, k);
+            OutputStream[] outputs = new OutputStream[placement.size()];
+            for (int j = 0; j < rebuilt; j++) {
+                int index = lost.get(j);
+                ShardPush push = openShardPush(placement.get(index), shardStoreCommand(filename, shardSize, size, k, m, index, placement), true);
+                pushes.add(push);
+                outputs[index] = push.out;
+            }
+            ErasureStripes.decode(new ReedSolomon(k, m), size, inputs, null, outputs);
+            for (ShardPush push : pushes) {
+                push.out.flush();
+            }
+
+            // Everyone else keeps their shard but learns where the rebuilt ones went
+            writeShardMeta(filename, size + " " + k + " " + m + " " + ownIndex + " " + String.join(" ", placement));
+            for (int i = 0; i < placement.size(); i++) {
+                if (i != ownIndex && !lost.contains(i)) {
+                    sendToPeer(placement.get(i), "SHARD_PLACEMENT " + filename + " " + String.join(" ", placement));
+                }
+            }
+            System.out.println("Rebuilt " + rebuilt + " shards of " + filename);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error rebuilding shards of " + filename + ": " + e.getMessage());
+        } finally {
+            pushes.forEach(ShardPush::close);
+            closeQuietly(sources);
+        }
+    }
+
+    // SHARD_STORE f shardSize size k m index e0 ... en
+    private static String shardStoreCommand(String filename, long shardSize, long size, int k, int m, int index, List<String> placement) {
+        return "SHARD_STORE " + filename + " " + shardSize + " " + size + " " + k + " " + m + " " + index + " " + String.join(" ", placement);
+    }
+
+    // A SHARD_STORE that the holder has ACKed, ready for the shard's bytes
+    private class ShardPush {
+        final Socket socket;
+        final OutputStream out;
+        final boolean background;
+
+        ShardPush(Socket socket, OutputStream out, boolean background) {
+            this.socket = socket;
+            this.out = out;
+            this.background = background;
+        }
+
+        // Closing before every byte was flushed leaves the holder with a short shard, which it discards
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.out.println("Error closing shard push: " + e.getMessage());
+            } finally {
+                if (background) {
+                    transfers.endTransfer();
+                }
+            }
+        }
+    }
+
+    /**
+     * Opens a SHARD_STORE to the Dstore at endpoint, which may be this one. Background
+     * pushes (rebuilt shards) take a transfer slot before connecting, so the holder is not
+     * left waiting on the throttle, and are throttled; the shards of a client STORE are
+     * part of that STORE and go at once.
+     */
+    private ShardPush openShardPush(String endpoint, String command, boolean background) throws IOException {
+        if (background) {
+            try {
+                transfers.beginTransfer();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for a transfer slot");
+            }
+        }
+        String[] hostPort = endpoint.split(":");
+        Socket peer = null;
+        try {
+            peer = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+            peer.setSoTimeout(timeout);
+            new PrintWriter(peer.getOutputStream(), true).println(command);
+            if (!"ACK".equals(new BufferedReader(new InputStreamReader(peer.getInputStream())).readLine())) {
+                throw new IOException("Dstore " + endpoint + " refused SHARD_STORE");
+            }
+            OutputStream out = background ? transfers.throttle(peer.getOutputStream()) : peer.getOutputStream();
+            return new ShardPush(peer, new BufferedOutputStream(out, ErasureStripes.MAX_CHUNK_BYTES), background);
+        } catch (IOException e) {
+            if (peer != null) {
+                peer.close();
+            }
+            if (background) {
+                transfers.endTransfer();
+            }
+            throw e;
+        }
+    }
+
+    // Sends a single command line to another Dstore
+    private void sendToPeer(String endpoint, String command) throws IOException {
+        String[] hostPort = endpoint.split(":");
+        try (Socket peer = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+             PrintWriter writer = new PrintWriter(peer.getOutputStream(), true)) {
+            writer.println(command);
+        }
+    }
+
+    // SHARD_STORE f shardSize size k m index e0 ... en, followed by the shard once ACKed
+    private void handleShardStore(String[] parts, PrintWriter writer, Socket clientSocket) throws IOException {
+        String filename = parts[1];
+        long shardSize = Long.parseLong(parts[2]);
+        String meta = String.join(" ", Arrays.asList(parts).subList(3, parts.length));
+        writer.println("ACK");
+        if (writeShard(filename, meta, clientSocket.getInputStream(), shardSize)) {
+            notifyControllerStoreAck(filename);
+            System.out.println("Stored shard " + parts[6] + " of " + filename);
+        } else {
+            System.out.println("Shard transfer incomplete for " + filename);
+        }
+    }
+
+    private void handleShardData(String filename, Socket clientSocket) throws IOException {
+        if (!shards.exists(filename + ".shard")) {
+            clientSocket.close();
+            return;
+        }
+        OutputStream out = clientSocket.getOutputStream();
+        shards.transferTo(filename + ".shard", out);
+        out.flush();
+    }
+
+    // SHARD_PLACEMENT f e0 ... en
+    private void handleShardPlacement(String[] parts) throws IOException {
+        String filename = parts[1];
+        if (!shards.exists(filename + ".meta")) return;
+        String[] meta = readShardMeta(filename);
+        writeShardMeta(filename, meta[0] + " " + meta[1] + " " + meta[2] + " " + meta[3] + " "
+            + String.join(" ", Arrays.asList(parts).subList(2, parts.length)));
+    }
+
+    // Reassembles a file from any k of its shards and streams it out, one stripe at a time
+    private void transferDecoded(String filename, OutputStream out) throws IOException {
+        String[] meta = readShardMeta(filename);
+        long size = Long.parseLong(meta[0]);
+        int k = Integer.parseInt(meta[1]);
+        int m = Integer.parseInt(meta[2]);
+        int ownIndex = Integer.parseInt(meta[3]);
+        List<String> placement = Arrays.asList(meta).subList(4, meta.length);
+
+        List<Closeable> sources = new ArrayList<>();
+        try {
+            InputStream[] inputs = openShards(filename, placement, ownIndex, k, Collections.emptySet(), sources);
+            ErasureStripes.decode(new ReedSolomon(k, m), size, inputs, out, null);
+        } finally {
+            closeQuietly(sources);
+        }
+    }
+
+    /**
+     * Opens shards in index order, skipping excluded ones, until k are open, so data shards
+     * are preferred and decoding is usually a copy. A holder that does not answer or has no
+     * shard is passed over before any byte is used. Everything opened is added to sources.
+     */
+    private InputStream[] openShards(String filename, List<String> placement, int ownIndex, int k, Set<Integer> excluded,
+                                     List<Closeable> sources) throws IOException {
+        InputStream[] inputs = new InputStream[placement.size()];
+        int have = 0;
+        for (int i = 0; i < placement.size() && have < k; i++) {
+            if (excluded.contains(i)) continue;
+            try {
+                InputStream in;
+                if (i == ownIndex) {
+                    in = shards.open(filename + ".shard");
+                    sources.add(in);
+                } else {
+                    String[] hostPort = placement.get(i).split(":");
+                    Socket peer = new Socket(hostPort[0], Integer.parseInt(hostPort[1]));
+                    sources.add(peer);
+                    peer.setSoTimeout(timeout);
+                    new PrintWriter(peer.getOutputStream(), true).println("SHARD_DATA " + filename);
+                    in = peer.getInputStream();
+                }
+                PushbackInputStream shard = new PushbackInputStream(new BufferedInputStream(in, ErasureStripes.MAX_CHUNK_BYTES));
+                int first = shard.read();
+                if (first < 0) {
+                    throw new EOFException("no shard held");
+                }
+                shard.unread(first);
+                inputs[i] = shard;
+                have++;
+            } catch (IOException e) {
+                System.out.println("Shard " + i + " of " + filename + " unavailable: " + e.getMessage());
+            }
+        }
+        if (have < k) {
+            throw new IOException("Only " + have + " of the " + k + " shards needed for " + filename + " are reachable");
+        }
+        return inputs;
+    }
+
+    private static void closeQuietly(List<Closeable> sources) {
+        for (Closeable source : sources) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                System.out.println("Error closing shard source: " + e.getMessage());
+            }
+        }
+    }
+
 /////////////////////////////////// MAIN /////////////////////////////////////////////////////////////////////////////////////////////////
 
     public void stop() {
         running = false;
+        for (ControllerLink link : controllerLinks) {
+            if (link != null) link.acks.shutdown();
+        }
+        if (heartbeat != null) heartbeat.shutdown();
+        if (usageCounter != null) usageCounter.shutdown();
         try {
             if (serverSocket != null) serverSocket.close();
-            if (controllerSocket != null) controllerSocket.close();
+            for (ControllerLink link : controllerLinks) {
+                if (link != null) link.socket.close();
+            }
         } catch (IOException e) {
             System.out.println("Error closing connections: " + e.getMessage());
         }
@@ -405,7 +1439,7 @@ private void clearLocalData() {
 
     public static void main(String[] args) {
         if (args.length != 4) {
-            System.out.println("Usage: java Dstore <port> <controllerPort> <timeout> <fileFolder>");
+            System.out.println("Usage: java Dstore <port> <controllerPort> <timeout> <fileFolder>[,<fileFolder>...]");
             return;
         }
         int port = Integer.parseInt(args[0]);
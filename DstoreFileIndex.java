@@ -0,0 +1,175 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Reverse index from Dstore ID to the files the Controller believes it holds, so that
+ * "which files are on Dstore X" does not need a scan of the whole file index.
+ *
+ * Filenames are interned to small int IDs that are recycled once no Dstore holds the
+ * file any more, and each Dstore's files are a BitSet over those IDs. At 10M files this
+ * costs about 1.25 MB per Dstore on top of one interning entry per file.
+ */
+public class DstoreFileIndex {
+    private static class DstoreFiles {
+        final BitSet fileIds = new BitSet();
+        int count;
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final HashMap<String, Integer> fileIds = new HashMap<>();
+    private final HashMap<String, DstoreFiles> filesByDstore = new HashMap<>();
+    private String[] fileNames = new String[1024];
+    private int[] replicaCounts = new int[1024];
+    private int[] freeIds = new int[64];
+    private int freeCount = 0;
+    private int nextId = 0;
+
+    public void add(String dstoreId, String filename) {
+        lock.writeLock().lock();
+        try {
+            int fileId = intern(filename);
+            DstoreFiles files = filesByDstore.computeIfAbsent(dstoreId, k -> new DstoreFiles());
+            if (!files.fileIds.get(fileId)) {
+                files.fileIds.set(fileId);
+                files.count++;
+                replicaCounts[fileId]++;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String dstoreId, String filename) {
+        lock.writeLock().lock();
+        try {
+            Integer fileId = fileIds.get(filename);
+            DstoreFiles files = filesByDstore.get(dstoreId);
+            if (fileId != null && files != null) {
+                clear(files, fileId);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void removeFile(String filename, Collection<String> dstoreIds) {
+        lock.writeLock().lock();
+        try {
+            Integer fileId = fileIds.get(filename);
+            if (fileId == null) return;
+            for (String dstoreId : dstoreIds) {
+                DstoreFiles files = filesByDstore.get(dstoreId);
+                if (files != null) {
+                    clear(files, fileId);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public List<String> filesOn(String dstoreId) {
+        lock.readLock().lock();
+        try {
+            DstoreFiles files = filesByDstore.get(dstoreId);
+            return files == null ? new ArrayList<>() : names(files.fileIds);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean holds(String dstoreId, String filename) {
+        lock.readLock().lock();
+        try {
+            Integer fileId = fileIds.get(filename);
+            DstoreFiles files = filesByDstore.get(dstoreId);
+            return fileId != null && files != null && files.fileIds.get(fileId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int count(String dstoreId) {
+        lock.readLock().lock();
+        try {
+            DstoreFiles files = filesByDstore.get(dstoreId);
+            return files == null ? 0 : files.count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drops a Dstore from the index and returns the files it held.
+     */
+    public List<String> removeDstore(String dstoreId) {
+        lock.writeLock().lock();
+        try {
+            DstoreFiles files = filesByDstore.remove(dstoreId);
+            if (files == null) {
+                return new ArrayList<>();
+            }
+            List<String> held = names(files.fileIds);
+            for (int fileId = files.fileIds.nextSetBit(0); fileId >= 0; fileId = files.fileIds.nextSetBit(fileId + 1)) {
+                if (--replicaCounts[fileId] == 0) {
+                    release(fileId);
+                }
+            }
+            return held;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // The methods below must be called while holding the write lock
+
+    private void clear(DstoreFiles files, int fileId) {
+        if (files.fileIds.get(fileId)) {
+            files.fileIds.clear(fileId);
+            files.count--;
+            if (--replicaCounts[fileId] == 0) {
+                release(fileId);
+            }
+        }
+    }
+
+    private int intern(String filename) {
+        Integer existing = fileIds.get(filename);
+        if (existing != null) {
+            return existing;
+        }
+        int fileId = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        if (fileId >= fileNames.length) {
+            int capacity = fileNames.length * 2;
+            fileNames = Arrays.copyOf(fileNames, capacity);
+            replicaCounts = Arrays.copyOf(replicaCounts, capacity);
+        }
+        fileNames[fileId] = filename;
+        replicaCounts[fileId] = 0;
+        fileIds.put(filename, fileId);
+        return fileId;
+    }
+
+    private void release(int fileId) {
+        fileIds.remove(fileNames[fileId]);
+        fileNames[fileId] = null;
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        }
+        freeIds[freeCount++] = fileId;
+    }
+
+    // Must be called while holding either lock
+    private List<String> names(BitSet ids) {
+        List<String> names = new ArrayList<>(ids.cardinality());
+        for (int fileId = ids.nextSetBit(0); fileId >= 0; fileId = ids.nextSetBit(fileId + 1)) {
+            names.add(fileNames[fileId]);
+        }
+        return names;
+    }
+}
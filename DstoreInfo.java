@@ -1,12 +1,32 @@
 import java.net.Socket;
+import java.util.ArrayDeque;
 
 public class DstoreInfo {
+    private static final double LATENCY_EWMA_ALPHA = 0.2;
+
     private Socket socket;
     private int port;
+    private final int id; // small-int ID used in FileInfo replica sets
+    // Start times of LOADs sent here and not reported done, oldest first; a client that never
+    // fetches leaves no LOAD_DONE, so starts older than loadExpiryMs stop counting
+    private final ArrayDeque<Long> activeLoads = new ArrayDeque<>();
+    private final long loadExpiryMs;
+    private double loadLatencyEwmaMs = 0;
+    private boolean hasLatencySample = false;
+    private volatile long lastSeen = System.currentTimeMillis();
+    // Last capacity report, all 0 until the Dstore sends one
+    private long capacityBytes = 0;
+    private long usedBytes = 0;
+    private long freeBytes = 0;
+    private int ioLoad = 0;
+    private long reservedBytes = 0; // placed here since the last report
+    private volatile String zone; // topology label from JOIN, null if the Dstore sent none
 
-    public DstoreInfo(Socket socket, int port) {
+    public DstoreInfo(Socket socket, int port, int id, long loadExpiryMs) {
         this.socket = socket;
         this.port = port;
+        this.id = id;
+        this.loadExpiryMs = loadExpiryMs;
     }
 
     public Socket getSocket() {
@@ -16,4 +36,113 @@ public class DstoreInfo {
     public int getPort() {
         return port;
     }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean isConnected() {
+        return socket != null && !socket.isClosed();
+    }
+
+    // Records that a message (a heartbeat or anything else) has just arrived from this Dstore
+    public void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    // Address other Dstores use to reach this one, e.g. "127.0.0.1:12346"
+    public String getEndpoint() {
+        return socket.getInetAddress().getHostAddress() + ":" + port;
+    }
+
+    public synchronized void loadStarted() {
+        activeLoads.addLast(System.currentTimeMillis());
+    }
+
+    // Called when the Dstore reports a finished LOAD_DATA together with how long it took
+    public synchronized void loadFinished(long latencyMs) {
+        activeLoads.pollFirst();
+        loadLatencyEwmaMs = hasLatencySample
+                ? LATENCY_EWMA_ALPHA * latencyMs + (1 - LATENCY_EWMA_ALPHA) * loadLatencyEwmaMs
+                : latencyMs;
+        hasLatencySample = true;
+    }
+
+    public synchronized int getActiveLoads() {
+        long cutoff = System.currentTimeMillis() - loadExpiryMs;
+        while (!activeLoads.isEmpty() && activeLoads.peekFirst() < cutoff) {
+            activeLoads.pollFirst();
+        }
+        return activeLoads.size();
+    }
+
+    public synchronized double getLoadLatencyEwmaMs() {
+        return loadLatencyEwmaMs;
+    }
+
+    public void setZone(String zone) {
+        this.zone = zone;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    // Replicas are spread over distinct failure domains; an unlabeled Dstore is a domain of its own
+    public String failureDomain() {
+        return zone != null ? zone : "dstore-" + id;
+    }
+
+    // Called with the "capacity used free load" fields of JOIN and HEARTBEAT
+    public synchronized void updateCapacity(long capacityBytes, long usedBytes, long freeBytes, int ioLoad) {
+        this.capacityBytes = capacityBytes;
+        this.usedBytes = usedBytes;
+        this.freeBytes = freeBytes;
+        this.ioLoad = ioLoad;
+        this.reservedBytes = 0;
+    }
+
+    public synchronized boolean reportsCapacity() {
+        return capacityBytes > 0;
+    }
+
+    // Counts bytes just placed here until the next report includes them
+    public synchronized void reserve(long bytes) {
+        reservedBytes += bytes;
+    }
+
+    public synchronized boolean canHold(long bytes) {
+        return capacityBytes <= 0 || freeBytes - reservedBytes >= bytes;
+    }
+
+    public synchronized long getFreeBytes() {
+        return capacityBytes <= 0 ? Long.MAX_VALUE : Math.max(0, freeBytes - reservedBytes);
+    }
+
+    public synchronized long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    // Share of the disk that is taken, counting what has been placed since the last report
+    public synchronized double fillRatio() {
+        return capacityBytes <= 0 ? 0 : Math.min(1.0, (double) (capacityBytes - freeBytes + reservedBytes) / capacityBytes);
+    }
+
+    public synchronized int getIoLoad() {
+        return ioLoad;
+    }
+
+    public synchronized String describeCapacity() {
+        return "capacity=" + capacityBytes + " used=" + usedBytes + " free=" + getFreeBytes() + " load=" + ioLoad
+            + (zone != null ? " zone=" + zone : "");
+    }
+
+    // Expected cost of sending one more LOAD here; lower is better
+    public synchronized double loadScore() {
+        return (getActiveLoads() + 1) * (loadLatencyEwmaMs + 1);
+    }
 }
@@ -0,0 +1,103 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures Reed-Solomon encode and reconstruct throughput of the striped layout the Dstores
+ * use, streaming the file through ErasureStripes as a Dstore does, and compares the
+ * storage overhead with full replication.
+ *
+ * Usage: java ErasureBenchmark [dataShards] [parityShards] [megabytes] [replicationFactor]
+ */
+public class ErasureBenchmark {
+    public static void main(String[] args) throws IOException {
+        int k = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int m = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int megabytes = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int replicationFactor = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+        long size = megabytes * 1024L * 1024;
+
+        ReedSolomon codec = new ReedSolomon(k, m);
+        byte[] file = new byte[(int) size];
+        new Random(42).nextBytes(file);
+
+        // Warm up the JIT before timing
+        byte[][] shards = null;
+        for (int i = 0; i < 3; i++) {
+            shards = encode(codec, file);
+        }
+        long start = System.nanoTime();
+        int rounds = 5;
+        for (int i = 0; i < rounds; i++) {
+            shards = encode(codec, file);
+        }
+        double encodeSeconds = (System.nanoTime() - start) / 1e9 / rounds;
+
+        // Lose the first m shards, which are all data shards and the most expensive case
+        int lost = Math.min(m, k);
+        ByteArrayOutputStream decoded = null;
+        ByteArrayOutputStream[] rebuilt = null;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            InputStream[] inputs = new InputStream[k + m];
+            for (int s = lost; s < k + m; s++) {
+                inputs[s] = new ByteArrayInputStream(shards[s]);
+            }
+            rebuilt = new ByteArrayOutputStream[k + m];
+            for (int s = 0; s < lost; s++) {
+                rebuilt[s] = new ByteArrayOutputStream();
+            }
+            ErasureStripes.decode(codec, size, inputs, null, rebuilt);
+        }
+        double rebuildSeconds = (System.nanoTime() - start) / 1e9 / rounds;
+
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            InputStream[] inputs = new InputStream[k + m];
+            for (int s = lost; s < k + m; s++) {
+                inputs[s] = new ByteArrayInputStream(shards[s]);
+            }
+            decoded = new ByteArrayOutputStream((int) size);
+            ErasureStripes.decode(codec, size, inputs, decoded, null);
+        }
+        double decodeSeconds = (System.nanoTime() - start) / 1e9 / rounds;
+
+        for (int s = 0; s < lost; s++) {
+            if (!Arrays.equals(shards[s], rebuilt[s].toByteArray())) {
+                throw new IllegalStateException("Rebuilt shard " + s + " differs");
+            }
+        }
+        if (!Arrays.equals(file, decoded.toByteArray())) {
+            throw new IllegalStateException("Decoded file differs");
+        }
+
+        int chunk = ErasureStripes.chunkSize(size, k);
+        System.out.printf("RS(%d+%d) on %d MB, shard size %d bytes, %d stripes of %d-byte chunks (%d KB of codec buffers)%n",
+            k, m, megabytes, ErasureStripes.shardSize(size, k), ErasureStripes.stripes(size, k), chunk, (k + m) * chunk / 1024);
+        System.out.printf("encode:      %.1f MB/s%n", megabytes / encodeSeconds);
+        System.out.printf("rebuild:     %.1f MB/s (%d data shards lost)%n", megabytes / rebuildSeconds, lost);
+        System.out.printf("degraded read: %.1f MB/s (%d data shards lost)%n", megabytes / decodeSeconds, lost);
+        System.out.printf("storage overhead: %.2fx erasure coded vs %dx replicated, tolerates %d vs %d lost Dstores%n",
+            (double) (k + m) / k, replicationFactor, m, replicationFactor - 1);
+    }
+
+    private static byte[][] encode(ReedSolomon codec, byte[] file) throws IOException {
+        int total = codec.getDataShards() + codec.getParityShards();
+        ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[total];
+        for (int i = 0; i < total; i++) {
+            outputs[i] = new ByteArrayOutputStream();
+        }
+        try (OutputStream encoder = new ErasureStripes.Encoder(codec, file.length, outputs)) {
+            encoder.write(file);
+        }
+        byte[][] shards = new byte[total][];
+        for (int i = 0; i < total; i++) {
+            shards[i] = outputs[i].toByteArray();
+        }
+        return shards;
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Failover check for erasure-coded files. Starts a leader and a standby Controller for one
+ * partition and three Dstores as child processes, stores one file as RS(2+1) shards through
+ * the leader, kills the leader and checks that the standby takes over with the file still
+ * loadable, both right away and once every Dstore has rejoined and reported its inventory.
+ * Exits with status 1 if the file is lost, listed without holders or loaded wrong.
+ *
+ * Usage: java ErasureFailoverCheck [basePort] [fileBytes]
+ */
+public class ErasureFailoverCheck {
+    private static final int TIMEOUT_MS = 5_000;
+    private static final long SETTLE_MS = 8_000; // long enough for the Dstores to rejoin and finish their inventories
+
+    private final List<Process> processes = new ArrayList<>();
+    private final File workDir;
+
+    public static void main(String[] args) throws Exception {
+        int basePort = args.length > 0 ? Integer.parseInt(args[0]) : 15000;
+        int fileBytes = args.length > 1 ? Integer.parseInt(args[1]) : 200 * 1024;
+
+        ErasureFailoverCheck check = new ErasureFailoverCheck(Files.createTempDirectory("ec-failover").toFile());
+        boolean passed = false;
+        try {
+            passed = check.run(basePort, fileBytes);
+        } finally {
+            check.stopAll();
+        }
+        System.out.println(passed ? "ERASURE FAILOVER OK" : "ERASURE FAILOVER FAILED, logs in " + check.workDir);
+        System.exit(passed ? 0 : 1);
+    }
+
+    private ErasureFailoverCheck(File workDir) {
+        this.workDir = workDir;
+    }
+
+    private boolean run(int basePort, int fileBytes) throws Exception {
+        int leaderPort = basePort;
+        int standbyPort = basePort + 5;
+        String partitions = leaderPort + "/" + standbyPort;
+        String leaseFile = new File(workDir, "controller.lease").getPath();
+
+        Process leader = start("controller-" + leaderPort, "-Dcontroller.partitions=" + partitions, "-Dcontroller.leaseFile=" + leaseFile,
+            "-Dcontroller.ecDataShards=2", "-Dcontroller.ecParityShards=1", "Controller", leaderPort + "", "1", "2000", "30");
+        Thread.sleep(500);
+        start("controller-" + standbyPort, "-Dcontroller.partitions=" + partitions, "-Dcontroller.leaseFile=" + leaseFile,
+            "-Dcontroller.ecDataShards=2", "-Dcontroller.ecParityShards=1", "Controller", standbyPort + "", "1", "2000", "30");
+        Thread.sleep(700);
+        for (int i = 1; i <= 3; i++) {
+            start("dstore-" + (basePort + i), "-Ddstore.partitions=" + partitions, "Dstore", (basePort + i) + "", leaderPort + "", "2000",
+                new File(workDir, "dstore" + i).getPath());
+        }
+        Thread.sleep(1500);
+
+        String filename = "ec-failover.bin";
+        byte[] content = new byte[fileBytes];
+        new Random(7).nextBytes(content);
+        store(leaderPort, filename, content);
+        System.out.println("Stored " + filename + " as shards through the leader on " + leaderPort);
+        // The standby receives the record once the last shard holder has ACKed
+        Thread.sleep(1000);
+
+        leader.destroyForcibly().waitFor();
+        System.out.println("Killed the leader");
+        long deadline = System.currentTimeMillis() + 15_000;
+        String loaded = null;
+        while (loaded == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(300);
+            loaded = tryLoad(standbyPort, filename, content);
+        }
+        if (loaded == null) {
+            System.out.println("The standby never served " + filename);
+            return false;
+        }
+        System.out.println("After takeover: " + loaded);
+
+        // Rejoining Dstores report inventories without shards; the file must keep its holders
+        Thread.sleep(SETTLE_MS);
+        loaded = tryLoad(standbyPort, filename, content);
+        if (loaded == null) {
+            System.out.println("The new leader lost " + filename + " once the Dstores had rejoined");
+            return false;
+        }
+        System.out.println("After the Dstores rejoined: " + loaded);
+        return true;
+    }
+
+    private Process start(String name, String... args) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList("java", "-cp", System.getProperty("java.class.path")));
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(workDir, name + ".log"))
+            .start();
+        processes.add(process);
+        return process;
+    }
+
+    private void stopAll() {
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+    }
+
+    private static void store(int controllerPort, String filename, byte[] content) throws IOException {
+        try (Socket controller = new Socket("localhost", controllerPort)) {
+            controller.setSoTimeout(TIMEOUT_MS);
+            PrintWriter writer = new PrintWriter(controller.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+            writer.println("STORE " + filename + " " + content.length);
+            String[] ports = expect(reader.readLine(), "STORE_TO").split(" ");
+            for (int p = 1; p < ports.length; p++) {
+                try (Socket dstore = new Socket("localhost", Integer.parseInt(ports[p]))) {
+                    dstore.setSoTimeout(TIMEOUT_MS);
+                    new PrintWriter(dstore.getOutputStream(), true).println("STORE " + filename + " " + content.length);
+                    expect(new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine(), "ACK");
+                    dstore.getOutputStream().write(content);
+                    dstore.shutdownOutput();
+                    dstore.getInputStream().read();
+                }
+            }
+            expect(reader.readLine(), "STORE_COMPLETE");
+        }
+    }
+
+    // "LIST ..., LOAD_FROM port size" when the file is listed and loads back intact, otherwise null
+    private static String tryLoad(int controllerPort, String filename, byte[] expected) {
+        try (Socket controller = new Socket("localhost", controllerPort)) {
+            controller.setSoTimeout(TIMEOUT_MS);
+            PrintWriter writer = new PrintWriter(controller.getOutputStream(), true);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+            writer.println("LIST");
+            String list = reader.readLine();
+            if (list == null || !Arrays.asList(list.split(" ")).contains(filename)) {
+                return null;
+            }
+            writer.println("LOAD " + filename);
+            String[] reply = expect(reader.readLine(), "LOAD_FROM").split(" ");
+            byte[] loaded = new byte[Integer.parseInt(reply[2])];
+            try (Socket dstore = new Socket("localhost", Integer.parseInt(reply[1]))) {
+                dstore.setSoTimeout(TIMEOUT_MS);
+                new PrintWriter(dstore.getOutputStream(), true).println("LOAD_DATA " + filename);
+                new DataInputStream(dstore.getInputStream()).readFully(loaded);
+            }
+            if (!Arrays.equals(expected, loaded)) {
+                System.out.println("LOAD of " + filename + " returned different content");
+                return null;
+            }
+            return list + ", " + String.join(" ", reply);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Not served yet: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private static String expect(String reply, String token) throws IOException {
+        if (reply == null || !reply.startsWith(token)) {
+            throw new IOException("Expected " + token + " but got " + reply);
+        }
+        return reply;
+    }
+}
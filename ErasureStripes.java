@@ -0,0 +1,156 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Lays a file out over Reed-Solomon shards in stripes and streams it through the code one
+ * stripe at a time, so encoding, decoding and rebuilding hold k + m chunks in memory
+ * whatever the size of the file. Stripe s is the k chunks of the file starting at byte
+ * s * k * chunk; chunk d of it goes to data shard d, the stripe's parity chunks go to the
+ * parity shards, and the last stripe is padded with zeros. Shard i is chunk i of every
+ * stripe in order. A file of at most k chunks is a single stripe.
+ */
+public class ErasureStripes {
+    public static final int MAX_CHUNK_BYTES = 64 * 1024;
+
+    public static int chunkSize(long fileSize, int dataShards) {
+        return (int) Math.max(1, Math.min(MAX_CHUNK_BYTES, (fileSize + dataShards - 1) / dataShards));
+    }
+
+    public static long stripes(long fileSize, int dataShards) {
+        long stripeBytes = (long) dataShards * chunkSize(fileSize, dataShards);
+        return Math.max(1, (fileSize + stripeBytes - 1) / stripeBytes);
+    }
+
+    public static long shardSize(long fileSize, int dataShards) {
+        return stripes(fileSize, dataShards) * chunkSize(fileSize, dataShards);
+    }
+
+    /**
+     * Takes exactly fileSize bytes of a file and writes each stripe's k + m chunks to the
+     * shard outputs as soon as the stripe is full; close writes the padded last stripe.
+     * The shard outputs are left open.
+     */
+    public static class Encoder extends OutputStream {
+        private final ReedSolomon codec;
+        private final long fileSize;
+        private final OutputStream[] shards;
+        private final byte[][] chunks;
+        private final int chunkSize;
+        private final int stripeBytes;
+        private int filled = 0; // bytes of the current stripe received so far
+        private long received = 0;
+        private long stripesWritten = 0;
+        private boolean closed = false;
+
+        public Encoder(ReedSolomon codec, long fileSize, OutputStream[] shards) {
+            this.codec = codec;
+            this.fileSize = fileSize;
+            this.shards = shards;
+            this.chunkSize = chunkSize(fileSize, codec.getDataShards());
+            this.stripeBytes = codec.getDataShards() * chunkSize;
+            this.chunks = new byte[codec.getDataShards() + codec.getParityShards()][chunkSize];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (received + len > fileSize) {
+                throw new IOException("More than the " + fileSize + " bytes announced for the file");
+            }
+            received += len;
+            while (len > 0) {
+                int position = filled % chunkSize;
+                int count = Math.min(len, chunkSize - position);
+                System.arraycopy(b, off, chunks[filled / chunkSize], position, count);
+                filled += count;
+                off += count;
+                len -= count;
+                if (filled == stripeBytes) {
+                    writeStripe();
+                }
+            }
+        }
+
+        private void writeStripe() throws IOException {
+            for (int d = filled / chunkSize; d < codec.getDataShards(); d++) {
+                Arrays.fill(chunks[d], filled % chunkSize, chunkSize, (byte) 0);
+                filled = (d + 1) * chunkSize;
+            }
+            codec.encode(chunks);
+            for (int i = 0; i < shards.length; i++) {
+                shards[i].write(chunks[i]);
+            }
+            filled = 0;
+            stripesWritten++;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            if (received != fileSize) {
+                throw new IOException("Got " + received + " of the " + fileSize + " bytes announced for the file");
+            }
+            if (filled > 0 || stripesWritten == 0) {
+                writeStripe();
+            }
+        }
+    }
+
+    /**
+     * Reads the shards that have an input, stripe by stripe, and from any k of them writes
+     * the file's bytes to file and the shards that have an output in rebuilt; either may be
+     * null. Shard inputs beyond the first k are not read.
+     */
+    public static void decode(ReedSolomon codec, long fileSize, InputStream[] inputs, OutputStream file,
+                              OutputStream[] rebuilt) throws IOException {
+        int k = codec.getDataShards();
+        int chunkSize = chunkSize(fileSize, k);
+        byte[][] chunks = new byte[k + codec.getParityShards()][chunkSize];
+        boolean[] present = new boolean[chunks.length];
+        DataInputStream[] used = new DataInputStream[chunks.length];
+        int have = 0;
+        for (int i = 0; i < inputs.length && have < k; i++) {
+            if (inputs[i] != null) {
+                used[i] = new DataInputStream(inputs[i]);
+                have++;
+            }
+        }
+        if (have < k) {
+            throw new IOException("Only " + have + " of the " + k + " shards needed are available");
+        }
+
+        long remaining = fileSize;
+        long stripes = stripes(fileSize, k);
+        for (long stripe = 0; stripe < stripes; stripe++) {
+            for (int i = 0; i < chunks.length; i++) {
+                present[i] = used[i] != null;
+                if (present[i]) {
+                    used[i].readFully(chunks[i]);
+                }
+            }
+            if (rebuilt != null) {
+                codec.reconstruct(chunks, present);
+                for (int i = 0; i < rebuilt.length; i++) {
+                    if (rebuilt[i] != null) {
+                        rebuilt[i].write(chunks[i]);
+                    }
+                }
+            } else {
+                codec.reconstructData(chunks, present);
+            }
+            for (int d = 0; file != null && d < k && remaining > 0; d++) {
+                int length = (int) Math.min(chunkSize, remaining);
+                file.write(chunks[d], 0, length);
+                remaining -= length;
+            }
+        }
+    }
+}
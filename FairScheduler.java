@@ -0,0 +1,118 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Runs client requests on a fixed pool of workers with deficit round robin across
+ * clients, so each client with pending work gets a share of the workers in proportion to
+ * its weight however many requests it has queued. Every request costs one unit; a client
+ * earns quantum * weight units each time its turn comes round.
+ *
+ * run hands a request to the pool and blocks the calling connection thread until it has
+ * been executed, so the requests of one connection still run in order.
+ */
+public class FairScheduler {
+    private static class Task {
+        final Runnable work;
+        boolean done;
+        RuntimeException failure;
+
+        Task(Runnable work) {
+            this.work = work;
+        }
+    }
+
+    private static class ClientQueue {
+        final String client;
+        final ArrayDeque<Task> tasks = new ArrayDeque<>();
+        long deficit;
+
+        ClientQueue(String client) {
+            this.client = client;
+        }
+    }
+
+    private final int quantum;
+    private final ToIntFunction<String> weightOf;
+    private final Map<String, ClientQueue> queues = new HashMap<>();
+    private final ArrayDeque<ClientQueue> ring = new ArrayDeque<>(); // clients with pending tasks, in turn order
+
+    public FairScheduler(int workers, int quantum, ToIntFunction<String> weightOf) {
+        this.quantum = Math.max(1, quantum);
+        this.weightOf = weightOf;
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(this::work, "fair-scheduler-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    public void run(String client, Runnable work) throws InterruptedException {
+        Task task = new Task(work);
+        synchronized (this) {
+            ClientQueue queue = queues.computeIfAbsent(client, ClientQueue::new);
+            if (queue.tasks.isEmpty()) {
+                ring.addLast(queue);
+            }
+            queue.tasks.addLast(task);
+            notifyAll();
+        }
+        synchronized (task) {
+            while (!task.done) {
+                task.wait();
+            }
+        }
+        if (task.failure != null) {
+            throw task.failure;
+        }
+    }
+
+    public synchronized int pending(String client) {
+        ClientQueue queue = queues.get(client);
+        return queue == null ? 0 : queue.tasks.size();
+    }
+
+    private void work() {
+        while (true) {
+            Task task;
+            try {
+                task = next();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                task.work.run();
+            } catch (RuntimeException e) {
+                task.failure = e;
+            }
+            synchronized (task) {
+                task.done = true;
+                task.notifyAll();
+            }
+        }
+    }
+
+    // Deficit round robin: the client at the head of the ring runs while it has credit, then goes to the back
+    private synchronized Task next() throws InterruptedException {
+        while (ring.isEmpty()) {
+            wait();
+        }
+        while (true) {
+            ClientQueue queue = ring.peekFirst();
+            if (queue.deficit < 1) {
+                queue.deficit += (long) quantum * Math.max(1, weightOf.applyAsInt(queue.client));
+                ring.addLast(ring.pollFirst());
+                continue;
+            }
+            queue.deficit--;
+            Task task = queue.tasks.pollFirst();
+            if (queue.tasks.isEmpty()) {
+                ring.pollFirst();
+                queue.deficit = 0;
+                queues.remove(queue.client);
+            }
+            return task;
+        }
+    }
+}
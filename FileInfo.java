@@ -1,20 +1,124 @@
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Arrays;
 
+/**
+ * Index entry for one file. Kept deliberately small because the Controller holds one per
+ * stored file: the status is a single byte and the replica set is a bitset over the
+ * small-int IDs the Controller hands out to Dstores at JOIN.
+ */
 public class FileInfo {
-    String status; 
-    Set<String> dstores; 
-    long fileSize;  
+    public static final byte STORE_IN_PROGRESS = 0;
+    public static final byte STORE_COMPLETE = 1;
+    public static final byte REMOVE_IN_PROGRESS = 2;
 
-    public FileInfo(String status, long fileSize) {
-        this.status = status;
+    volatile byte state;
+    long fileSize;
+    private final byte dataShards;   // 0 for a replicated file, k for a Reed-Solomon (k+m) coded one
+    private final byte parityShards;
+    private long replicas;        // bit i is set when the Dstore with ID i holds the file
+    private long[] moreReplicas;  // Dstore IDs from 64 up, only allocated in clusters that large
+
+    public FileInfo(byte state, long fileSize) {
+        this(state, fileSize, 0, 0);
+    }
+
+    public FileInfo(byte state, long fileSize, int dataShards, int parityShards) {
+        this.state = state;
         this.fileSize = fileSize;
-        this.dstores = ConcurrentHashMap.newKeySet(); 
+        this.dataShards = (byte) dataShards;
+        this.parityShards = (byte) parityShards;
+    }
+
+    public boolean isErasureCoded() {
+        return dataShards > 0;
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Number of Dstores that must hold the file: one per shard when erasure coded, otherwise
+     * one per replica.
+     */
+    public int requiredHolders(int replicationFactor) {
+        return isErasureCoded() ? dataShards + parityShards : replicationFactor;
+    }
+
+    public boolean isStoreComplete() {
+        return state == STORE_COMPLETE;
+    }
+
+    public synchronized boolean addReplica(int dstoreId) {
+        if (dstoreId < 64) {
+            long before = replicas;
+            replicas |= 1L << dstoreId;
+            return before != replicas;
+        }
+        int word = dstoreId / 64 - 1;
+        if (moreReplicas == null || word >= moreReplicas.length) {
+            moreReplicas = moreReplicas == null ? new long[word + 1] : Arrays.copyOf(moreReplicas, word + 1);
+        }
+        long before = moreReplicas[word];
+        moreReplicas[word] |= 1L << (dstoreId % 64);
+        return before != moreReplicas[word];
+    }
+
+    public synchronized boolean removeReplica(int dstoreId) {
+        if (dstoreId < 64) {
+            long before = replicas;
+            replicas &= ~(1L << dstoreId);
+            return before != replicas;
+        }
+        int word = dstoreId / 64 - 1;
+        if (moreReplicas == null || word >= moreReplicas.length) {
+            return false;
+        }
+        long before = moreReplicas[word];
+        moreReplicas[word] &= ~(1L << (dstoreId % 64));
+        return before != moreReplicas[word];
+    }
+
+    public synchronized boolean hasReplica(int dstoreId) {
+        if (dstoreId < 64) {
+            return (replicas & (1L << dstoreId)) != 0;
+        }
+        int word = dstoreId / 64 - 1;
+        return moreReplicas != null && word < moreReplicas.length && (moreReplicas[word] & (1L << (dstoreId % 64))) != 0;
+    }
+
+    public synchronized int replicaCount() {
+        int count = Long.bitCount(replicas);
+        if (moreReplicas != null) {
+            for (long word : moreReplicas) {
+                count += Long.bitCount(word);
+            }
+        }
+        return count;
+    }
+
+    public synchronized int[] replicaIds() {
+        int[] ids = new int[replicaCount()];
+        int next = 0;
+        for (long bits = replicas; bits != 0; bits &= bits - 1) {
+            ids[next++] = Long.numberOfTrailingZeros(bits);
+        }
+        if (moreReplicas != null) {
+            for (int word = 0; word < moreReplicas.length; word++) {
+                for (long bits = moreReplicas[word]; bits != 0; bits &= bits - 1) {
+                    ids[next++] = (word + 1) * 64 + Long.numberOfTrailingZeros(bits);
+                }
+            }
+        }
+        return ids;
     }
 
     @Override
     public String toString() {
-        return "FileInfo{status='" + status + "', fileSize=" + fileSize + ", dstores=" + dstores + "}";
+        return "FileInfo{state=" + state + ", fileSize=" + fileSize + ", dstores=" + Arrays.toString(replicaIds()) + "}";
     }
 
     public long getFileSize() {
@@ -24,4 +128,4 @@ public class FileInfo {
     public void setFileSize(long fileSize) {
         this.fileSize = fileSize;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage engine used by a Dstore to keep the files it has been asked to store.
+ */
+public interface FileStore {
+
+    /**
+     * Reads exactly size bytes from in and stores them under filename, replacing any
+     * previous content. Returns false if the stream ended before size bytes were read.
+     */
+    boolean write(String filename, InputStream in, long size) throws IOException;
+
+    /**
+     * Forces the stored content of filenames to stable storage. Engines that keep many
+     * files in one file force it once for all of them, so syncing a group costs less than
+     * syncing its files one by one. Names that are not stored are ignored.
+     */
+    void sync(Collection<String> filenames) throws IOException;
+
+    boolean exists(String filename);
+
+    /**
+     * Returns the size of the stored file in bytes, or -1 if it is not stored.
+     */
+    long size(String filename);
+
+    /**
+     * Copies the content of filename to out. Throws FileNotFoundException if it is not stored.
+     */
+    void transferTo(String filename, OutputStream out) throws IOException;
+
+    /**
+     * Returns a read-only view of the content of filename, memory-mapped where the engine
+     * allows it. Throws FileNotFoundException if it is not stored.
+     */
+    ByteBuffer map(String filename) throws IOException;
+
+    /**
+     * Returns true if the file was stored and has been removed.
+     */
+    boolean delete(String filename) throws IOException;
+
+    List<String> list() throws IOException;
+
+    /**
+     * Returns an ID for the content of filename such that files with equal IDs have equal
+     * content, or null if the engine does not address files by content.
+     */
+    default String contentId(String filename) {
+        return null;
+    }
+
+    /**
+     * Stores filename as another name for content already held under contentId, without
+     * any data. Returns false if that content is not stored here. A negative size skips
+     * the size check.
+     */
+    default boolean link(String filename, String contentId, long size) throws IOException {
+        return false;
+    }
+
+    /**
+     * Removes every stored file.
+     */
+    void clear() throws IOException;
+}
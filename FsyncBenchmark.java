@@ -0,0 +1,95 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures STORE throughput and commit latency of each durability mode: concurrent
+ * writers store files into a DirectoryFileStore or SegmentFileStore in a temporary
+ * folder and commit each through a GroupCommitSyncer before counting it as ACKed.
+ * Run it on the disk the Dstores will use; a tmpfs makes fsync free.
+ *
+ * Usage: java FsyncBenchmark [writers] [fileKB] [filesPerWriter] [groupMs] [folder]
+ */
+public class FsyncBenchmark {
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int fileBytes = (args.length > 1 ? Integer.parseInt(args[1]) : 16) * 1024;
+        int filesPerWriter = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        long groupMs = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        File parent = args.length > 4 ? new File(args[4]) : null;
+
+        byte[] data = new byte[fileBytes];
+        new Random(42).nextBytes(data);
+        System.out.printf("%-10s %-6s %8s %10s %12s %12s%n", "engine", "fsync", "files", "files/s", "avg ms", "p99 ms");
+        for (String engine : Arrays.asList("directory", "segment")) {
+            for (GroupCommitSyncer.Mode mode : GroupCommitSyncer.Mode.values()) {
+                run(engine, mode, groupMs, writers, filesPerWriter, data, parent);
+            }
+        }
+    }
+
+    private static void run(String engine, GroupCommitSyncer.Mode mode, long groupMs, int writers, int filesPerWriter,
+                            byte[] data, File parent) throws Exception {
+        File folder = parent == null ? Files.createTempDirectory("fsync-bench").toFile()
+            : Files.createTempDirectory(parent.toPath(), "fsync-bench").toFile();
+        // As on a Dstore, any fsync mode also forces each staged file before its rename
+        boolean forceStaged = mode != GroupCommitSyncer.Mode.NONE;
+        FileStore store = engine.equals("segment")
+            ? new SegmentFileStore(folder, 64L * 1024 * 1024, 1024 * 1024, 0.5, 3600, forceStaged)
+            : new DirectoryFileStore(folder, forceStaged);
+        GroupCommitSyncer syncer = new GroupCommitSyncer(mode, groupMs, 8L * 1024 * 1024);
+        ExecutorService pool = Executors.newFixedThreadPool(writers);
+        List<Long> latencies = Collections.synchronizedList(new ArrayList<>());
+        AtomicLong counter = new AtomicLong();
+        try {
+            long start = System.nanoTime();
+            List<Future<?>> running = new ArrayList<>();
+            for (int w = 0; w < writers; w++) {
+                running.add(pool.submit(() -> {
+                    for (int i = 0; i < filesPerWriter; i++) {
+                        String filename = "f" + counter.incrementAndGet();
+                        long began = System.nanoTime();
+                        store.write(filename, new ByteArrayInputStream(data), data.length);
+                        syncer.commit(store, Collections.singletonList(filename), data.length);
+                        latencies.add(System.nanoTime() - began);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : running) {
+                writer.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            Collections.sort(latencies);
+            double average = latencies.stream().mapToLong(Long::longValue).average().orElse(0) / 1e6;
+            double p99 = latencies.get((int) (latencies.size() * 0.99)) / 1e6;
+            System.out.printf("%-10s %-6s %8d %10.0f %12.2f %12.2f%n", engine, mode.name().toLowerCase(),
+                latencies.size(), latencies.size() / seconds, average, p99);
+        } finally {
+            pool.shutdown();
+            store.clear();
+            deleteRecursively(folder);
+        }
+    }
+
+    private static void deleteRecursively(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides when a stored file is durable enough to be acknowledged. In mode none commit
+ * returns at once, as the Dstore always did. In mode file every commit forces its own
+ * files. In mode group a background thread collects the files committed within
+ * intervalMs (or until maxBytes of them are waiting), forces them with one sync call
+ * per store, and then releases every commit of the group together, so concurrent STOREs
+ * share the cost of each fsync. With an intervalMs of 0 a group is whatever was committed
+ * while the previous sync was running.
+ */
+public class GroupCommitSyncer {
+    public enum Mode { NONE, FILE, GROUP }
+
+    private static class Group {
+        final Map<FileStore, Set<String>> files = new LinkedHashMap<>();
+        final long opened = System.nanoTime();
+        long bytes;
+        int commits;
+        boolean done;
+        IOException failure;
+    }
+
+    private final Mode mode;
+    private final long intervalNanos;
+    private final long maxBytes;
+    private Group current;
+
+    // Statistics, guarded by the syncer's monitor
+    private long commits = 0;
+    private long syncs = 0;
+    private long syncNanos = 0;
+    private long commitNanos = 0;
+
+    public GroupCommitSyncer(Mode mode, long intervalMs, long maxBytes) {
+        this.mode = mode;
+        this.intervalNanos = intervalMs * 1_000_000;
+        this.maxBytes = maxBytes > 0 ? maxBytes : Long.MAX_VALUE;
+        if (mode == Mode.GROUP) {
+            Thread syncer = new Thread(this::run, "group-commit");
+            syncer.setDaemon(true);
+            syncer.start();
+        }
+    }
+
+    public static Mode parseMode(String mode) {
+        return Mode.valueOf(mode.trim().toUpperCase());
+    }
+
+    /**
+     * Returns once filenames, bytes long in total, are on stable storage as far as the
+     * mode asks for. Throws if forcing them failed, in which case they must not be ACKed.
+     */
+    public void commit(FileStore store, Collection<String> filenames, long bytes) throws IOException {
+        if (mode == Mode.NONE || filenames.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (mode == Mode.FILE) {
+            store.sync(filenames);
+            long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                commits++;
+                syncs++;
+                syncNanos += elapsed;
+                commitNanos += elapsed;
+            }
+            return;
+        }
+
+        Group group;
+        synchronized (this) {
+            if (current == null) {
+                current = new Group();
+            }
+            group = current;
+            group.files.computeIfAbsent(store, s -> new LinkedHashSet<>()).addAll(filenames);
+            group.bytes += bytes;
+            group.commits++;
+            notifyAll();
+        }
+        synchronized (group) {
+            try {
+                while (!group.done) {
+                    group.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for group commit");
+            }
+        }
+        synchronized (this) {
+            commitNanos += System.nanoTime() - start;
+        }
+        if (group.failure != null) {
+            throw group.failure;
+        }
+    }
+
+    private void run() {
+        while (true) {
+            Group group;
+            try {
+                group = nextGroup();
+            } catch (InterruptedException e) {
+                return;
+            }
+            long start = System.nanoTime();
+            IOException failure = null;
+            for (Map.Entry<FileStore, Set<String>> entry : group.files.entrySet()) {
+                try {
+                    entry.getKey().sync(entry.getValue());
+                } catch (IOException e) {
+                    System.out.println("Group commit of " + entry.getValue().size() + " files failed: " + e.getMessage());
+                    failure = e;
+                }
+            }
+            synchronized (this) {
+                commits += group.commits;
+                syncs++;
+                syncNanos += System.nanoTime() - start;
+            }
+            synchronized (group) {
+                group.failure = failure;
+                group.done = true;
+                group.notifyAll();
+            }
+        }
+    }
+
+    // Waits for the open group to fill up or reach its age, then closes it
+    private synchronized Group nextGroup() throws InterruptedException {
+        while (current == null) {
+            wait();
+        }
+        long remaining;
+        while (current.bytes < maxBytes && (remaining = current.opened + intervalNanos - System.nanoTime()) > 0) {
+            wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+        }
+        Group group = current;
+        current = null;
+        return group;
+    }
+
+    public synchronized String describe() {
+        return "fsync=" + mode.name().toLowerCase() + " commits=" + commits + " syncs=" + syncs
+            + " avgSyncMs=" + String.format("%.2f", syncs == 0 ? 0 : syncNanos / 1e6 / syncs)
+            + " avgCommitMs=" + String.format("%.2f", commits == 0 ? 0 : commitNanos / 1e6 / commits);
+    }
+}
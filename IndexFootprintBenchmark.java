@@ -0,0 +1,95 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures the heap the Controller's file index takes per file with the current FileInfo
+ * (a state byte and a bitset of small-int Dstore IDs) against the entry it replaced (a
+ * String status and a concurrent set of the replicas' address strings, one fresh string
+ * per STORE_ACK). Each index is filled with the same filename strings, allocated up front,
+ * and measured as used heap after GC; a map from the names to one shared value is measured
+ * too and subtracted, so the figures are what the entries cost on top of the map itself.
+ *
+ * Usage: java IndexFootprintBenchmark [files] [replicationFactor] [dstores]
+ */
+public class IndexFootprintBenchmark {
+    // The index entry as it was before FileInfo was packed
+    private static class LegacyFileInfo {
+        String status;
+        Set<String> dstores;
+        long fileSize;
+
+        LegacyFileInfo(String status, long fileSize) {
+            this.status = status;
+            this.fileSize = fileSize;
+            this.dstores = ConcurrentHashMap.newKeySet();
+        }
+    }
+
+    private static Object retained; // keeps the index being measured reachable through GC
+
+    public static void main(String[] args) throws InterruptedException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int replicationFactor = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int dstores = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        String[] filenames = new String[files];
+        for (int i = 0; i < files; i++) {
+            filenames[i] = "file-" + i + ".txt";
+        }
+        long empty = usedHeap();
+
+        Map<String, Object> namesOnly = new ConcurrentHashMap<>();
+        for (String filename : filenames) {
+            namesOnly.put(filename, Boolean.TRUE);
+        }
+        retained = namesOnly;
+        long baseline = usedHeap() - empty;
+        namesOnly = null;
+        retained = null;
+
+        Map<String, LegacyFileInfo> legacy = new ConcurrentHashMap<>();
+        for (int i = 0; i < files; i++) {
+            LegacyFileInfo fileInfo = new LegacyFileInfo("STORE_COMPLETE", 1024);
+            for (int r = 0; r < replicationFactor; r++) {
+                // Built per ACK from the Dstore's socket address, as the Controller used to
+                fileInfo.dstores.add("/127.0.0.1:" + (40000 + (i + r) % dstores));
+            }
+            legacy.put(filenames[i], fileInfo);
+        }
+        retained = legacy;
+        long legacyBytes = usedHeap() - empty - baseline;
+        legacy = null;
+        retained = null;
+
+        Map<String, FileInfo> packed = new ConcurrentHashMap<>();
+        for (int i = 0; i < files; i++) {
+            FileInfo fileInfo = new FileInfo(FileInfo.STORE_COMPLETE, 1024);
+            for (int r = 0; r < replicationFactor; r++) {
+                fileInfo.addReplica((i + r) % dstores);
+            }
+            packed.put(filenames[i], fileInfo);
+        }
+        retained = packed;
+        long packedBytes = usedHeap() - empty - baseline;
+        retained = null;
+
+        System.out.printf("%d files, R=%d over %d Dstores; the map without entries costs %.1f MB (%d bytes/file), not counted below%n",
+            files, replicationFactor, dstores, baseline / 1e6, baseline / files);
+        System.out.printf("legacy entries: %8.1f MB  %5d bytes/file%n", legacyBytes / 1e6, legacyBytes / files);
+        System.out.printf("packed entries: %8.1f MB  %5d bytes/file%n", packedBytes / 1e6, packedBytes / files);
+        System.out.printf("packed/legacy: %.3f (%.1fx smaller)%n", (double) packedBytes / legacyBytes, (double) legacyBytes / packedBytes);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Collect until the figure settles, since one System.gc() may leave garbage behind
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+}
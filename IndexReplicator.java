@@ -0,0 +1,48 @@
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Function;
+
+/**
+ * Streams the leader Controller's index to its hot standbys. Each change is sent as the
+ * file's full current record ("INDEX_PUT ..." or "INDEX_DEL f"), so records are
+ * idempotent and a standby that sees them in any interleaving ends up with the latest one.
+ * A new follower first gets a snapshot of every file, then "INDEX_SYNCED", then changes.
+ */
+public class IndexReplicator {
+    private final Function<String, String> recordOf;
+    private final List<PrintWriter> followers = new CopyOnWriteArrayList<>();
+
+    public IndexReplicator(Function<String, String> recordOf) {
+        this.recordOf = recordOf;
+    }
+
+    public synchronized void addFollower(PrintWriter out, Collection<String> filenames) {
+        for (String filename : filenames) {
+            out.println(recordOf.apply(filename));
+        }
+        out.println("INDEX_SYNCED");
+        followers.add(out);
+        System.out.println("Standby following the index, sent " + filenames.size() + " records");
+    }
+
+    public void removeFollower(PrintWriter out) {
+        followers.remove(out);
+    }
+
+    public void publish(String filename) {
+        if (followers.isEmpty()) return;
+        synchronized (this) {
+            // The record is built under the lock so the last one sent always reflects the latest state
+            String record = recordOf.apply(filename);
+            for (PrintWriter out : followers) {
+                out.println(record);
+                if (out.checkError()) {
+                    System.out.println("Dropping standby that stopped reading the index stream");
+                    followers.remove(out);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+
+/**
+ * Keeps a Merkle tree per Controller partition over the files in the inner store, updated
+ * by every write, delete and clear that goes through this store, so a Controller can check
+ * that its view of this Dstore is right by comparing a handful of hashes.
+ */
+public class MerkleFileStore implements FileStore {
+    private final FileStore inner;
+    private final ToIntFunction<String> partitionOf;
+    private final MerkleTree[] trees;
+    private final Map<String, Long> sizes = new HashMap<>(); // what the trees currently hold
+
+    public MerkleFileStore(FileStore inner, int partitions, ToIntFunction<String> partitionOf) throws IOException {
+        this.inner = inner;
+        this.partitionOf = partitionOf;
+        this.trees = new MerkleTree[partitions];
+        for (int i = 0; i < partitions; i++) {
+            trees[i] = new MerkleTree();
+        }
+        for (String filename : inner.list()) {
+            refresh(filename);
+        }
+    }
+
+    public MerkleTree getTree(int partition) {
+        return trees[partition];
+    }
+
+    /**
+     * Returns "f1 s1 f2 s2 ..." pairs for the stored files of the partition that fall in
+     * the given leaf buckets.
+     */
+    public synchronized List<String> filesInBuckets(int partition, Set<Integer> buckets) {
+        List<String> entries = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            String filename = entry.getKey();
+            if (partitionOf.applyAsInt(filename) == partition && buckets.contains(MerkleTree.bucket(filename))) {
+                entries.add(filename + " " + entry.getValue());
+            }
+        }
+        return entries;
+    }
+
+    // Brings the tree entry for filename in line with the inner store
+    private synchronized void refresh(String filename) {
+        MerkleTree tree = trees[partitionOf.applyAsInt(filename)];
+        Long previous = sizes.remove(filename);
+        if (previous != null) {
+            tree.remove(filename, previous);
+        }
+        long size = inner.size(filename);
+        if (size >= 0) {
+            sizes.put(filename, size);
+            tree.add(filename, size);
+        }
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        try {
+            return inner.write(filename, in, size);
+        } finally {
+            refresh(filename);
+        }
+    }
+
+    @Override
+    public boolean link(String filename, String contentId, long size) throws IOException {
+        try {
+            return inner.link(filename, contentId, size);
+        } finally {
+            refresh(filename);
+        }
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        inner.sync(filenames);
+    }
+
+    @Override
+    public String contentId(String filename) {
+        return inner.contentId(filename);
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException {
+        try {
+            return inner.delete(filename);
+        } finally {
+            refresh(filename);
+        }
+    }
+
+    @Override
+    public void clear() throws IOException {
+        try {
+            inner.clear();
+        } finally {
+            synchronized (this) {
+                sizes.clear();
+                for (MerkleTree tree : trees) {
+                    tree.clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return inner.exists(filename);
+    }
+
+    @Override
+    public long size(String filename) {
+        return inner.size(filename);
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        inner.transferTo(filename, out);
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        return inner.map(filename);
+    }
+
+    @Override
+    public List<String> list() throws IOException {
+        return inner.list();
+    }
+}
@@ -0,0 +1,69 @@
+import java.util.Arrays;
+
+/**
+ * Fixed-shape Merkle tree over a set of (filename, size) entries. Each filename falls in
+ * one of 2^DEPTH leaf buckets by hash; a leaf is the XOR of its entries' hashes, so adding
+ * or removing a file only rehashes the DEPTH nodes on its path. Both the Controller and a
+ * Dstore build the same shape, so two trees can be compared level by level, descending
+ * only into the nodes whose hashes differ.
+ *
+ * Nodes are kept in heap order: the root is node 1 and the children of node n are 2n and
+ * 2n + 1, so level l holds nodes 2^l .. 2^(l+1) - 1.
+ */
+public class MerkleTree {
+    public static final int DEPTH = 14;
+    private static final int LEAVES = 1 << DEPTH;
+
+    private final long[] nodes = new long[2 * LEAVES];
+
+    public synchronized void add(String filename, long size) {
+        toggle(filename, size);
+    }
+
+    public synchronized void remove(String filename, long size) {
+        toggle(filename, size);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(nodes, 0);
+    }
+
+    /**
+     * Hash of the index-th node of the given level, where level 0 is the root.
+     */
+    public synchronized long hash(int level, int index) {
+        return nodes[(1 << level) + index];
+    }
+
+    public static int bucket(String filename) {
+        return (int) (fnv(filename) >>> (64 - DEPTH));
+    }
+
+    // XOR is its own inverse, so adding and removing an entry are the same operation
+    private void toggle(String filename, long size) {
+        int node = LEAVES + bucket(filename);
+        nodes[node] ^= mix(fnv(filename) ^ (size * 0x9E3779B97F4A7C15L));
+        for (node >>>= 1; node >= 1; node >>>= 1) {
+            long left = nodes[2 * node];
+            long right = nodes[2 * node + 1];
+            // Empty subtrees hash to 0 so an empty tree costs nothing to compare
+            nodes[node] = left == 0 && right == 0 ? 0 : mix(left ^ Long.rotateLeft(mix(right), 17));
+        }
+    }
+
+    private static long fnv(String s) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            hash ^= s.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // splitmix64 finalizer
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
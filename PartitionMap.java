@@ -0,0 +1,86 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the filename space between several Controllers. Each Controller owns the files
+ * whose name hashes to its position in the list of Controller ports, so every Controller
+ * and Dstore that is given the same list agrees on who owns a file without talking.
+ *
+ * A partition may be served by a group of Controllers, one leader and its hot standbys,
+ * written as "12345/12346". The first port of a group is the one clients are sent to;
+ * a standby answers with ERROR_NOT_LEADER if it is not currently leading.
+ */
+public class PartitionMap {
+    private final int[][] controllerGroups;
+
+    public PartitionMap(int[][] controllerGroups) {
+        if (controllerGroups.length == 0) {
+            throw new IllegalArgumentException("Partition map needs at least one Controller");
+        }
+        this.controllerGroups = controllerGroups.clone();
+    }
+
+    /**
+     * Parses a comma separated list of Controller ports, e.g. "12345,12355" or
+     * "12345/12346,12355/12356". A missing or empty list means a single, unpartitioned
+     * Controller on defaultPort.
+     */
+    public static PartitionMap parse(String spec, int defaultPort) {
+        if (spec == null || spec.trim().isEmpty()) {
+            return new PartitionMap(new int[][] {{defaultPort}});
+        }
+        List<int[]> groups = new ArrayList<>();
+        for (String group : spec.split(",")) {
+            if (group.trim().isEmpty()) continue;
+            String[] ports = group.trim().split("/");
+            int[] groupPorts = new int[ports.length];
+            for (int i = 0; i < ports.length; i++) {
+                groupPorts[i] = Integer.parseInt(ports[i].trim());
+            }
+            groups.add(groupPorts);
+        }
+        return new PartitionMap(groups.toArray(new int[0][]));
+    }
+
+    public int size() {
+        return controllerGroups.length;
+    }
+
+    public int getControllerPort(int index) {
+        return controllerGroups[index][0];
+    }
+
+    public int[] getGroup(int index) {
+        return controllerGroups[index].clone();
+    }
+
+    // The partition served by the Controller on this port, or -1
+    public int indexOf(int controllerPort) {
+        for (int i = 0; i < controllerGroups.length; i++) {
+            for (int port : controllerGroups[i]) {
+                if (port == controllerPort) return i;
+            }
+        }
+        return -1;
+    }
+
+    public int ownerIndex(String filename) {
+        return Math.floorMod(filename.hashCode(), controllerGroups.length);
+    }
+
+    public int ownerPort(String filename) {
+        return getControllerPort(ownerIndex(filename));
+    }
+
+    // "n g1 ... gn", the same shape as the batch commands
+    public String toMessage() {
+        StringBuilder message = new StringBuilder().append(controllerGroups.length);
+        for (int[] group : controllerGroups) {
+            message.append(" ").append(group[0]);
+            for (int i = 1; i < group.length; i++) {
+                message.append("/").append(group[i]);
+            }
+        }
+        return message.toString();
+    }
+}
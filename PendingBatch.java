@@ -0,0 +1,56 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tracks the files of a STORE_BATCH / REMOVE_BATCH request that are still outstanding,
+ * so the Controller can send the client a single completion message for the whole batch,
+ * or a single failure once any of its files fails.
+ */
+public class PendingBatch {
+    private final String clientAddress;
+    private final String completionToken;
+    private final List<String> filenames;
+    private final Set<String> remaining = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean failed = new AtomicBoolean();
+
+    public PendingBatch(String clientAddress, String completionToken, Collection<String> filenames) {
+        this.clientAddress = clientAddress;
+        this.completionToken = completionToken;
+        this.filenames = new ArrayList<>(filenames);
+        this.remaining.addAll(filenames);
+    }
+
+    public String getClientAddress() {
+        return clientAddress;
+    }
+
+    public String getCompletionToken() {
+        return completionToken;
+    }
+
+    public List<String> getFilenames() {
+        return filenames;
+    }
+
+    /**
+     * Marks a file as done; returns true only for the call that completes the batch.
+     */
+    public boolean complete(String filename) {
+        return remaining.remove(filename) && remaining.isEmpty();
+    }
+
+    /**
+     * Marks the batch as failed; returns true only for the first call.
+     */
+    public boolean fail() {
+        return failed.compareAndSet(false, true);
+    }
+
+    public boolean isFailed() {
+        return failed.get();
+    }
+}
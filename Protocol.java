@@ -7,6 +7,16 @@ public class Protocol {
 	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String STORE_BATCH_TOKEN = "STORE_BATCH"; // also to Dstores
+	public final static String LOAD_BATCH_TOKEN = "LOAD_BATCH";
+	public final static String LOAD_DATA_BATCH_TOKEN = "LOAD_DATA_BATCH";
+	public final static String REMOVE_BATCH_TOKEN = "REMOVE_BATCH"; // also from Controller
+	public final static String REMOVE_COPIES_TOKEN = "REMOVE_COPIES"; // from Controller, drops whole copies a Dstore should not hold but keeps its shards
+	public final static String STATS_TOKEN = "STATS"; // answered by Dstores and the Controller with their counters
+	public final static String THROTTLE_TOKEN = "THROTTLE"; // to Controller or Dstores, limits background transfers
+	public final static String THROTTLE_OK_TOKEN = "THROTTLE_OK";
+	public final static String PARTITION_MAP_TOKEN = "PARTITION_MAP"; // also from Controller
+	public final static String CLIENT_TOKEN = "CLIENT"; // names the client a connection is accounted to, and optionally its zone
 	
 	// messages sent by the Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
@@ -14,16 +24,51 @@ public class Protocol {
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String STORE_BATCH_COMPLETE_TOKEN = "STORE_BATCH_COMPLETE";
+	public final static String LOAD_FROM_BATCH_TOKEN = "LOAD_FROM_BATCH";
+	public final static String REMOVE_BATCH_COMPLETE_TOKEN = "REMOVE_BATCH_COMPLETE";
+	public final static String MERKLE_QUERY_TOKEN = "MERKLE_QUERY";
+	public final static String MERKLE_LEAVES_TOKEN = "MERKLE_LEAVES";
+	public final static String EC_ENCODE_TOKEN = "EC_ENCODE";
+	public final static String EC_REBUILD_TOKEN = "EC_REBUILD";
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
 	public final static String ERROR_LOAD_TOKEN = "ERROR_LOAD";
+	public final static String ERROR_WRONG_PARTITION_TOKEN = "ERROR_WRONG_PARTITION";
+	public final static String ERROR_NOT_LEADER_TOKEN = "ERROR_NOT_LEADER"; // also to standby Controllers
+	public final static String ERROR_BUSY_TOKEN = "ERROR_BUSY"; // followed by a retry-after hint in milliseconds
+	public final static String ERROR_QUOTA_EXCEEDED_TOKEN = "ERROR_QUOTA_EXCEEDED";
+	public final static String ERROR_STORE_BATCH_FAILED_TOKEN = "ERROR_STORE_BATCH_FAILED"; // followed by the file that failed; none of the batch is stored
+	public final static String CLIENT_OK_TOKEN = "CLIENT_OK";
+	public final static String INDEX_PUT_TOKEN = "INDEX_PUT"; // to standby Controllers
+	public final static String INDEX_DEL_TOKEN = "INDEX_DEL"; // to standby Controllers
+	public final static String INDEX_SYNCED_TOKEN = "INDEX_SYNCED"; // to standby Controllers
 	
 	// messages sent by Dstores
 	public final static String ACK_TOKEN = "ACK";
 	public final static String STORE_ACK_TOKEN = "STORE_ACK";
 	public final static String REMOVE_ACK_TOKEN = "REMOVE_ACK";
-	public final static String JOIN_TOKEN = "JOIN";
+	public final static String STORE_ACK_BATCH_TOKEN = "STORE_ACK_BATCH";
+	public final static String REMOVE_ACK_BATCH_TOKEN = "REMOVE_ACK_BATCH";
+	public final static String JOIN_TOKEN = "JOIN"; // followed by the port, then capacity used free load and an optional zone
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String LOAD_DONE_TOKEN = "LOAD_DONE";
+	public final static String HEARTBEAT_TOKEN = "HEARTBEAT"; // capacity used free load
+	public final static String INVENTORY_TOKEN = "INVENTORY";
+	public final static String INVENTORY_END_TOKEN = "INVENTORY_END";
+	public final static String MERKLE_HASHES_TOKEN = "MERKLE_HASHES";
+	public final static String MERKLE_FILES_TOKEN = "MERKLE_FILES";
+	public final static String EC_ENCODE_FAILED_TOKEN = "EC_ENCODE_FAILED"; // the coordinator could not encode or push the shards
+	public final static String SHARD_STORE_TOKEN = "SHARD_STORE"; // to other Dstores
+	public final static String SHARD_DATA_TOKEN = "SHARD_DATA"; // to other Dstores
+	public final static String SHARD_PLACEMENT_TOKEN = "SHARD_PLACEMENT"; // to other Dstores
+	public final static String CONTENT_ID_TOKEN = "CONTENT_ID";
+	public final static String LINK_TOKEN = "LINK"; // to other Dstores
+	public final static String LINKED_TOKEN = "LINKED"; // from other Dstores
+	public final static String REBALANCE_STORE_DEFLATE_TOKEN = "REBALANCE_STORE_DEFLATE"; // to other Dstores
+
+	// messages sent by standby Controllers
+	public final static String FOLLOW_TOKEN = "FOLLOW";
 }
@@ -0,0 +1,89 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures rebalance plans on generated clusters: how many bytes a plan copies next to
+ * its bound after repair (what the required copies cost plus the least the balance pass
+ * could copy once they are planned, not a bound on every possible plan), how far the fullest or
+ * emptiest Dstore is from its share before and after, and how long planning takes.
+ * File sizes are log-normal (median about 20 KB, a long tail up to 1 GB) and each file
+ * starts on random Dstores, one per zone, in three zones.
+ *
+ * Scenarios: grow adds a tenth more empty Dstores, lose drops one Dstore so its files
+ * are a replica short, and mixed gives every other Dstore twice the capacity.
+ *
+ * Usage: java RebalanceBenchmark [files] [dstores] [replicationFactor] [tolerance]
+ */
+public class RebalanceBenchmark {
+    private static final String[] ZONES = {"zone-a", "zone-b", "zone-c"};
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int dstores = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int replicationFactor = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        double tolerance = args.length > 3 ? Double.parseDouble(args[3]) : 0.1;
+
+        Random random = new Random(42);
+        long[] sizes = new long[files];
+        for (int file = 0; file < files; file++) {
+            sizes[file] = Math.min(1L << 30, Math.max(1, (long) Math.exp(10 + 2 * random.nextGaussian())));
+        }
+
+        System.out.printf("%-8s %8s %10s %12s %12s %8s %8s %16s %10s%n", "scenario", "copies", "removals",
+            "movedMB", "boundMB", "moved/bnd", "bytes%", "imbalance", "planMs");
+        run("grow", sizes, dstores - dstores / 10, dstores, false, replicationFactor, tolerance);
+        run("lose", sizes, dstores, dstores - 1, false, replicationFactor, tolerance);
+        run("mixed", sizes, dstores, dstores, true, replicationFactor, tolerance);
+    }
+
+    // Places files on the first placedOn Dstores and plans for the first present ones
+    private static void run(String scenario, long[] sizes, int placedOn, int present, boolean mixedCapacity,
+                            int replicationFactor, double tolerance) {
+        Random random = new Random(7);
+        RebalancePlanner planner = new RebalancePlanner(replicationFactor, tolerance);
+        long total = 0;
+        for (long size : sizes) {
+            total += size * replicationFactor;
+        }
+        for (int dstore = 0; dstore < present; dstore++) {
+            long capacity = 2 * total / present * (mixedCapacity && dstore % 2 == 1 ? 2 : 1);
+            planner.addDstore("dstore-" + dstore, ZONES[dstore % ZONES.length], capacity, Long.MAX_VALUE);
+        }
+
+        long start = System.nanoTime();
+        int replicas = Math.min(replicationFactor, placedOn);
+        int[] chosen = new int[replicas];
+        for (int file = 0; file < sizes.length; file++) {
+            List<String> holders = new ArrayList<>(replicas);
+            for (int i = 0; i < replicas; i++) {
+                int dstore;
+                do {
+                    dstore = random.nextInt(placedOn);
+                } while (taken(chosen, i, dstore, replicas <= ZONES.length));
+                chosen[i] = dstore;
+                if (dstore < present) {
+                    holders.add("dstore-" + dstore);
+                }
+            }
+            planner.addFile("file-" + file, sizes[file], holders);
+        }
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+
+        RebalancePlanner.Plan plan = planner.plan();
+        System.out.printf("%-8s %8d %10d %12.0f %12.0f %8.3f %8.2f %7.3f -> %.3f %10d%n", scenario, plan.copies, plan.removals,
+            plan.bytesMoved / 1e6, plan.boundAfterRepair / 1e6, plan.boundAfterRepair == 0 ? 0 : (double) plan.bytesMoved / plan.boundAfterRepair,
+            100.0 * plan.bytesMoved / total, plan.imbalanceBefore, plan.imbalanceAfter, plan.planMillis);
+        System.out.println("         (" + sizes.length + " files loaded into the planner in " + loadMillis + " ms)");
+    }
+
+    // Replicas go to distinct Dstores, and to distinct zones while there are enough, as the Controller places them
+    private static boolean taken(int[] chosen, int count, int dstore, boolean distinctZones) {
+        for (int i = 0; i < count; i++) {
+            if (chosen[i] == dstore || (distinctZones && chosen[i] % ZONES.length == dstore % ZONES.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
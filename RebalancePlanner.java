@@ -0,0 +1,500 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Plans a rebalance that restores the replication factor, spreads replicas over failure
+ * domains and evens out the bytes on each Dstore while copying as few bytes as possible.
+ *
+ * Each Dstore gets a target share of the replica bytes in proportion to its capacity (or
+ * an equal share if not every Dstore reports one). When every file keeps a copy in every
+ * failure domain, bytes cannot cross domains, so the shares are taken of each domain's
+ * bytes among that domain's Dstores instead. The plan is built in four passes:
+ * surplus replicas are dropped from the fullest Dstores, which costs no transfer; missing
+ * replicas are copied to the emptiest Dstores; replicas sharing a failure domain are
+ * moved to an unused one; and finally, while a Dstore is more than tolerance above or
+ * below its target, the largest file that fits in the gap between the fullest and the
+ * emptiest Dstore is moved (best-fit), so each move closes as much of the imbalance as a
+ * single transfer can and no Dstore is pushed past its target. Only copies a Dstore held
+ * when planning started are moved by the last two passes, so every send has a real source.
+ */
+public class RebalancePlanner {
+    private static final int MAX_PROBES = 256; // candidate files tried per donor and receiver before giving up on the pair
+
+    private final int replicationFactor;
+    private final double tolerance;
+
+    private final List<String> dstoreIds = new ArrayList<>();
+    private final List<String> domains = new ArrayList<>();
+    private final List<Long> capacities = new ArrayList<>();
+    private final List<Long> freeSpace = new ArrayList<>();
+    private final Map<String, Integer> dstoreIndex = new HashMap<>();
+
+    private final List<String> fileNames = new ArrayList<>();
+    private long[] sizes = new long[1024];
+    private int[][] holders = new int[1024][];
+
+    // Planning state
+    private long[] load;
+    private long[] target;
+    private long[] incoming;
+    private int[][] originalHolders; // holders as added, before any pass changed them
+    private int[][] donorFiles; // file indices originally on each Dstore sorted by size, built when the first donor needs them
+    private final List<long[]> moves = new ArrayList<>(); // {file, from, to or -1, 1 if from drops its copy}
+
+    /**
+     * A finished plan: what each Dstore sends and removes, in the form REBALANCE takes,
+     * and how it scores.
+     */
+    public static class Plan {
+        public final Map<String, Pair<List<Pair<String, List<String>>>, List<String>>> perDstore = new LinkedHashMap<>();
+        public long bytesMoved;
+        public long requiredBytes; // part of bytesMoved that restores missing replicas or failure-domain spread
+        // requiredBytes plus the bytes still outside the balance bounds after this planner's own surplus, repair and
+        // spread passes; those passes are greedy, so this is a yardstick for the balance pass, not a bound on every plan
+        public long boundAfterRepair;
+        public int copies;
+        public int removals;
+        public double imbalanceBefore; // largest relative distance of a Dstore from its target
+        public double imbalanceAfter;
+        public long planMillis;
+
+        public String describe() {
+            return String.format("copies=%d removals=%d bytesMoved=%d requiredBytes=%d boundAfterRepair=%d imbalance=%.3f->%.3f planMs=%d",
+                copies, removals, bytesMoved, requiredBytes, boundAfterRepair, imbalanceBefore, imbalanceAfter, planMillis);
+        }
+    }
+
+    public RebalancePlanner(int replicationFactor, double tolerance) {
+        this.replicationFactor = replicationFactor;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Adds a Dstore; a capacity of 0 means it reports none and freeBytes of Long.MAX_VALUE
+     * means there is no limit on what it can receive.
+     */
+    public void addDstore(String dstoreId, String domain, long capacityBytes, long freeBytes) {
+        dstoreIndex.put(dstoreId, dstoreIds.size());
+        dstoreIds.add(dstoreId);
+        domains.add(domain);
+        capacities.add(capacityBytes);
+        freeSpace.add(freeBytes);
+    }
+
+    /**
+     * Adds a file with the Dstores that hold it; holders that were not added are ignored.
+     */
+    public void addFile(String filename, long size, List<String> holderIds) {
+        int file = fileNames.size();
+        if (file == sizes.length) {
+            sizes = Arrays.copyOf(sizes, file * 2);
+            holders = Arrays.copyOf(holders, file * 2);
+        }
+        int[] fileHolders = new int[holderIds.size()];
+        int count = 0;
+        for (String holderId : holderIds) {
+            Integer dstore = dstoreIndex.get(holderId);
+            if (dstore != null && !contains(fileHolders, count, dstore)) {
+                fileHolders[count++] = dstore;
+            }
+        }
+        fileNames.add(filename);
+        sizes[file] = size;
+        holders[file] = Arrays.copyOf(fileHolders, count);
+    }
+
+    public Plan plan() {
+        long start = System.nanoTime();
+        int dstoreCount = dstoreIds.size();
+        int fileCount = fileNames.size();
+        load = new long[dstoreCount];
+        target = new long[dstoreCount];
+        incoming = new long[dstoreCount];
+        originalHolders = Arrays.copyOf(holders, fileCount);
+        donorFiles = null;
+        moves.clear();
+
+        Plan plan = new Plan();
+        for (String dstoreId : dstoreIds) {
+            plan.perDstore.put(dstoreId, new Pair<>(new ArrayList<>(), new ArrayList<>()));
+        }
+        if (dstoreCount == 0) {
+            return plan;
+        }
+
+        // Targets are shares of what the cluster will hold once every file has its replicas
+        int replicas = Math.min(replicationFactor, dstoreCount);
+        long total = 0;
+        for (int file = 0; file < fileCount; file++) {
+            for (int dstore : holders[file]) {
+                load[dstore] += sizes[file];
+            }
+            if (holders[file].length > 0) {
+                total += sizes[file] * replicas;
+            }
+        }
+        long[] initialLoad = load.clone();
+        setTargets(total, null);
+        int domainCount = new HashSet<>(domains).size();
+
+        trimSurplus(fileCount, replicas);
+        long requiredBytes = repair(fileCount, replicas) + spreadDomains(fileCount, replicas, domainCount);
+        if (replicas >= domainCount) {
+            // Every file has a copy in every domain, so bytes can only move between Dstores of one domain
+            Map<String, Long> domainBytes = new HashMap<>();
+            for (int dstore = 0; dstore < dstoreCount; dstore++) {
+                domainBytes.merge(domains.get(dstore), load[dstore], Long::sum);
+            }
+            setTargets(total, domainBytes);
+        }
+        plan.imbalanceBefore = imbalance(initialLoad);
+        plan.boundAfterRepair = requiredBytes + balanceLowerBound();
+        balance();
+
+        plan.imbalanceAfter = imbalance(load);
+        plan.requiredBytes = requiredBytes;
+        emit(plan);
+        plan.planMillis = (System.nanoTime() - start) / 1_000_000;
+        return plan;
+    }
+
+    // Drops copies beyond the replication factor: second copies in a domain first, then from the fullest Dstores
+    private void trimSurplus(int fileCount, int replicas) {
+        for (int file = 0; file < fileCount; file++) {
+            while (holders[file].length > replicas) {
+                int victim = -1;
+                boolean victimShared = false;
+                for (int dstore : holders[file]) {
+                    boolean shared = sharesDomain(file, dstore);
+                    if (victim < 0 || (shared && !victimShared) || (shared == victimShared && ratio(dstore) > ratio(victim))) {
+                        victim = dstore;
+                        victimShared = shared;
+                    }
+                }
+                removeHolder(file, victim);
+                moves.add(new long[] {file, victim, -1, 1});
+            }
+        }
+    }
+
+    // Copies files with missing replicas to the emptiest Dstores, new domains first; returns the bytes copied
+    private long repair(int fileCount, int replicas) {
+        long bytes = 0;
+        for (int file = 0; file < fileCount; file++) {
+            if (holders[file].length == 0) {
+                continue; // nothing left to copy from
+            }
+            while (holders[file].length < replicas) {
+                int receiver = emptiestReceiver(file, -1, true);
+                if (receiver < 0) {
+                    receiver = emptiestReceiver(file, -1, false);
+                }
+                if (receiver < 0) {
+                    break;
+                }
+                int sender = holders[file][0];
+                addHolder(file, receiver);
+                moves.add(new long[] {file, sender, receiver, 0});
+                bytes += sizes[file];
+            }
+        }
+        return bytes;
+    }
+
+    // Moves a copy out of a domain holding two while a domain holding none has room for it; returns the bytes moved
+    private long spreadDomains(int fileCount, int replicas, int domainCount) {
+        long bytes = 0;
+        int wanted = Math.min(replicas, domainCount);
+        for (int file = 0; file < fileCount; file++) {
+            if (holders[file].length < wanted || distinctDomains(file) >= wanted) {
+                continue;
+            }
+            int victim = -1;
+            for (int dstore : originalHolders[file]) {
+                if (contains(holders[file], holders[file].length, dstore) && sharesDomain(file, dstore)
+                        && (victim < 0 || ratio(dstore) > ratio(victim))) {
+                    victim = dstore;
+                }
+            }
+            int receiver = victim < 0 ? -1 : emptiestReceiver(file, victim, true);
+            if (receiver >= 0) {
+                moveFile(file, victim, receiver);
+                bytes += sizes[file];
+            }
+        }
+        return bytes;
+    }
+
+    private void balance() {
+        int dstoreCount = dstoreIds.size();
+        boolean[] exhausted = new boolean[dstoreCount];
+        Integer[] byRatio = new Integer[dstoreCount];
+        while (true) {
+            int donor = -1;
+            for (int dstore = 0; dstore < dstoreCount; dstore++) {
+                if (!exhausted[dstore] && load[dstore] > target[dstore] && (donor < 0 || ratio(dstore) > ratio(donor))) {
+                    donor = dstore;
+                }
+            }
+            if (donor < 0) {
+                return;
+            }
+            for (int dstore = 0; dstore < dstoreCount; dstore++) {
+                byRatio[dstore] = dstore;
+            }
+            Arrays.sort(byRatio, (a, b) -> Double.compare(ratio(a), ratio(b)));
+            if (load[donor] <= upper(donor) && load[byRatio[0]] >= lower(byRatio[0])) {
+                return; // every Dstore is within tolerance of its target
+            }
+
+            boolean moved = false;
+            for (int receiver : byRatio) {
+                if (receiver == donor || load[receiver] >= target[receiver]) {
+                    break;
+                }
+                // Neither side may be pushed past its target, so every move shrinks the imbalance
+                long room = Math.min(load[donor] - target[donor], target[receiver] - load[receiver]);
+                boolean needed = load[donor] > upper(donor) || load[receiver] < lower(receiver);
+                if (!needed || room <= 0) {
+                    continue;
+                }
+                int file = bestFit(donor, receiver, room);
+                if (file >= 0) {
+                    moveFile(file, donor, receiver);
+                    moved = true;
+                    break;
+                }
+            }
+            if (!moved) {
+                exhausted[donor] = true;
+            }
+        }
+    }
+
+    // Largest file originally on donor, and still there, of at most room bytes that receiver may take without losing domain spread
+    private int bestFit(int donor, int receiver, long room) {
+        if (donorFiles == null) {
+            donorFiles = filesBySize();
+        }
+        int[] files = donorFiles[donor];
+        int low = 0;
+        int high = files.length - 1;
+        int position = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (sizes[files[middle]] <= room) {
+                position = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        for (int probe = 0; position >= 0 && probe < MAX_PROBES; position--, probe++) {
+            int file = files[position];
+            if (sizes[file] > 0 && sizes[file] <= room && contains(holders[file], holders[file].length, donor)
+                    && !contains(holders[file], holders[file].length, receiver)
+                    && canReceive(receiver, sizes[file]) && keepsSpread(file, donor, receiver)) {
+                return file;
+            }
+        }
+        return -1;
+    }
+
+    // File indices on each Dstore as added, smallest first; copies planned by earlier passes do not exist yet
+    private int[][] filesBySize() {
+        int dstoreCount = dstoreIds.size();
+        int fileCount = fileNames.size();
+        int[] counts = new int[dstoreCount];
+        for (int file = 0; file < fileCount; file++) {
+            for (int dstore : originalHolders[file]) {
+                counts[dstore]++;
+            }
+        }
+        long[][] keyed = new long[dstoreCount][];
+        for (int dstore = 0; dstore < dstoreCount; dstore++) {
+            keyed[dstore] = new long[counts[dstore]];
+            counts[dstore] = 0;
+        }
+        // Sizes of 2 GB and up share the top key, so bestFit rechecks each candidate against the room
+        for (int file = 0; file < fileCount; file++) {
+            long key = Math.min(sizes[file], Integer.MAX_VALUE) << 32 | file;
+            for (int dstore : originalHolders[file]) {
+                keyed[dstore][counts[dstore]++] = key;
+            }
+        }
+        int[][] files = new int[dstoreCount][];
+        for (int dstore = 0; dstore < dstoreCount; dstore++) {
+            Arrays.sort(keyed[dstore]);
+            files[dstore] = new int[keyed[dstore].length];
+            for (int i = 0; i < files[dstore].length; i++) {
+                files[dstore][i] = (int) keyed[dstore][i];
+            }
+            keyed[dstore] = null;
+        }
+        return files;
+    }
+
+    // Emptiest Dstore that can take file, in a domain the file is not in yet if newDomainOnly
+    private int emptiestReceiver(int file, int leaving, boolean newDomainOnly) {
+        int best = -1;
+        for (int dstore = 0; dstore < dstoreIds.size(); dstore++) {
+            if (contains(holders[file], holders[file].length, dstore) || !canReceive(dstore, sizes[file])) {
+                continue;
+            }
+            if (newDomainOnly && domainHeld(file, domains.get(dstore), leaving)) {
+                continue;
+            }
+            if (best < 0 || ratio(dstore) < ratio(best)) {
+                best = dstore;
+            }
+        }
+        return best;
+    }
+
+    // Moving file from donor to receiver must not leave it in fewer failure domains
+    private boolean keepsSpread(int file, int donor, int receiver) {
+        String donorDomain = domains.get(donor);
+        String receiverDomain = domains.get(receiver);
+        return donorDomain.equals(receiverDomain) || !domainHeld(file, receiverDomain, donor) || domainHeld(file, donorDomain, donor);
+    }
+
+    // Whether a holder of file other than except is in domain
+    private boolean domainHeld(int file, String domain, int except) {
+        for (int dstore : holders[file]) {
+            if (dstore != except && domains.get(dstore).equals(domain)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean sharesDomain(int file, int dstore) {
+        return domainHeld(file, domains.get(dstore), dstore);
+    }
+
+    private int distinctDomains(int file) {
+        Set<String> held = new HashSet<>();
+        for (int dstore : holders[file]) {
+            held.add(domains.get(dstore));
+        }
+        return held.size();
+    }
+
+    private boolean canReceive(int dstore, long size) {
+        long free = freeSpace.get(dstore);
+        return free == Long.MAX_VALUE || free - incoming[dstore] >= size;
+    }
+
+    private void moveFile(int file, int from, int to) {
+        removeHolder(file, from);
+        addHolder(file, to);
+        moves.add(new long[] {file, from, to, 1});
+    }
+
+    private void addHolder(int file, int dstore) {
+        int[] fileHolders = Arrays.copyOf(holders[file], holders[file].length + 1);
+        fileHolders[fileHolders.length - 1] = dstore;
+        holders[file] = fileHolders;
+        load[dstore] += sizes[file];
+        incoming[dstore] += sizes[file];
+    }
+
+    private void removeHolder(int file, int dstore) {
+        int[] fileHolders = new int[holders[file].length - 1];
+        int count = 0;
+        for (int holder : holders[file]) {
+            if (holder != dstore) {
+                fileHolders[count++] = holder;
+            }
+        }
+        holders[file] = fileHolders;
+        load[dstore] -= sizes[file];
+    }
+
+    private double ratio(int dstore) {
+        return target[dstore] == 0 ? (load[dstore] == 0 ? 0 : Double.MAX_VALUE) : (double) load[dstore] / target[dstore];
+    }
+
+    private double upper(int dstore) {
+        return target[dstore] * (1 + tolerance);
+    }
+
+    private double lower(int dstore) {
+        return target[dstore] * (1 - tolerance);
+    }
+
+    // Each Dstore's share of total by weight, or of its domain's bytes when domainBytes is given
+    private void setTargets(long total, Map<String, Long> domainBytes) {
+        boolean weighByCapacity = capacities.stream().allMatch(capacity -> capacity > 0);
+        Map<String, Double> weightSums = new HashMap<>();
+        for (int dstore = 0; dstore < dstoreIds.size(); dstore++) {
+            String pool = domainBytes == null ? "" : domains.get(dstore);
+            weightSums.merge(pool, weighByCapacity ? (double) capacities.get(dstore) : 1, Double::sum);
+        }
+        for (int dstore = 0; dstore < dstoreIds.size(); dstore++) {
+            String pool = domainBytes == null ? "" : domains.get(dstore);
+            double weight = weighByCapacity ? capacities.get(dstore) : 1;
+            long poolBytes = domainBytes == null ? total : domainBytes.get(pool);
+            target[dstore] = (long) (poolBytes * weight / weightSums.get(pool));
+        }
+    }
+
+    private double imbalance(long[] loads) {
+        double worst = 0;
+        for (int dstore = 0; dstore < loads.length; dstore++) {
+            if (target[dstore] > 0) {
+                worst = Math.max(worst, Math.abs((double) loads[dstore] / target[dstore] - 1));
+            }
+        }
+        return worst;
+    }
+
+    // Bytes that must leave Dstores above their bounds, or reach those below, whichever is more, from the current loads
+    private long balanceLowerBound() {
+        double excess = 0;
+        double deficit = 0;
+        for (int dstore = 0; dstore < load.length; dstore++) {
+            excess += Math.max(0, load[dstore] - upper(dstore));
+            deficit += Math.max(0, lower(dstore) - load[dstore]);
+        }
+        return (long) Math.max(excess, deficit);
+    }
+
+    // Turns the moves into per-Dstore send and remove lists; a Dstore sends before it removes
+    private void emit(Plan plan) {
+        Map<String, Map<String, List<String>>> sends = new HashMap<>();
+        for (long[] move : moves) {
+            int file = (int) move[0];
+            String from = dstoreIds.get((int) move[1]);
+            String filename = fileNames.get(file);
+            if (move[2] >= 0) {
+                sends.computeIfAbsent(from, id -> new LinkedHashMap<>())
+                     .computeIfAbsent(filename, name -> new ArrayList<>())
+                     .add(dstoreIds.get((int) move[2]));
+                plan.bytesMoved += sizes[file];
+                plan.copies++;
+            }
+            if (move[3] == 1) {
+                plan.perDstore.get(from).getSecond().add(filename);
+                plan.removals++;
+            }
+        }
+        sends.forEach((from, files) -> files.forEach((filename, targets) ->
+            plan.perDstore.get(from).getFirst().add(new Pair<>(filename, targets))));
+    }
+
+    private static boolean contains(int[] values, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
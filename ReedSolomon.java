@@ -0,0 +1,203 @@
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8) with k data shards and m parity shards. The
+ * encoding matrix is a Vandermonde matrix normalised so that its top k rows are the
+ * identity, which keeps the data shards verbatim and lets any k of the k + m shards
+ * reconstruct the rest.
+ */
+public class ReedSolomon {
+    private static final byte[] EXP = new byte[512];
+    private static final byte[] LOG = new byte[256];
+
+    static {
+        // Generator 2 over the polynomial x^8 + x^4 + x^3 + x^2 + 1
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = (byte) x;
+            LOG[x] = (byte) i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= 0x11d;
+            }
+        }
+        for (int i = 255; i < 512; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    private final byte[][] matrix; // (k + m) x k
+
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards <= 0 || parityShards < 0 || dataShards + parityShards > 255) {
+            throw new IllegalArgumentException("Unsupported shard counts " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+
+        int total = dataShards + parityShards;
+        byte[][] vandermonde = new byte[total][dataShards];
+        for (int r = 0; r < total; r++) {
+            for (int c = 0; c < dataShards; c++) {
+                vandermonde[r][c] = power(r, c);
+            }
+        }
+        byte[][] top = new byte[dataShards][];
+        System.arraycopy(vandermonde, 0, top, 0, dataShards);
+        this.matrix = multiply(vandermonde, invert(top));
+    }
+
+    public int getDataShards() {
+        return dataShards;
+    }
+
+    public int getParityShards() {
+        return parityShards;
+    }
+
+    /**
+     * Fills shards[k .. k+m-1] from the data in shards[0 .. k-1]; all shards have the same length.
+     */
+    public void encode(byte[][] shards) {
+        int length = shards[0].length;
+        for (int p = 0; p < parityShards; p++) {
+            byte[] parity = shards[dataShards + p];
+            Arrays.fill(parity, (byte) 0);
+            for (int d = 0; d < dataShards; d++) {
+                addMultiple(parity, shards[d], matrix[dataShards + p][d], length);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds every shard whose present flag is false from k present ones. Missing shards
+     * must already be allocated with the shard length.
+     */
+    public void reconstruct(byte[][] shards, boolean[] present) {
+        reconstructData(shards, present);
+
+        // With all data shards back, missing parity is just re-encoded
+        int length = shards[0].length;
+        for (int p = 0; p < parityShards; p++) {
+            if (present[dataShards + p]) continue;
+            byte[] parity = shards[dataShards + p];
+            Arrays.fill(parity, (byte) 0);
+            for (int d = 0; d < dataShards; d++) {
+                addMultiple(parity, shards[d], matrix[dataShards + p][d], length);
+            }
+        }
+    }
+
+    /**
+     * Like reconstruct, but only rebuilds the data shards, which is all a read needs.
+     */
+    public void reconstructData(byte[][] shards, boolean[] present) {
+        int[] rows = new int[dataShards];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < dataShards; i++) {
+            if (present[i]) {
+                rows[found++] = i;
+            }
+        }
+        if (found < dataShards) {
+            throw new IllegalArgumentException("Need " + dataShards + " shards to reconstruct, have " + found);
+        }
+
+        boolean dataMissing = false;
+        for (int d = 0; d < dataShards; d++) {
+            dataMissing |= !present[d];
+        }
+        if (dataMissing) {
+            byte[][] sub = new byte[dataShards][];
+            for (int i = 0; i < dataShards; i++) {
+                sub[i] = matrix[rows[i]];
+            }
+            byte[][] decode = invert(sub);
+            int length = shards[rows[0]].length;
+            for (int d = 0; d < dataShards; d++) {
+                if (present[d]) continue;
+                Arrays.fill(shards[d], (byte) 0);
+                for (int i = 0; i < dataShards; i++) {
+                    addMultiple(shards[d], shards[rows[i]], decode[d][i], length);
+                }
+            }
+        }
+    }
+
+    // target ^= coefficient * source, byte-wise over GF(2^8)
+    private static void addMultiple(byte[] target, byte[] source, byte coefficient, int length) {
+        if (coefficient == 0) return;
+        int logC = LOG[coefficient & 0xff] & 0xff;
+        for (int i = 0; i < length; i++) {
+            int s = source[i] & 0xff;
+            if (s != 0) {
+                target[i] ^= EXP[logC + (LOG[s] & 0xff)];
+            }
+        }
+    }
+
+    private static byte mul(byte a, byte b) {
+        if (a == 0 || b == 0) return 0;
+        return EXP[(LOG[a & 0xff] & 0xff) + (LOG[b & 0xff] & 0xff)];
+    }
+
+    private static byte power(int base, int exponent) {
+        if (exponent == 0) return 1;
+        if (base == 0) return 0;
+        return EXP[((LOG[base] & 0xff) * exponent) % 255];
+    }
+
+    private static byte[][] multiply(byte[][] a, byte[][] b) {
+        byte[][] result = new byte[a.length][b[0].length];
+        for (int r = 0; r < a.length; r++) {
+            for (int c = 0; c < b[0].length; c++) {
+                byte value = 0;
+                for (int i = 0; i < b.length; i++) {
+                    value ^= mul(a[r][i], b[i][c]);
+                }
+                result[r][c] = value;
+            }
+        }
+        return result;
+    }
+
+    // Gauss-Jordan elimination over GF(2^8)
+    private static byte[][] invert(byte[][] m) {
+        int n = m.length;
+        byte[][] work = new byte[n][2 * n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(m[r], 0, work[r], 0, n);
+            work[r][n + r] = 1;
+        }
+        for (int c = 0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && work[pivot][c] == 0) pivot++;
+            if (pivot == n) {
+                throw new IllegalArgumentException("Singular matrix");
+            }
+            byte[] swap = work[c];
+            work[c] = work[pivot];
+            work[pivot] = swap;
+
+            byte scale = EXP[255 - (LOG[work[c][c] & 0xff] & 0xff)];
+            for (int i = 0; i < 2 * n; i++) {
+                work[c][i] = mul(work[c][i], scale);
+            }
+            for (int r = 0; r < n; r++) {
+                if (r != c && work[r][c] != 0) {
+                    byte factor = work[r][c];
+                    for (int i = 0; i < 2 * n; i++) {
+                        work[r][i] ^= mul(factor, work[c][i]);
+                    }
+                }
+            }
+        }
+        byte[][] inverse = new byte[n][n];
+        for (int r = 0; r < n; r++) {
+            System.arraycopy(work[r], n, inverse[r], 0, n);
+        }
+        return inverse;
+    }
+}
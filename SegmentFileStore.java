@@ -0,0 +1,421 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Packs small files into large append-only segment files with an in-memory offset index,
+ * so that millions of tiny files do not each cost an inode and a directory entry.
+ *
+ * Record layout: [int nameLength][name bytes][long dataLength][data]. A dataLength of -1
+ * is a tombstone written by delete. Segments whose live data drops below the compaction
+ * threshold are rewritten in the background. Files larger than smallFileLimit are kept
+ * as plain files through a DirectoryFileStore on the same folder.
+ */
+public class SegmentFileStore implements FileStore {
+    private static final long TOMBSTONE = -1;
+    private static final int MAX_NAME_LENGTH = 4096;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        final FileChannel channel;
+        long size;       // guarded by the store's monitor
+        long liveBytes;  // bytes of records the index still points to, guarded by the store's monitor
+
+        Segment(int id, File file, FileChannel channel, long size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+
+    private static class Location {
+        final Segment segment;
+        final long dataOffset;
+        final long length;
+        final long recordLength;
+
+        Location(Segment segment, long dataOffset, long length, long recordLength) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(String name, long dataOffset, long length, long recordLength) throws IOException;
+    }
+
+    private final File segmentFolder;
+    private final DirectoryFileStore largeFiles;
+    private final long maxSegmentBytes;
+    private final long smallFileLimit;
+    private final double compactionThreshold;
+
+    private final ConcurrentHashMap<String, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    // Readers hold the read lock while using a segment channel; compaction takes the write lock to drop one
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+
+    public SegmentFileStore(File folder, long maxSegmentBytes, long smallFileLimit, double compactionThreshold, int compactionIntervalSeconds,
+                            boolean forceStaged) throws IOException {
+        this.segmentFolder = new File(folder, ".segments");
+        this.largeFiles = new DirectoryFileStore(folder, forceStaged);
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.smallFileLimit = smallFileLimit;
+        this.compactionThreshold = compactionThreshold;
+        recover();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        if (size > smallFileLimit) {
+            deletePacked(filename);
+            return largeFiles.write(filename, in, size);
+        }
+
+        // Buffer the whole file first so a short stream never leaves a partial record behind
+        byte[] data = new byte[(int) size];
+        int totalRead = 0;
+        while (totalRead < size) {
+            int bytesRead = in.read(data, totalRead, (int) size - totalRead);
+            if (bytesRead == -1) {
+                return false;
+            }
+            totalRead += bytesRead;
+        }
+
+        append(filename, data);
+        largeFiles.delete(filename);
+        return true;
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        List<String> plainFiles = new ArrayList<>();
+        Map<Integer, Segment> dirty = new HashMap<>();
+        for (String filename : filenames) {
+            Location location = index.get(filename);
+            if (location != null) {
+                dirty.put(location.segment.id, location.segment);
+            } else {
+                plainFiles.add(filename);
+            }
+        }
+        // One force per segment covers every record appended to it
+        segmentLock.readLock().lock();
+        try {
+            for (Segment segment : dirty.values()) {
+                if (segments.get(segment.id) == segment) {
+                    segment.channel.force(false);
+                }
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        if (!dirty.isEmpty()) {
+            DirectoryFileStore.force(segmentFolder);
+        }
+        largeFiles.sync(plainFiles);
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return index.containsKey(filename) || largeFiles.exists(filename);
+    }
+
+    @Override
+    public long size(String filename) {
+        Location location = index.get(filename);
+        return location != null ? location.length : largeFiles.size(filename);
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Location location = index.get(filename);
+            if (location == null) {
+                largeFiles.transferTo(filename, out);
+                return;
+            }
+
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = location.dataOffset;
+            long remaining = location.length;
+            while (remaining > 0) {
+                long transferred = location.segment.channel.transferTo(position, remaining, target);
+                if (transferred <= 0) {
+                    throw new EOFException("Segment " + location.segment.id + " ended while reading " + filename);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            Location location = index.get(filename);
+            if (location == null) {
+                return largeFiles.map(filename);
+            }
+            // Mappings outlive the channel, so they stay readable after the segment is compacted away
+            return location.segment.channel.map(FileChannel.MapMode.READ_ONLY, location.dataOffset, location.length);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException {
+        boolean removed = largeFiles.delete(filename);
+        return deletePacked(filename) || removed;
+    }
+
+    private synchronized boolean deletePacked(String filename) throws IOException {
+        Location previous = index.remove(filename);
+        if (previous == null) {
+            return false;
+        }
+        previous.segment.liveBytes -= previous.recordLength;
+        appendRecord(filename, null, TOMBSTONE);
+        return true;
+    }
+
+    @Override
+    public List<String> list() {
+        List<String> names = new ArrayList<>(index.keySet());
+        names.addAll(largeFiles.list());
+        return names;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        segmentLock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+            segments.clear();
+            index.clear();
+            active = null;
+            largeFiles.clear();
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    /////////////////////////////////////// SEGMENTS ///////////////////////////////////////
+
+    private synchronized void append(String filename, byte[] data) throws IOException {
+        Location location = appendRecord(filename, data, data.length);
+        Location previous = index.put(filename, location);
+        location.segment.liveBytes += location.recordLength;
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.recordLength;
+        }
+    }
+
+    // Must be called while holding the store's monitor
+    private Location appendRecord(String filename, byte[] data, long length) throws IOException {
+        byte[] name = filename.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + name.length + 8 + (data == null ? 0 : data.length));
+        record.putInt(name.length).put(name).putLong(length);
+        if (data != null) {
+            record.put(data);
+        }
+        record.flip();
+
+        Segment segment = activeSegment();
+        long start = segment.size;
+        long position = start;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+        segment.size = position;
+        return new Location(segment, start + 4 + name.length + 8, length, position - start);
+    }
+
+    private Segment activeSegment() throws IOException {
+        if (active == null || active.size >= maxSegmentBytes) {
+            int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            active = openSegment(id);
+            segments.put(id, active);
+        }
+        return active;
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        if (!segmentFolder.exists() && !segmentFolder.mkdirs()) {
+            throw new IOException("Cannot create segment folder " + segmentFolder);
+        }
+        File file = new File(segmentFolder, "segment-" + id + ".dat");
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel, channel.size());
+    }
+
+    // Walks the records of a segment in order; a torn record at the tail ends the walk and is reported as the valid length
+    private long scan(Segment segment, RecordVisitor visitor) throws IOException {
+        long position = 0;
+        ByteBuffer intBuffer = ByteBuffer.allocate(4);
+        ByteBuffer longBuffer = ByteBuffer.allocate(8);
+        while (position + 12 <= segment.size) {
+            intBuffer.clear();
+            segment.channel.read(intBuffer, position);
+            int nameLength = intBuffer.flip().getInt();
+            if (nameLength <= 0 || nameLength > MAX_NAME_LENGTH || position + 4 + nameLength + 8 > segment.size) {
+                break;
+            }
+
+            ByteBuffer nameBuffer = ByteBuffer.allocate(nameLength);
+            segment.channel.read(nameBuffer, position + 4);
+            String name = new String(nameBuffer.array(), StandardCharsets.UTF_8);
+
+            longBuffer.clear();
+            segment.channel.read(longBuffer, position + 4 + nameLength);
+            long length = longBuffer.flip().getLong();
+            long dataOffset = position + 4 + nameLength + 8;
+            long dataLength = length == TOMBSTONE ? 0 : length;
+            if (dataLength < 0 || dataOffset + dataLength > segment.size) {
+                break;
+            }
+
+            visitor.visit(name, dataOffset, length, dataOffset + dataLength - position);
+            position = dataOffset + dataLength;
+        }
+        return position;
+    }
+
+    private synchronized void recover() throws IOException {
+        File[] files = segmentFolder.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".dat"));
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            int id = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+            segments.put(id, openSegment(id));
+        }
+
+        // Replay segments oldest first so later records win
+        for (Segment segment : segments.values()) {
+            long validLength = scan(segment, (name, dataOffset, length, recordLength) -> {
+                Location previous = length == TOMBSTONE
+                        ? index.remove(name)
+                        : index.put(name, new Location(segment, dataOffset, length, recordLength));
+                if (length != TOMBSTONE) {
+                    segment.liveBytes += recordLength;
+                }
+                if (previous != null) {
+                    previous.segment.liveBytes -= previous.recordLength;
+                }
+            });
+            if (validLength < segment.size) {
+                System.out.println("Truncating torn tail of " + segment.file + " at " + validLength);
+                segment.channel.truncate(validLength);
+                segment.size = validLength;
+            }
+        }
+        active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+    }
+
+    /////////////////////////////////////// COMPACTION ///////////////////////////////////////
+
+    private void compact() {
+        for (Map.Entry<Integer, Segment> entry : segments.entrySet()) {
+            Segment segment = entry.getValue();
+            boolean worthCompacting;
+            synchronized (this) {
+                worthCompacting = segment != active && segment.liveBytes < segment.size * compactionThreshold;
+            }
+            if (!worthCompacting) {
+                continue;
+            }
+            try {
+                compactSegment(segment);
+            } catch (IOException e) {
+                System.out.println("Error compacting " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        // Tombstones only matter while an older segment may still hold the record they shadow
+        boolean hasOlderSegments = segments.firstKey() < segment.id;
+        long[] moved = new long[1];
+        Map<Integer, Segment> written = new HashMap<>(); // segments that received moved records
+
+        scan(segment, (name, dataOffset, length, recordLength) -> {
+            synchronized (this) {
+                if (length == TOMBSTONE) {
+                    if (hasOlderSegments && !index.containsKey(name)) {
+                        appendRecord(name, null, TOMBSTONE);
+                        written.put(active.id, active);
+                    }
+                    return;
+                }
+                Location location = index.get(name);
+                if (location == null || location.segment != segment || location.dataOffset != dataOffset) {
+                    return;
+                }
+                ByteBuffer data = ByteBuffer.allocate((int) length);
+                while (data.hasRemaining()) {
+                    if (segment.channel.read(data, dataOffset + data.position()) < 0) {
+                        throw new EOFException("Segment " + segment.id + " ended while compacting " + name);
+                    }
+                }
+                append(name, data.array());
+                written.put(active.id, active);
+                moved[0] += length;
+            }
+        });
+
+        // The moved copies must be on disk before the only durable ones are deleted, whatever the fsync mode
+        for (Segment target : written.values()) {
+            target.channel.force(true);
+        }
+        if (!written.isEmpty()) {
+            DirectoryFileStore.force(segmentFolder);
+        }
+
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+            if (!segment.file.delete()) {
+                System.out.println("Could not delete compacted segment " + segment.file);
+            }
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+        System.out.println("Compacted " + segment.file.getName() + ", moved " + moved[0] + " live bytes");
+    }
+}
@@ -0,0 +1,144 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stress check for concurrent STOREs of one name against a running Controller and its
+ * Dstores: in every round all clients STORE the same new filename at once, each with
+ * content of its own. Exactly one of them may be sent STORE_TO; the others must get
+ * ERROR_FILE_ALREADY_EXISTS. The winner uploads, must get STORE_COMPLETE, and a LOAD of
+ * the name must return the winner's bytes. Any other outcome is counted as a violation.
+ *
+ * Usage: java StoreRaceBenchmark controllerPort [clients] [rounds] [fileBytes]
+ */
+public class StoreRaceBenchmark {
+    private static final int TIMEOUT_MS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int controllerPort = Integer.parseInt(args[0]);
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int fileBytes = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+
+        AtomicInteger winners = new AtomicInteger();
+        AtomicInteger rejected = new AtomicInteger();
+        AtomicInteger completed = new AtomicInteger();
+        AtomicInteger violations = new AtomicInteger();
+        String prefix = "race-" + System.currentTimeMillis() + "-";
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            String filename = prefix + round;
+            CyclicBarrier barrier = new CyclicBarrier(clients);
+            List<Future<byte[]>> attempts = new ArrayList<>();
+            for (int client = 0; client < clients; client++) {
+                byte[] content = new byte[fileBytes];
+                Arrays.fill(content, (byte) ('a' + client % 26));
+                attempts.add(pool.submit(() -> {
+                    try (Socket controller = new Socket("localhost", controllerPort)) {
+                        controller.setSoTimeout(TIMEOUT_MS);
+                        PrintWriter writer = new PrintWriter(controller.getOutputStream(), true);
+                        BufferedReader reader = new BufferedReader(new InputStreamReader(controller.getInputStream()));
+                        barrier.await();
+                        writer.println("STORE " + filename + " " + content.length);
+                        String reply = reader.readLine();
+                        if (reply == null || !reply.startsWith("STORE_TO")) {
+                            if ("ERROR_FILE_ALREADY_EXISTS".equals(reply)) {
+                                rejected.incrementAndGet();
+                            } else {
+                                System.out.println(filename + ": unexpected reply " + reply);
+                                violations.incrementAndGet();
+                            }
+                            return null;
+                        }
+                        winners.incrementAndGet();
+                        try {
+                            String[] ports = reply.split(" ");
+                            for (int i = 1; i < ports.length; i++) {
+                                upload(Integer.parseInt(ports[i]), filename, content);
+                            }
+                            reply = reader.readLine();
+                        } catch (IOException e) {
+                            reply = e.toString();
+                        }
+                        if ("STORE_COMPLETE".equals(reply)) {
+                            completed.incrementAndGet();
+                        } else {
+                            System.out.println(filename + ": winner was not sent STORE_COMPLETE but " + reply);
+                            violations.incrementAndGet();
+                        }
+                        return content;
+                    }
+                }));
+            }
+
+            List<byte[]> stored = new ArrayList<>();
+            for (Future<byte[]> attempt : attempts) {
+                byte[] content = attempt.get();
+                if (content != null) {
+                    stored.add(content);
+                }
+            }
+            if (stored.size() != 1) {
+                System.out.println(filename + ": " + stored.size() + " clients were sent STORE_TO");
+                violations.incrementAndGet();
+            } else if (!Arrays.equals(stored.get(0), load(controllerPort, filename))) {
+                System.out.println(filename + ": LOAD did not return the winner's content");
+                violations.incrementAndGet();
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        pool.shutdown();
+
+        System.out.printf("rounds=%d clients=%d winners=%d rejected=%d completed=%d violations=%d rounds/s=%.1f%n",
+            rounds, clients, winners.get(), rejected.get(), completed.get(), violations.get(), rounds / seconds);
+        if (violations.get() > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void upload(int port, String filename, byte[] content) throws IOException {
+        try (Socket dstore = new Socket("localhost", port)) {
+            dstore.setSoTimeout(TIMEOUT_MS);
+            new PrintWriter(dstore.getOutputStream(), true).println("STORE " + filename + " " + content.length);
+            String reply = new BufferedReader(new InputStreamReader(dstore.getInputStream())).readLine();
+            if (!"ACK".equals(reply)) {
+                throw new IOException("Dstore " + port + " answered " + reply);
+            }
+            OutputStream out = dstore.getOutputStream();
+            out.write(content);
+            out.flush();
+        }
+    }
+
+    private static byte[] load(int controllerPort, String filename) throws IOException {
+        try (Socket controller = new Socket("localhost", controllerPort)) {
+            controller.setSoTimeout(TIMEOUT_MS);
+            new PrintWriter(controller.getOutputStream(), true).println("LOAD " + filename);
+            String reply = new BufferedReader(new InputStreamReader(controller.getInputStream())).readLine();
+            if (reply == null || !reply.startsWith("LOAD_FROM")) {
+                return null;
+            }
+            String[] parts = reply.split(" ");
+            byte[] content = new byte[Integer.parseInt(parts[2])];
+            try (Socket dstore = new Socket("localhost", Integer.parseInt(parts[1]))) {
+                dstore.setSoTimeout(TIMEOUT_MS);
+                new PrintWriter(dstore.getOutputStream(), true).println("LOAD_DATA " + filename);
+                new DataInputStream(dstore.getInputStream()).readFully(content);
+            }
+            return content;
+        }
+    }
+}
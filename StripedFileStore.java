@@ -0,0 +1,305 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads files over several disks, each with its own storage engine, so a Dstore with
+ * many drives can use all of them. A new file goes to the disk with the most free space
+ * per queued operation; a file that is already stored is rewritten on its own disk. Each
+ * disk has its own pool of I/O threads, so a slow or busy disk queues only its own work.
+ *
+ * Which disk holds a file is kept in memory and rebuilt from the engines' listings at
+ * startup, so reads and listings work the same however the files are spread.
+ *
+ * The I/O threads never touch a socket: the caller copies a file from the network into a
+ * staging area before its write is queued, and out of one after its read has run, so a
+ * slow client holds no disk thread. Files up to stageMemoryBytes are staged in memory,
+ * larger ones in a temporary file.
+ */
+public class StripedFileStore implements FileStore {
+    private static class Disk {
+        final int index;
+        final File root;
+        final FileStore engine;
+        final ExecutorService io;
+        final AtomicInteger queued = new AtomicInteger(); // operations waiting for or running on the disk
+
+        Disk(int index, File root, FileStore engine, int ioThreads) {
+            this.index = index;
+            this.root = root;
+            this.engine = engine;
+            this.io = Executors.newFixedThreadPool(ioThreads, r -> {
+                Thread t = new Thread(r, "disk-" + index + "-io");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    private interface DiskOperation<T> {
+        T run(FileStore engine) throws IOException;
+    }
+
+    private final List<Disk> disks = new ArrayList<>();
+    private final Map<String, Disk> locations = new ConcurrentHashMap<>();
+    private final AtomicInteger turn = new AtomicInteger();
+    private final long stageMemoryBytes;
+
+    public StripedFileStore(List<File> roots, List<FileStore> engines, int ioThreadsPerDisk, long stageMemoryBytes) throws IOException {
+        this.stageMemoryBytes = stageMemoryBytes;
+        for (int i = 0; i < engines.size(); i++) {
+            Disk disk = new Disk(i, roots.get(i), engines.get(i), Math.max(1, ioThreadsPerDisk));
+            disks.add(disk);
+            for (String filename : disk.engine.list()) {
+                Disk previous = locations.putIfAbsent(filename, disk);
+                if (previous != null) {
+                    // Left over from an interrupted move between disks; keep one copy
+                    System.out.println("File " + filename + " found on " + previous.root + " and " + disk.root + ", dropping the second");
+                    disk.engine.delete(filename);
+                }
+            }
+        }
+        System.out.println("Striping files over " + disks.size() + " disks with " + locations.size() + " files");
+    }
+
+    // Most free space per queued operation, so idle disks and empty disks fill first; ties take turns
+    private Disk choose() {
+        Disk best = null;
+        double bestScore = -1;
+        int first = Math.floorMod(turn.getAndIncrement(), disks.size());
+        for (int i = 0; i < disks.size(); i++) {
+            Disk disk = disks.get((first + i) % disks.size());
+            double score = disk.root.getUsableSpace() / (1.0 + disk.queued.get());
+            if (score > bestScore) {
+                best = disk;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // Runs an operation on the disk's own I/O threads and waits for it
+    private <T> T onDisk(Disk disk, DiskOperation<T> operation) throws IOException {
+        disk.queued.incrementAndGet();
+        try {
+            Callable<T> task = () -> operation.run(disk.engine);
+            return disk.io.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for disk " + disk.root, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            disk.queued.decrementAndGet();
+        }
+    }
+
+    private Disk diskOf(String filename) throws FileNotFoundException {
+        Disk disk = locations.get(filename);
+        if (disk == null) {
+            throw new FileNotFoundException(filename);
+        }
+        return disk;
+    }
+
+    @Override
+    public boolean write(String filename, InputStream in, long size) throws IOException {
+        Disk disk = locations.get(filename);
+        if (disk == null) {
+            disk = choose();
+        }
+        try (Staging staging = new Staging(size)) {
+            if (!staging.fill(in, size)) {
+                return false;
+            }
+            boolean complete = onDisk(disk, engine -> engine.write(filename, staging.contents(), size));
+            if (complete) {
+                Disk previous = locations.put(filename, disk);
+                if (previous != null && previous != disk) {
+                    previous.engine.delete(filename);
+                }
+            }
+            return complete;
+        }
+    }
+
+    @Override
+    public void sync(Collection<String> filenames) throws IOException {
+        Map<Disk, List<String>> byDisk = new HashMap<>();
+        for (String filename : filenames) {
+            Disk disk = locations.get(filename);
+            if (disk != null) {
+                byDisk.computeIfAbsent(disk, d -> new ArrayList<>()).add(filename);
+            }
+        }
+        for (Map.Entry<Disk, List<String>> entry : byDisk.entrySet()) {
+            entry.getKey().engine.sync(entry.getValue());
+        }
+    }
+
+    @Override
+    public boolean exists(String filename) {
+        return locations.containsKey(filename);
+    }
+
+    @Override
+    public long size(String filename) {
+        Disk disk = locations.get(filename);
+        return disk == null ? -1 : disk.engine.size(filename);
+    }
+
+    @Override
+    public void transferTo(String filename, OutputStream out) throws IOException {
+        Disk disk = diskOf(filename);
+        try (Staging staging = new Staging(disk.engine.size(filename))) {
+            onDisk(disk, engine -> {
+                try (OutputStream sink = staging.sink()) {
+                    engine.transferTo(filename, sink);
+                }
+                return null;
+            });
+            try (InputStream contents = staging.contents()) {
+                contents.transferTo(out);
+            }
+        }
+    }
+
+    @Override
+    public ByteBuffer map(String filename) throws IOException {
+        return diskOf(filename).engine.map(filename);
+    }
+
+    @Override
+    public boolean delete(String filename) throws IOException {
+        Disk disk = locations.remove(filename);
+        return disk != null && disk.engine.delete(filename);
+    }
+
+    @Override
+    public List<String> list() {
+        return new ArrayList<>(locations.keySet());
+    }
+
+    @Override
+    public String contentId(String filename) {
+        Disk disk = locations.get(filename);
+        return disk == null ? null : disk.engine.contentId(filename);
+    }
+
+    // Content IDs are per disk, so the link only succeeds on a disk that holds the content
+    @Override
+    public boolean link(String filename, String contentId, long size) throws IOException {
+        Disk current = locations.get(filename);
+        for (Disk disk : disks) {
+            if (disk.engine.link(filename, contentId, size)) {
+                if (current != null && current != disk) {
+                    current.engine.delete(filename);
+                }
+                locations.put(filename, disk);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() throws IOException {
+        for (Disk disk : disks) {
+            disk.engine.clear();
+        }
+        locations.clear();
+    }
+
+    // A file's bytes between the network and a disk: in memory up to stageMemoryBytes, in a temporary file beyond
+    private class Staging implements Closeable {
+        private final long size;
+        private final boolean inMemory;
+        private ByteArrayOutputStream memory;
+        private File spool;
+
+        Staging(long size) {
+            this.size = size;
+            this.inMemory = size >= 0 && size <= stageMemoryBytes;
+        }
+
+        OutputStream sink() throws IOException {
+            if (inMemory) {
+                memory = new ByteArrayOutputStream((int) size);
+                return memory;
+            }
+            spool = File.createTempFile("stripe-", ".tmp");
+            return new BufferedOutputStream(new FileOutputStream(spool), 64 * 1024);
+        }
+
+        // Copies exactly size bytes of in; false if in ends early
+        boolean fill(InputStream in, long size) throws IOException {
+            try (OutputStream sink = sink()) {
+                byte[] buffer = new byte[(int) Math.min(64 * 1024, Math.max(1, size))];
+                long remaining = size;
+                while (remaining > 0) {
+                    int bytesRead = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (bytesRead == -1) {
+                        return false;
+                    }
+                    sink.write(buffer, 0, bytesRead);
+                    remaining -= bytesRead;
+                }
+                return true;
+            }
+        }
+
+        InputStream contents() throws IOException {
+            if (inMemory) {
+                return new ByteArrayInputStream(memory.toByteArray());
+            }
+            return new BufferedInputStream(new FileInputStream(spool), 64 * 1024);
+        }
+
+        @Override
+        public void close() {
+            if (spool != null) {
+                spool.delete();
+            }
+        }
+    }
+
+    public String describe() {
+        StringBuilder usage = new StringBuilder("disks=" + disks.size());
+        Map<Disk, Integer> counts = new HashMap<>();
+        for (Disk disk : locations.values()) {
+            counts.merge(disk, 1, Integer::sum);
+        }
+        for (Disk disk : disks) {
+            usage.append(" disk").append(disk.index).append("=").append(counts.getOrDefault(disk, 0))
+                 .append("/").append(disk.queued.get());
+        }
+        return usage.toString();
+    }
+}
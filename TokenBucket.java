@@ -0,0 +1,69 @@
+/**
+ * Token bucket rate limiter over bytes (or any other unit, such as requests). Tokens
+ * accrue at bytesPerSecond up to one second's worth; acquire blocks until enough are
+ * available and tryAcquire fails fast instead. A rate of 0 or less means unlimited.
+ * The rate can be changed while transfers are running.
+ */
+public class TokenBucket {
+    private long bytesPerSecond;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = Math.max(bytesPerSecond, 0);
+    }
+
+    public synchronized long getRate() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, Math.max(bytesPerSecond, 0));
+        notifyAll();
+    }
+
+    /**
+     * Blocks until bytes tokens are available and takes them. Requests larger than the
+     * bucket are let through once it is full, so they wait about as long as they should.
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        while (bytesPerSecond > 0) {
+            refill();
+            long wanted = Math.min(bytes, bytesPerSecond);
+            if (tokens >= wanted) {
+                tokens -= bytes;
+                return;
+            }
+            long waitNanos = (long) ((wanted - tokens) * 1e9 / bytesPerSecond);
+            wait(Math.max(1, waitNanos / 1_000_000), (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    /**
+     * Takes bytes tokens if they are available right now and returns 0, otherwise takes
+     * nothing and returns how many milliseconds until they would be.
+     */
+    public synchronized long tryAcquire(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return 0;
+        }
+        refill();
+        long wanted = Math.min(bytes, bytesPerSecond);
+        if (tokens >= wanted) {
+            tokens -= bytes;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((wanted - tokens) * 1000 / bytesPerSecond));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        if (bytesPerSecond > 0) {
+            tokens = Math.min(bytesPerSecond, tokens + (now - lastRefill) * bytesPerSecond / 1e9);
+        }
+        lastRefill = now;
+    }
+}
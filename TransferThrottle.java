@@ -0,0 +1,104 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps a Dstore's background transfers (rebalance, re-replication and rebuilt shards)
+ * from competing with client I/O. Background transfers share a token bucket, at most
+ * maxTransfers of them run at once, and while any client STORE or LOAD is in progress
+ * they pause between chunks, for at most yieldMillis per chunk so they cannot starve.
+ * All three limits can be changed at runtime.
+ */
+public class TransferThrottle {
+    private static final int CHUNK_BYTES = 64 * 1024;
+
+    private final TokenBucket bucket;
+    private int maxTransfers;
+    private long yieldMillis;
+    private int activeTransfers = 0;
+    private int activeClientIo = 0;
+
+    public TransferThrottle(long bytesPerSecond, int maxTransfers, long yieldMillis) {
+        this.bucket = new TokenBucket(bytesPerSecond);
+        this.maxTransfers = maxTransfers;
+        this.yieldMillis = yieldMillis;
+    }
+
+    public synchronized void configure(long bytesPerSecond, int maxTransfers, long yieldMillis) {
+        bucket.setRate(bytesPerSecond);
+        this.maxTransfers = maxTransfers;
+        this.yieldMillis = yieldMillis;
+        notifyAll();
+        System.out.println("Background transfers limited to " + describe());
+    }
+
+    public synchronized String describe() {
+        return "rate=" + bucket.getRate() + " maxTransfers=" + maxTransfers + " yieldMs=" + yieldMillis
+            + " activeTransfers=" + activeTransfers + " activeClientIo=" + activeClientIo;
+    }
+
+    public synchronized void beginClientIo() {
+        activeClientIo++;
+    }
+
+    public synchronized void endClientIo() {
+        activeClientIo--;
+        if (activeClientIo == 0) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Waits for a background transfer slot; a maxTransfers of 0 or less means no cap.
+     */
+    public synchronized void beginTransfer() throws InterruptedException {
+        while (maxTransfers > 0 && activeTransfers >= maxTransfers) {
+            wait();
+        }
+        activeTransfers++;
+    }
+
+    public synchronized void endTransfer() {
+        activeTransfers--;
+        notifyAll();
+    }
+
+    /**
+     * Wraps the output of a background transfer so every chunk written through it is
+     * rate limited and gives way to client I/O.
+     */
+    public OutputStream throttle(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                while (len > 0) {
+                    int chunk = Math.min(len, CHUNK_BYTES);
+                    try {
+                        yieldToClients();
+                        bucket.acquire(chunk);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while throttled");
+                    }
+                    out.write(b, off, chunk);
+                    off += chunk;
+                    len -= chunk;
+                }
+            }
+        };
+    }
+
+    private synchronized void yieldToClients() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + yieldMillis;
+        long remaining;
+        while (activeClientIo > 0 && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+    }
+}